@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/**
+ * Metrics and samples shaped like the ones of OpenNMS: name and resourceId as intrinsic tags, the rest as meta tags.
+ */
+final class BenchmarkData {
+
+    static final String NAME = "ifHCInOctets";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param tags the total number of tags, at least 2.
+     */
+    static Metric createMetric(final int index, final int tags) {
+        final ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, NAME)
+                .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:" + (index / 100) + ":interface" + index);
+        for (int i = 2; i < tags; i++) {
+            builder.metaTag("tag" + i, "value" + i);
+        }
+        return builder.build();
+    }
+
+    static List<Metric> createMetrics(final int count, final int tags) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(createMetric(i, tags));
+        }
+        return metrics;
+    }
+
+    /**
+     * @return count samples, one per metric in turn, one second apart.
+     */
+    static List<Sample> createSamples(final List<Metric> metrics, final int count, final Instant start) {
+        final List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metrics.get(i % metrics.size()))
+                    .time(start.plusSeconds(i))
+                    .value((double) i)
+                    .build());
+        }
+        return samples;
+    }
+
+    /**
+     * @return samplesPerMetric samples for each metric, one second apart, starting one second after start.
+     */
+    static List<Sample> createSeries(final List<Metric> metrics, final int samplesPerMetric, final Instant start) {
+        final List<Sample> samples = new ArrayList<>(metrics.size() * samplesPerMetric);
+        for (Metric metric : metrics) {
+            for (int i = 1; i <= samplesPerMetric; i++) {
+                samples.add(ImmutableSample.builder().metric(metric).time(start.plusSeconds(i)).value((double) i).build());
+            }
+        }
+        return samples;
+    }
+}
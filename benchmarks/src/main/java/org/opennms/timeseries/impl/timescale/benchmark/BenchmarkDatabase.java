@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.timeseries.impl.timescale.TimescaleStorage;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * The database a benchmark runs against, selected with the mode parameter:
+ * <ul>
+ *   <li>stub: a {@link StubDatabase}, measures the Java side only.</li>
+ *   <li>postgres: a fresh database on a PostgreSQL server with TimescaleDB. The server is given by the system property
+ *   pg.url (e.g. jdbc:postgresql://localhost:5432/postgres, user pg.user, password pg.password). Without it a
+ *   {@link LocalPostgres} is started from the binaries in pg.bin.</li>
+ * </ul>
+ * System properties need to be passed to the forked benchmark JVMs: {@code -jvmArgsAppend -Dpg.bin=...}
+ */
+public class BenchmarkDatabase implements AutoCloseable {
+
+    public static final String STUB = "stub";
+    public static final String POSTGRES = "postgres";
+
+    private final StubDatabase stub;
+    private final LocalPostgres localPostgres;
+    private final HikariDataSource adminDataSource;
+    private final HikariDataSource dataSource;
+    private final String databaseName;
+    private TimescaleStorage storage;
+
+    private BenchmarkDatabase(final StubDatabase stub, final LocalPostgres localPostgres, final HikariDataSource adminDataSource,
+                              final HikariDataSource dataSource, final String databaseName) {
+        this.stub = stub;
+        this.localPostgres = localPostgres;
+        this.adminDataSource = adminDataSource;
+        this.dataSource = dataSource;
+        this.databaseName = databaseName;
+    }
+
+    public static BenchmarkDatabase create(final String mode) throws IOException, InterruptedException, SQLException {
+        if (STUB.equals(mode)) {
+            return new BenchmarkDatabase(new StubDatabase(), null, null, null, null);
+        }
+        if (!POSTGRES.equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode + ", use " + STUB + " or " + POSTGRES);
+        }
+        LocalPostgres localPostgres = null;
+        String url = System.getProperty("pg.url");
+        if (url == null) {
+            localPostgres = LocalPostgres.start(LocalPostgres.defaultBinDir());
+            url = localPostgres.getJdbcUrl();
+        }
+        final HikariDataSource admin = createDataSource(url);
+        // a database of its own, so that every trial starts empty
+        final String databaseName = "tss_benchmark_" + System.nanoTime();
+        try (Connection connection = admin.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE DATABASE " + databaseName);
+        }
+        final String databaseUrl = url.substring(0, url.lastIndexOf('/') + 1) + databaseName;
+        return new BenchmarkDatabase(null, localPostgres, admin, createDataSource(databaseUrl), databaseName);
+    }
+
+    private static HikariDataSource createDataSource(final String url) {
+        final HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setUsername(System.getProperty("pg.user", "postgres"));
+        config.setPassword(System.getProperty("pg.password", ""));
+        config.setMaximumPoolSize(Integer.getInteger("pg.poolSize", 10));
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * @return the stub or null in postgres mode.
+     */
+    public StubDatabase getStub() {
+        return stub;
+    }
+
+    public boolean isStub() {
+        return stub != null;
+    }
+
+    public DataSource getDataSource() {
+        return isStub() ? stub.getDataSource() : dataSource;
+    }
+
+    /**
+     * Creates the storage. In postgres mode it is initialized, i.e. the tables are created.
+     */
+    public TimescaleStorage createStorage(final TimescaleStorageConfig config) throws StorageException {
+        config.setJmxEnabled(false);
+        storage = new TimescaleStorage(getDataSource(), config);
+        if (!isStub()) {
+            storage.init();
+        }
+        return storage;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (storage != null) {
+            storage.destroy();
+        }
+        if (dataSource != null) {
+            dataSource.close();
+        }
+        if (adminDataSource != null) {
+            try (Connection connection = adminDataSource.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("DROP DATABASE IF EXISTS " + databaseName);
+            } finally {
+                adminDataSource.close();
+            }
+        }
+        if (localPostgres != null) {
+            localPostgres.close();
+        }
+    }
+}
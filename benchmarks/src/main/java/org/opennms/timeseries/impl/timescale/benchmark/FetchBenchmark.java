@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.timescale.SampleColumns;
+import org.opennms.timeseries.impl.timescale.TimescaleStorage;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Lists;
+
+/**
+ * getTimeseries() of the raw samples of {@link #metrics} metrics with {@link #samples} samples each, comparing the ways
+ * the results can be materialized: a list of samples per request, primitive columns and streaming to a callback.
+ * <pre>java -jar benchmarks/target/benchmarks.jar FetchBenchmark -p mode=stub,postgres -prof gc</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchBenchmark {
+
+    @Param({BenchmarkDatabase.STUB})
+    public String mode;
+
+    @Param({"1", "10"})
+    public int metrics;
+
+    @Param({"10000"})
+    public int samples;
+
+    private BenchmarkDatabase database;
+    private TimescaleStorage storage;
+    private List<TimeSeriesFetchRequest> requests;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkDatabase.create(mode);
+        storage = database.createStorage(new TimescaleStorageConfig());
+
+        final List<Metric> metricList = BenchmarkData.createMetrics(metrics, 2);
+        final Instant start = Instant.now().truncatedTo(ChronoUnit.HOURS).minusSeconds(samples);
+        if (database.isStub()) {
+            metricList.forEach(database.getStub()::addMetric);
+            database.getStub().setSamplesPerMetric(samples);
+        } else {
+            for (List<Sample> batch : Lists.partition(BenchmarkData.createSeries(metricList, samples, start), 10_000)) {
+                storage.store(batch);
+            }
+        }
+
+        requests = new ArrayList<>(metrics);
+        for (Metric metric : metricList) {
+            requests.add(ImmutableTimeSeriesFetchRequest.builder()
+                    .metric(metric)
+                    .start(start)
+                    .end(start.plusSeconds(samples + 1))
+                    .step(Duration.ZERO)
+                    .aggregation(Aggregation.NONE)
+                    .build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    /**
+     * One getTimeseries() per request, as OpenNMS does it.
+     */
+    @Benchmark
+    public void samplesPerRequest(final Blackhole blackhole) throws Exception {
+        for (TimeSeriesFetchRequest request : requests) {
+            for (Sample sample : storage.getTimeseries(request)) {
+                blackhole.consume(sample.getValue());
+            }
+        }
+    }
+
+    /**
+     * All requests with one query.
+     */
+    @Benchmark
+    public void samplesBatched(final Blackhole blackhole) throws Exception {
+        for (List<Sample> result : storage.getTimeseries(requests)) {
+            for (Sample sample : result) {
+                blackhole.consume(sample.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public void columns(final Blackhole blackhole) throws Exception {
+        for (TimeSeriesFetchRequest request : requests) {
+            final SampleColumns columns = storage.getTimeseriesColumns(request);
+            for (int i = 0; i < columns.size(); i++) {
+                blackhole.consume(columns.getValue(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void streaming(final Blackhole blackhole) throws Exception {
+        for (TimeSeriesFetchRequest request : requests) {
+            storage.getTimeseries(request, sample -> blackhole.consume(sample.getValue()));
+        }
+    }
+}
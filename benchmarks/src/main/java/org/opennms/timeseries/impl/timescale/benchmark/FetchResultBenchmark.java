@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.timescale.SampleColumns;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building a fetch result as a list of ImmutableSample (one Sample, Instant and Double per row) with
+ * {@link SampleColumns} (two primitive arrays). The rows come from arrays, so only the result building is measured.
+ *
+ * Run with the gc profiler to see the heap per fetch: gc.alloc.rate.norm is the number of bytes allocated per operation,
+ * i.e. per {@link #points} samples.
+ * <pre>java -jar benchmarks/target/benchmarks.jar FetchResultBenchmark -prof gc</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchResultBenchmark {
+
+    @Param({"1000000"})
+    public int points;
+
+    private Metric metric;
+    private long[] times;
+    private double[] values;
+
+    @Setup
+    public void setUp() {
+        metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "ifHCInOctets")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:eth0")
+                .build();
+        times = new long[points];
+        values = new double[points];
+        final long start = System.currentTimeMillis() - points * 1000L;
+        for (int i = 0; i < points; i++) {
+            times[i] = start + i * 1000L;
+            values[i] = Math.random();
+        }
+    }
+
+    @Benchmark
+    public List<Sample> immutableSamples() {
+        final List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < points; i++) {
+            samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(times[i])).value(values[i]).build());
+        }
+        return samples;
+    }
+
+    @Benchmark
+    public SampleColumns sampleColumns() {
+        final SampleColumns columns = new SampleColumns(metric);
+        for (int i = 0; i < points; i++) {
+            columns.add(times[i], values[i]);
+        }
+        return columns;
+    }
+
+    /**
+     * The worst case for the columns: the caller needs Sample objects for all rows anyway.
+     */
+    @Benchmark
+    public double sampleColumnsAsList() {
+        final SampleColumns columns = sampleColumns();
+        double sum = 0;
+        for (Sample sample : columns.asList()) {
+            sum += sample.getValue();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.timeseries.impl.timescale.FindMetricsStrategy;
+import org.opennms.timeseries.impl.timescale.TimescaleStorage;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * findMetrics() with 1 to 10 matchers: building and running the sql, then loading the tags of the matching metrics
+ * (loadMetrics()). Out of all metrics, {@link #matching} metrics match all matchers. The matchers are evaluated with one
+ * join or with one query per matcher, see {@link FindMetricsStrategy}.
+ * <pre>java -jar benchmarks/target/benchmarks.jar FindMetricsBenchmark -p mode=stub,postgres</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FindMetricsBenchmark {
+
+    @Param({BenchmarkDatabase.STUB})
+    public String mode;
+
+    @Param({"1", "2", "5", "10"})
+    public int matchers;
+
+    @Param({"JOIN", "PARALLEL"})
+    public FindMetricsStrategy strategy;
+
+    @Param({"10000"})
+    public int metrics;
+
+    @Param({"10", "1000"})
+    public int matching;
+
+    /** Tags per metric, the matchers need matchers + 1 of them. */
+    @Param({"12"})
+    public int tags;
+
+    private BenchmarkDatabase database;
+    private TimescaleStorage storage;
+    private List<TagMatcher> matcherList;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkDatabase.create(mode);
+        final TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setFindMetricsStrategy(strategy);
+        storage = database.createStorage(config);
+
+        final List<Metric> all = new ArrayList<>(metrics);
+        for (int i = 0; i < metrics; i++) {
+            final Metric metric = BenchmarkData.createMetric(i, tags);
+            // the first matcher selects the matching metrics, the others match all metrics
+            all.add(ImmutableMetric.builder()
+                    .intrinsicTags(metric.getIntrinsicTags())
+                    .metaTags(metric.getMetaTags())
+                    .metaTag("group", i < matching ? "selected" : "other")
+                    .build());
+        }
+        if (database.isStub()) {
+            all.forEach(database.getStub()::addMetric);
+            database.getStub().setMatchingMetrics(matching);
+        } else {
+            storage.store(BenchmarkData.createSamples(all, all.size(), Instant.now()));
+        }
+
+        matcherList = new ArrayList<>(matchers);
+        matcherList.add(ImmutableTagMatcher.builder().type(TagMatcher.Type.EQUALS).key("group").value("selected").build());
+        if (matchers > 1) {
+            matcherList.add(ImmutableTagMatcher.builder().type(TagMatcher.Type.EQUALS).key(IntrinsicTagNames.name).value(BenchmarkData.NAME).build());
+        }
+        for (int i = 2; i < matchers; i++) {
+            // alternate between exact and regex matches of the meta tags
+            final TagMatcher.Type type = i % 2 == 0 ? TagMatcher.Type.EQUALS : TagMatcher.Type.EQUALS_REGEX;
+            matcherList.add(ImmutableTagMatcher.builder().type(type).key("tag" + i).value(type == TagMatcher.Type.EQUALS ? "value" + i : "val.*").build());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Benchmark
+    public List<Metric> findMetrics() throws Exception {
+        return storage.findMetrics(matcherList);
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A throwaway PostgreSQL server with the TimescaleDB extension, started from the binaries of a local installation,
+ * e.g. /usr/lib/postgresql/12/bin. The data directory is created in a temporary directory and deleted on close.
+ * Unlike a container this doesn't add a virtualized network and storage layer to the measurements.
+ */
+public class LocalPostgres implements AutoCloseable {
+
+    private final Path binDir;
+    private final Path dataDir;
+    private final int port;
+
+    private LocalPostgres(final Path binDir, final Path dataDir, final int port) {
+        this.binDir = binDir;
+        this.dataDir = dataDir;
+        this.port = port;
+    }
+
+    public static LocalPostgres start(final Path binDir) throws IOException, InterruptedException {
+        final Path dataDir = Files.createTempDirectory("tss-benchmark-pg");
+        final int port = findFreePort();
+        final LocalPostgres postgres = new LocalPostgres(binDir, dataDir, port);
+        try {
+            postgres.run("initdb", "-D", dataDir.toString(), "-U", "postgres", "--auth=trust", "-E", "UTF8");
+            postgres.run("pg_ctl", "-D", dataDir.toString(), "-w", "-l", dataDir.resolve("postgres.log").toString(),
+                    "-o", String.format("-p %s -k %s -c shared_preload_libraries=timescaledb -c timescaledb.telemetry_level=off", port, dataDir),
+                    "start");
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            postgres.close();
+            throw e;
+        }
+        return postgres;
+    }
+
+    public String getJdbcUrl() {
+        return String.format("jdbc:postgresql://localhost:%s/postgres", port);
+    }
+
+    private void run(final String command, final String... args) throws IOException, InterruptedException {
+        final List<String> commandLine = new ArrayList<>();
+        commandLine.add(binDir.resolve(command).toString());
+        commandLine.addAll(Arrays.asList(args));
+        final File output = dataDir.resolveSibling(dataDir.getFileName() + "-" + command + ".log").toFile();
+        final Process process = new ProcessBuilder(commandLine)
+                .redirectErrorStream(true)
+                .redirectOutput(output)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException(String.format("%s failed with exit code %s, see %s", commandLine, process.exitValue(), output));
+        }
+        Files.deleteIfExists(output.toPath());
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        try {
+            if (Files.exists(dataDir.resolve("postmaster.pid"))) {
+                run("pg_ctl", "-D", dataDir.toString(), "-m", "immediate", "stop");
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    static Path defaultBinDir() {
+        return Paths.get(System.getProperty("pg.bin", "/usr/lib/postgresql/12/bin"));
+    }
+}
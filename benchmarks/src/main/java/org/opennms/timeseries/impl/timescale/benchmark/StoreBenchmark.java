@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.timeseries.impl.timescale.IngestMode;
+import org.opennms.timeseries.impl.timescale.TimescaleStorage;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * store() of one batch of samples. The same batch is stored again and again, so after the first call all metrics are
+ * known and only the samples are written, as in a running OpenNMS.
+ * Divide the time per operation by the batch size to get the time per sample.
+ * <pre>java -jar benchmarks/target/benchmarks.jar StoreBenchmark -p mode=stub,postgres -prof gc</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+
+    @Param({BenchmarkDatabase.STUB})
+    public String mode;
+
+    @Param({"1", "100", "1000", "10000"})
+    public int batchSize;
+
+    /** Tags per metric. */
+    @Param({"2", "10"})
+    public int tags;
+
+    /** Number of metrics the samples of a batch belong to. */
+    @Param({"1000"})
+    public int metrics;
+
+    @Param({"INSERT"})
+    public IngestMode ingestMode;
+
+    private BenchmarkDatabase database;
+    private TimescaleStorage storage;
+    private List<Sample> batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = BenchmarkDatabase.create(mode);
+        final TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setIngestMode(ingestMode);
+        storage = database.createStorage(config);
+        batch = BenchmarkData.createSamples(BenchmarkData.createMetrics(metrics, tags), batchSize,
+                Instant.now().truncatedTo(ChronoUnit.HOURS));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        database.close();
+    }
+
+    @Benchmark
+    public void store() throws Exception {
+        storage.store(batch);
+    }
+}
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+/**
+ * An in-memory stand-in for the database, exposed as a {@link DataSource} whose connections, statements and result sets
+ * are dynamic proxies. It answers the queries of the TimescaleStorage with generated rows, so a benchmark running
+ * against it only measures the Java side: building the sql, binding parameters, reading the rows and building the results.
+ *
+ * The proxies box every value they return. This adds the same cost per row to all variants of a benchmark, so compare
+ * the variants with each other rather than with the numbers of the postgres mode.
+ */
+public class StubDatabase {
+
+    private static final class Rows {
+        private final String[] columns;
+        private final int size;
+        private final Cells cells;
+
+        private Rows(final String[] columns, final int size, final Cells cells) {
+            this.columns = columns;
+            this.size = size;
+            this.cells = cells;
+        }
+
+        private int column(final Object indexOrLabel) throws SQLException {
+            if (indexOrLabel instanceof Integer) {
+                return (Integer) indexOrLabel - 1;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equals(indexOrLabel)) {
+                    return i;
+                }
+            }
+            throw new SQLException("Unknown column " + indexOrLabel);
+        }
+    }
+
+    private interface Cells {
+        Object get(int row, int column);
+    }
+
+    private static final Rows NO_ROWS = new Rows(new String[0], 0, (row, column) -> null);
+
+    private final Map<String, Integer> metricIds = new ConcurrentHashMap<>();
+    private final Map<Integer, Metric> metrics = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile int matchingMetrics = Integer.MAX_VALUE;
+    private volatile int samplesPerMetric = 0;
+
+    /**
+     * Registers the metric as if its tags were stored.
+     * @return the id of the metric.
+     */
+    public int addMetric(final Metric metric) {
+        final int id = metricIds.computeIfAbsent(metric.getKey(), k -> nextId.incrementAndGet());
+        metrics.put(id, metric);
+        return id;
+    }
+
+    /**
+     * @param matchingMetrics the number of metrics the findMetrics() query returns, no matter what the matchers are.
+     */
+    public void setMatchingMetrics(final int matchingMetrics) {
+        this.matchingMetrics = matchingMetrics;
+    }
+
+    /**
+     * @param samplesPerMetric the number of rows the getTimeseries() query returns per metric.
+     */
+    public void setSamplesPerMetric(final int samplesPerMetric) {
+        this.samplesPerMetric = samplesPerMetric;
+    }
+
+    public DataSource getDataSource() {
+        return proxy(DataSource.class, (proxy, method, args) -> {
+            if ("getConnection".equals(method.getName())) {
+                return newConnection();
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private Rows query(final String sql, final Map<Integer, Object> params) throws SQLException {
+        if (sql.startsWith("SELECT id, key FROM timescale_metric")) {
+            // every key is known: metrics which are stored for the first time get a new id
+            final Object[] keys = elements(params.get(1));
+            final int[] ids = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ids[i] = metricIds.computeIfAbsent((String) keys[i], k -> nextId.incrementAndGet());
+            }
+            return new Rows(new String[]{"id", "key"}, keys.length, (row, column) -> column == 0 ? ids[row] : keys[row]);
+        }
+        if (sql.startsWith("SELECT fk_timescale_metric, key, value, type FROM timescale_tag")) {
+            final List<Object[]> tags = new ArrayList<>();
+            for (int id : sortedIds(params.get(1))) {
+                final Metric metric = metrics.get(id);
+                if (metric != null) {
+                    addTags(tags, id, ImmutableMetric.TagType.intrinsic, metric.getIntrinsicTags());
+                    addTags(tags, id, ImmutableMetric.TagType.meta, metric.getMetaTags());
+                    addTags(tags, id, ImmutableMetric.TagType.external, metric.getExternalTags());
+                }
+            }
+            return new Rows(new String[]{"fk_timescale_metric", "key", "value", "type"}, tags.size(), (row, column) -> tags.get(row)[column]);
+        }
+        if (sql.startsWith("select distinct t0.fk_timescale_metric")) {
+            final int[] ids = metrics.keySet().stream().mapToInt(Integer::intValue).sorted().limit(matchingMetrics).toArray();
+            return new Rows(new String[]{"fk_timescale_metric"}, ids.length, (row, column) -> ids[row]);
+        }
+        if (sql.startsWith("SELECT fk_timescale_metric FROM timescale_tag WHERE key")) {
+            // one query per matcher: the matcher of the "group" tag selects the matching metrics, the others match all metrics
+            final int limit = "group".equals(params.get(1)) ? matchingMetrics : Integer.MAX_VALUE;
+            final int[] ids = metrics.keySet().stream().mapToInt(Integer::intValue).sorted().limit(limit).toArray();
+            return new Rows(new String[]{"fk_timescale_metric"}, ids.length, (row, column) -> ids[row]);
+        }
+        if (sql.startsWith("SELECT fk_timescale_metric") && sql.contains("timescale_time_series")) {
+            final int[] ids = sortedIds(params.get(1));
+            final long start = ((Timestamp) params.get(2)).getTime();
+            final int perMetric = samplesPerMetric;
+            return new Rows(new String[]{"fk_timescale_metric", "step", "aggregation"}, ids.length * perMetric, (row, column) -> {
+                switch (column) {
+                    case 0:
+                        return ids[row / perMetric];
+                    case 1:
+                        return start + 1000L * (row % perMetric + 1);
+                    default:
+                        return (double) row;
+                }
+            });
+        }
+        return NO_ROWS;
+    }
+
+    private static void addTags(final List<Object[]> rows, final int id, final ImmutableMetric.TagType type, final Iterable<Tag> tags) {
+        for (Tag tag : tags) {
+            rows.add(new Object[]{id, tag.getKey(), tag.getValue(), type.name()});
+        }
+    }
+
+    private static Object[] elements(final Object array) throws SQLException {
+        return (Object[]) ((Array) array).getArray();
+    }
+
+    private static int[] sortedIds(final Object array) throws SQLException {
+        return Arrays.stream(elements(array)).mapToInt(id -> (Integer) id).sorted().toArray();
+    }
+
+    private Connection newConnection() {
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return newStatement((String) args[0]);
+                case "createArrayOf":
+                    final Object[] elements = (Object[]) args[1];
+                    return proxy(Array.class, (p, m, a) -> "getArray".equals(m.getName()) ? elements : defaultValue(m.getReturnType()));
+                case "unwrap":
+                    throw new SQLException("Not a postgres connection");
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private PreparedStatement newStatement(final String sql) {
+        final Map<Integer, Object> params = new HashMap<>();
+        final int[] batchSize = {0};
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            final String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                params.put((Integer) args[0], args[1]);
+                return null;
+            }
+            switch (name) {
+                case "addBatch":
+                    batchSize[0]++;
+                    return null;
+                case "executeBatch":
+                    final int[] updateCounts = new int[batchSize[0]];
+                    Arrays.fill(updateCounts, 1);
+                    batchSize[0] = 0;
+                    return updateCounts;
+                case "executeQuery":
+                    return newResultSet(query(sql, params));
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static ResultSet newResultSet(final Rows rows) {
+        final int[] row = {-1};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            final Class<?> type = method.getReturnType();
+            switch (method.getName()) {
+                case "next":
+                    return ++row[0] < rows.size;
+                case "getInt":
+                case "getLong":
+                case "getDouble":
+                case "getString":
+                case "getObject":
+                    final Object value = rows.cells.get(row[0], rows.column(args[0]));
+                    if (type == int.class) {
+                        return ((Number) value).intValue();
+                    } else if (type == long.class) {
+                        return ((Number) value).longValue();
+                    } else if (type == double.class) {
+                        return ((Number) value).doubleValue();
+                    } else if (type == String.class) {
+                        return String.valueOf(value);
+                    }
+                    return value;
+                default:
+                    return defaultValue(type);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubDatabase.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            // identity semantics, the storage keeps its statements in hash sets to close them
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Stub" + type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return handler.invoke(proxy, method, args);
+            }
+        });
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type.isPrimitive() && type != void.class) {
+            throw new UnsupportedOperationException("No default for " + type);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decouples the callers of {@link TimescaleStorage#store(List)} from the database.
+ * Samples are put into a bounded buffer (an {@link ArrayBlockingQueue}, which is a ring buffer backed by an array) and
+ * written by a pool of flusher threads. The flushers coalesce the samples of many callers into large batches: after the
+ * first sample arrived they wait up to lingerMillis for the batch to fill up.
+ * Before the writer is started and after it was stopped the samples are written synchronously.
+ */
+@Slf4j
+public class AsyncSampleWriter implements AsyncSampleWriterMXBean {
+
+    interface SampleSink {
+        void write(List<Sample> samples) throws StorageException;
+    }
+
+    private final SampleSink sink;
+    /** Takes the samples which don't fit into the buffer or are left over on stop, null to drop them. */
+    private final SampleSink overflowSink;
+    private final BlockingQueue<Sample> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long offerTimeoutMillis;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+    private final List<Thread> flushers = new ArrayList<>();
+
+    private volatile boolean running = false;
+    /** Held (shared) while samples are enqueued, stop() takes it exclusively: no sample is enqueued after the flushers stopped. */
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+
+    private final LongAdder droppedSamples = new LongAdder();
+    private final LongAdder failedSamples = new LongAdder();
+    private final LongAdder writtenSamples = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushLatencyNanos = new LongAdder();
+    private final AtomicLong lastFlushLatencyNanos = new AtomicLong();
+
+    AsyncSampleWriter(final SampleSink sink, final TimescaleStorageConfig config) {
+        this(sink, null, config);
+    }
+
+    AsyncSampleWriter(final SampleSink sink, final SampleSink overflowSink, final TimescaleStorageConfig config) {
+        this.sink = sink;
+        this.overflowSink = overflowSink;
+        this.queue = new ArrayBlockingQueue<>(config.getAsyncQueueSize());
+        this.overflowPolicy = config.getAsyncOverflowPolicy();
+        this.offerTimeoutMillis = config.getAsyncOfferTimeoutMillis();
+        this.maxBatchSize = config.getAsyncMaxBatchSize();
+        this.lingerMillis = config.getAsyncLingerMillis();
+        for (int i = 0; i < config.getAsyncFlusherThreads(); i++) {
+            Thread flusher = new Thread(this::flushLoop, "timescale-flusher-" + i);
+            flusher.setDaemon(true);
+            flushers.add(flusher);
+        }
+    }
+
+    void start() {
+        running = true;
+        flushers.forEach(Thread::start);
+    }
+
+    /**
+     * Stops accepting samples, writes everything that is still buffered and waits for the flushers to finish.
+     * The samples which are still buffered when the flushers don't finish in time go to the overflow sink.
+     */
+    void stop(final long timeoutMillis) throws InterruptedException {
+        // waits for the enqueues in progress, the flushers are still running and make room for them
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread flusher : flushers) {
+            flusher.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        for (Thread flusher : flushers) {
+            if (flusher.isAlive()) {
+                log.warn("Flusher {} did not finish within {}ms.", flusher.getName(), timeoutMillis);
+                flusher.interrupt();
+            }
+        }
+        // the flushers still alive are stuck in a write: take the rest away from them
+        final List<Sample> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        if (!leftover.isEmpty()) {
+            overflow(leftover, "left over on stop");
+        }
+    }
+
+    void enqueue(final List<Sample> samples) throws StorageException {
+        int accepted = 0;
+        final List<Sample> evicted = new ArrayList<>(0);
+        runningLock.readLock().lock();
+        try {
+            if (!running) {
+                // not started yet or already stopped: the flushers won't write the samples
+                accepted = -1;
+            } else {
+                for (Sample sample : samples) {
+                    if (!offer(sample, evicted)) {
+                        break;
+                    }
+                    accepted++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final int dropped = samples.size() - accepted;
+            droppedSamples.add(dropped);
+            throw new StorageException(String.format("Interrupted while buffering samples, dropped %s of %s samples.", dropped, samples.size()));
+        } finally {
+            runningLock.readLock().unlock();
+            if (!evicted.isEmpty()) {
+                overflow(evicted, "evicted from the full buffer");
+            }
+        }
+        if (accepted < 0) {
+            sink.write(samples);
+            return;
+        }
+        if (accepted < samples.size() && overflowSink != null) {
+            overflowSink.write(samples.subList(accepted, samples.size()));
+            return;
+        }
+        if (accepted < samples.size()) {
+            final int dropped = samples.size() - accepted;
+            droppedSamples.add(dropped);
+            if (overflowPolicy == OverflowPolicy.BLOCK) {
+                throw new StorageException(String.format("Write buffer is full, dropped %s of %s samples.", dropped, samples.size()));
+            }
+        }
+    }
+
+    /**
+     * @param evicted collects the samples which are removed under {@link OverflowPolicy#DROP_OLDEST} to make room
+     */
+    private boolean offer(final Sample sample, final List<Sample> evicted) throws InterruptedException {
+        switch (overflowPolicy) {
+            case BLOCK:
+                return queue.offer(sample, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            case DROP_NEWEST:
+                return queue.offer(sample);
+            case DROP_OLDEST:
+                while (!queue.offer(sample)) {
+                    final Sample oldest = queue.poll();
+                    if (oldest != null) {
+                        evicted.add(oldest);
+                    }
+                }
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown OverflowPolicy " + overflowPolicy);
+        }
+    }
+
+    /**
+     * Hands samples the flushers won't write to the overflow sink, or counts them as dropped when there is none.
+     * The caller's own samples were buffered, so a failure is logged rather than thrown.
+     */
+    private void overflow(final List<Sample> samples, final String reason) {
+        if (overflowSink != null) {
+            try {
+                overflowSink.write(samples);
+                return;
+            } catch (StorageException | RuntimeException e) {
+                log.error("Could not hand {} samples {} to the overflow sink. They are lost.", samples.size(), reason, e);
+            }
+        } else {
+            log.debug("Dropped {} samples {}.", samples.size(), reason);
+        }
+        droppedSamples.add(samples.size());
+    }
+
+    private void flushLoop() {
+        final List<Sample> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                fillBatch(batch);
+            } catch (InterruptedException e) {
+                // we got interrupted during shutdown => write what we have and stop
+                Thread.currentThread().interrupt();
+                flush(batch);
+                return;
+            }
+            flush(batch);
+        }
+    }
+
+    private void fillBatch(final List<Sample> batch) throws InterruptedException {
+        final Sample first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        final long lingerUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < maxBatchSize) {
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            final long remaining = lingerUntil - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0 || !running) {
+                return;
+            }
+            final Sample next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void flush(final List<Sample> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            sink.write(batch);
+            writtenSamples.add(batch.size());
+        } catch (StorageException | RuntimeException e) {
+            failedSamples.add(batch.size());
+            log.error("Could not write {} samples. They are lost.", batch.size(), e);
+        } finally {
+            final long latency = System.nanoTime() - start;
+            flushes.increment();
+            flushLatencyNanos.add(latency);
+            lastFlushLatencyNanos.set(latency);
+            batch.clear();
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueRemainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    @Override
+    public long getDroppedSamples() {
+        return droppedSamples.sum();
+    }
+
+    @Override
+    public long getFailedSamples() {
+        return failedSamples.sum();
+    }
+
+    @Override
+    public long getWrittenSamples() {
+        return writtenSamples.sum();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    @Override
+    public long getLastFlushLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushLatencyNanos.get());
+    }
+
+    @Override
+    public double getAverageFlushLatencyMillis() {
+        final long count = flushes.sum();
+        return count == 0 ? 0.0 : flushLatencyNanos.sum() / (count * 1_000_000.0);
+    }
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * The buffer of asynchronous writes, exposed via JMX as org.opennms.plugins.tss.timescale:type=AsyncSampleWriter.
+ */
+public interface AsyncSampleWriterMXBean {
+
+    /** Number of samples in the buffer which are not written yet. */
+    int getQueueSize();
+
+    int getQueueRemainingCapacity();
+
+    /** Samples which didn't fit into the buffer and were neither written nor spooled. */
+    long getDroppedSamples();
+
+    /** Samples of flushes which failed. */
+    long getFailedSamples();
+
+    long getWrittenSamples();
+
+    long getFlushCount();
+
+    long getLastFlushLatencyMillis();
+
+    double getAverageFlushLatencyMillis();
+}
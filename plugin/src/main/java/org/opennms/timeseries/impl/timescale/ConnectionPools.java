@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Objects;
+
+import javax.sql.DataSource;
+
+import org.postgresql.ds.PGSimpleDataSource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The data sources the storage writes to and reads from. By default both are the DataSource of OpenNMS.
+ * With dedicatedPoolsEnabled the plugin creates two pools of its own, so that ingest, graph queries and OpenNMS
+ * don't compete for the same connections: store() and delete() use the write pool, findMetrics() and getTimeseries()
+ * the read pool.
+ */
+@Slf4j
+public class ConnectionPools implements AutoCloseable {
+
+    private final DataSource writeDataSource;
+    private final DataSource readDataSource;
+
+    /** true if the pools were created by us and need to be closed. */
+    private final boolean dedicated;
+
+    private ConnectionPools(final DataSource writeDataSource, final DataSource readDataSource, final boolean dedicated) {
+        this.writeDataSource = writeDataSource;
+        this.readDataSource = readDataSource;
+        this.dedicated = dedicated;
+    }
+
+    /**
+     * @return pools which use the given DataSource for everything.
+     */
+    public static ConnectionPools shared(final DataSource dataSource) {
+        return new ConnectionPools(dataSource, dataSource, false);
+    }
+
+    /**
+     * @param dataSource the DataSource of OpenNMS, used for everything if no dedicated pools are configured.
+     */
+    public static ConnectionPools create(final DataSource dataSource, final TimescaleStorageConfig config) {
+        if (!config.isDedicatedPoolsEnabled()) {
+            return shared(dataSource);
+        }
+        Objects.requireNonNull(config.getJdbcUrl(), "jdbcUrl is required for dedicated pools");
+        final HikariDataSource write = createPool("timescale-write", config.getJdbcUrl(), config.getWritePool(), false, config);
+        try {
+            final HikariDataSource read = createPool("timescale-read", config.getJdbcUrl(), config.getReadPool(), true, config);
+            log.info("Using dedicated connection pools for {}: {} write and {} read connections.", config.getJdbcUrl(),
+                    config.getWritePool().getMaxSize(), config.getReadPool().getMaxSize());
+            return new ConnectionPools(write, read, true);
+        } catch (RuntimeException e) {
+            write.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a pool for the given database with the credentials of the config.
+     */
+    static HikariDataSource createPool(final String name, final String jdbcUrl, final PoolConfig pool, final boolean readOnly,
+                                       final TimescaleStorageConfig config) {
+        // handing over a DataSource instead of a jdbc url avoids the DriverManager, which doesn't work well within OSGi
+        final PGSimpleDataSource pgDataSource = new PGSimpleDataSource();
+        pgDataSource.setUrl(jdbcUrl);
+        pgDataSource.setPreparedStatementCacheQueries(pool.getStatementCacheQueries());
+        pgDataSource.setPrepareThreshold(pool.getPrepareThreshold());
+        pgDataSource.setApplicationName("opennms-tss-" + name);
+
+        final HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName(name);
+        hikariConfig.setDataSource(pgDataSource);
+        hikariConfig.setUsername(config.getJdbcUser());
+        hikariConfig.setPassword(config.getJdbcPassword());
+        hikariConfig.setMaximumPoolSize(pool.getMaxSize());
+        hikariConfig.setMinimumIdle(Math.min(pool.getMinIdle(), pool.getMaxSize()));
+        hikariConfig.setConnectionTimeout(pool.getConnectionTimeoutMillis());
+        hikariConfig.setIdleTimeout(pool.getIdleTimeoutMillis());
+        hikariConfig.setMaxLifetime(pool.getMaxLifetimeMillis());
+        hikariConfig.setReadOnly(readOnly);
+        hikariConfig.setRegisterMbeans(config.isJmxEnabled());
+        return new HikariDataSource(hikariConfig);
+    }
+
+    /**
+     * @return the DataSource for store() and delete(), also used to create and migrate the schema.
+     */
+    public DataSource getWriteDataSource() {
+        return writeDataSource;
+    }
+
+    /**
+     * @return the DataSource for findMetrics() and getTimeseries().
+     */
+    public DataSource getReadDataSource() {
+        return readDataSource;
+    }
+
+    /**
+     * Closes the dedicated pools. The DataSource of OpenNMS is left alone.
+     */
+    @Override
+    public void close() {
+        if (dedicated) {
+            closePool(readDataSource);
+            closePool(writeDataSource);
+        }
+    }
+
+    static void closePool(final DataSource dataSource) {
+        if (dataSource instanceof HikariDataSource) {
+            ((HikariDataSource) dataSource).close();
+        }
+    }
+}
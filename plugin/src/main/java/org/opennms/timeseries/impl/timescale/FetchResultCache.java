@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches aggregated fetch results in blocks of a fixed number of buckets, aligned like the buckets of time_bucket().
+ * Only sealed blocks are cached: blocks which ended more than sealDelay ago and are not expected to change anymore.
+ * Sliding window requests, e.g. of dashboards, can be served from the cache except for the open buckets at the end.
+ * The cache is bounded by the estimated memory of its entries, least recently used entries are evicted first.
+ * <p>
+ * The blocks are indexed by metric, so invalidating a metric only touches its own blocks. Every metric has a
+ * generation which changes when it is invalidated: a block fetched before the invalidation is not put anymore.
+ */
+public class FetchResultCache {
+
+    /** The default origin of time_bucket() for intervals of days and below: Monday 2000-01-03. */
+    static final long ORIGIN_MILLIS = 946_857_600_000L;
+
+    private static class Key {
+        private final String metricKey;
+        private final Aggregation aggregation;
+        private final long stepMillis;
+        private final long blockStart;
+
+        private Key(final String metricKey, final Aggregation aggregation, final long stepMillis, final long blockStart) {
+            this.metricKey = metricKey;
+            this.aggregation = aggregation;
+            this.stepMillis = stepMillis;
+            this.blockStart = blockStart;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return stepMillis == other.stepMillis
+                    && blockStart == other.blockStart
+                    && aggregation == other.aggregation
+                    && metricKey.equals(other.metricKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metricKey, aggregation, stepMillis, blockStart);
+        }
+    }
+
+    /** The cached blocks of a metric. Invalidating the metric removes it from the index, a new one gets a new generation. */
+    private static class MetricBlocks {
+        private final long generation;
+        private final Set<Key> keys = ConcurrentHashMap.newKeySet();
+
+        private MetricBlocks(final long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private final Cache<Key, SampleColumns> cache;
+    private final ConcurrentHashMap<String, MetricBlocks> blocksByMetric = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+    private final int bucketsPerBlock;
+    private final long sealDelayMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public FetchResultCache(final long maxBytes, final int bucketsPerBlock, final long sealDelayMillis) {
+        this.bucketsPerBlock = bucketsPerBlock;
+        this.sealDelayMillis = sealDelayMillis;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, SampleColumns columns) -> (int) Math.min(Integer.MAX_VALUE, weigh(key, columns)))
+                .removalListener(notification -> {
+                    if (notification.wasEvicted()) {
+                        // no locking here: the listener runs within put() which holds the lock of another metric
+                        final Key key = (Key) notification.getKey();
+                        final MetricBlocks blocks = blocksByMetric.get(key.metricKey);
+                        if (blocks != null) {
+                            blocks.keys.remove(key);
+                        }
+                    }
+                })
+                .build();
+    }
+
+    private static long weigh(final Key key, final SampleColumns columns) {
+        // key with its string + cache entry
+        return 64 + 2L * key.metricKey.length() + columns.estimateMemoryBytes();
+    }
+
+    /**
+     * Only aggregated results have stable buckets.
+     */
+    public boolean isCacheable(final Aggregation aggregation, final long stepMillis) {
+        return aggregation != Aggregation.NONE && stepMillis > 0;
+    }
+
+    public int getBucketsPerBlock() {
+        return bucketsPerBlock;
+    }
+
+    /**
+     * @return the time up to which blocks are sealed.
+     */
+    public long getSealedUntil(final long now) {
+        return now - sealDelayMillis;
+    }
+
+    /**
+     * @return the start of the bucket (or block, if the block width is given) containing the time, like time_bucket().
+     */
+    public static long alignDown(final long timeMillis, final long widthMillis) {
+        return ORIGIN_MILLIS + Math.floorDiv(timeMillis - ORIGIN_MILLIS, widthMillis) * widthMillis;
+    }
+
+    /**
+     * @return the cached block or null.
+     */
+    public SampleColumns get(final String metricKey, final Aggregation aggregation, final long stepMillis, final long blockStart) {
+        final SampleColumns columns = cache.getIfPresent(new Key(metricKey, aggregation, stepMillis, blockStart));
+        if (columns == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return columns;
+    }
+
+    /**
+     * @return the current generation of the metric, to be taken before its blocks are fetched and passed to
+     * {@link #put(String, Aggregation, long, long, SampleColumns, long)}.
+     */
+    public long getGeneration(final String metricKey) {
+        return blocksByMetric.computeIfAbsent(metricKey, key -> new MetricBlocks(generations.incrementAndGet())).generation;
+    }
+
+    /**
+     * Caches the block unless the metric was invalidated since the generation was taken.
+     */
+    public void put(final String metricKey, final Aggregation aggregation, final long stepMillis, final long blockStart,
+                    final SampleColumns columns, final long generation) {
+        final MetricBlocks blocks = blocksByMetric.get(metricKey);
+        if (blocks == null || blocks.generation != generation) {
+            return;
+        }
+        columns.trimToSize();
+        final Key key = new Key(metricKey, aggregation, stepMillis, blockStart);
+        synchronized (blocks) {
+            // the metric may have been invalidated meanwhile
+            if (blocksByMetric.get(metricKey) == blocks) {
+                blocks.keys.add(key);
+                cache.put(key, columns);
+            }
+        }
+    }
+
+    /**
+     * Removes all blocks of the given metrics, e.g. because they were deleted or late samples were written.
+     */
+    public void invalidate(final Collection<String> metricKeys) {
+        for (String metricKey : metricKeys) {
+            final MetricBlocks blocks = blocksByMetric.remove(metricKey);
+            if (blocks != null) {
+                synchronized (blocks) {
+                    cache.invalidateAll(blocks.keys);
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        invalidate(blocksByMetric.keySet());
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        final long hitCount = getHitCount();
+        final long total = hitCount + getMissCount();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the estimated heap used by the cached blocks.
+     */
+    public long getEstimatedMemoryBytes() {
+        long bytes = 0;
+        for (Map.Entry<Key, SampleColumns> entry : cache.asMap().entrySet()) {
+            bytes += weigh(entry.getKey(), entry.getValue());
+        }
+        return bytes;
+    }
+}
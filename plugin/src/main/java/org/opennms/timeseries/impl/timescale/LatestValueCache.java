@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latest sample of each metric, keyed by metric id. Updated after every committed write, so that dashboards and
+ * status pages asking for the current value of many metrics don't have to search the hypertable.
+ *
+ * The cache is a fixed set of primitive arrays: its memory doesn't grow with the number of metrics. It is organized in
+ * sets of WAYS slots, a metric id can only live in the slots of its set. If all slots of a set are taken, the metric with
+ * the oldest sample is evicted: metrics which are still collected stay, the ones that stopped reporting drop out.
+ * Sets are guarded by striped locks, writers of different metrics rarely block each other.
+ */
+public class LatestValueCache {
+
+    private static final int WAYS = 8;
+
+    private static final int STRIPES = 64;
+
+    /** Metric ids come from a sequence starting at 1. */
+    private static final int EMPTY = 0;
+
+    public interface ValueConsumer {
+        void accept(long timeMillis, double value);
+    }
+
+    private final int setMask;
+
+    private final int setShift;
+
+    private final int[] ids;
+
+    private final long[] times;
+
+    private final double[] values;
+
+    private final Object[] locks = new Object[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxSize the maximum number of metrics, rounded down to a power of two (but at least WAYS).
+     */
+    public LatestValueCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive, got " + maxSize);
+        }
+        final int sets = Integer.highestOneBit(Math.max(1, maxSize / WAYS));
+        this.setMask = sets - 1;
+        this.setShift = 32 - Integer.numberOfTrailingZeros(sets);
+        this.ids = new int[sets * WAYS];
+        this.times = new long[sets * WAYS];
+        this.values = new double[sets * WAYS];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private int setOf(final int id) {
+        // fibonacci hashing: consecutive ids are spread over all sets
+        return ((id * 0x9E3779B9) >>> setShift) & setMask;
+    }
+
+    private Object lockOf(final int set) {
+        return locks[set & (STRIPES - 1)];
+    }
+
+    /**
+     * Updates the sample of a cached metric, unless the cached sample is newer. Used by the write path: a written sample
+     * may be late, e.g. replayed from the spool, so it can't start a slot of its own without knowing the database.
+     */
+    public void updateIfPresent(final int id, final long timeMillis, final double value) {
+        final int set = setOf(id);
+        final int first = set * WAYS;
+        synchronized (lockOf(set)) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (ids[i] == id) {
+                    if (timeMillis >= times[i]) {
+                        times[i] = timeMillis;
+                        values[i] = value;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers the sample, unless a newer sample of the metric is already known. Only for samples known to be the
+     * latest in the database.
+     */
+    public void update(final int id, final long timeMillis, final double value) {
+        final int set = setOf(id);
+        final int first = set * WAYS;
+        synchronized (lockOf(set)) {
+            int victim = first;
+            long oldest = Long.MAX_VALUE;
+            for (int i = first; i < first + WAYS; i++) {
+                if (ids[i] == id) {
+                    if (timeMillis >= times[i]) {
+                        times[i] = timeMillis;
+                        values[i] = value;
+                    }
+                    return;
+                }
+                if (ids[i] == EMPTY) {
+                    if (oldest != Long.MIN_VALUE) {
+                        victim = i;
+                        oldest = Long.MIN_VALUE;
+                    }
+                } else if (times[i] < oldest) {
+                    victim = i;
+                    oldest = times[i];
+                }
+            }
+            ids[victim] = id;
+            times[victim] = timeMillis;
+            values[victim] = value;
+        }
+    }
+
+    /**
+     * Hands the latest sample of the metric to the consumer.
+     * @return false if the metric is not cached.
+     */
+    public boolean get(final int id, final ValueConsumer consumer) {
+        final int set = setOf(id);
+        final int first = set * WAYS;
+        long time = 0;
+        double value = 0;
+        boolean found = false;
+        synchronized (lockOf(set)) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (ids[i] == id) {
+                    time = times[i];
+                    value = values[i];
+                    found = true;
+                    break;
+                }
+            }
+        }
+        if (!found) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        consumer.accept(time, value);
+        return true;
+    }
+
+    public void invalidate(final int id) {
+        final int set = setOf(id);
+        final int first = set * WAYS;
+        synchronized (lockOf(set)) {
+            for (int i = first; i < first + WAYS; i++) {
+                if (ids[i] == id) {
+                    ids[i] = EMPTY;
+                    return;
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                for (int set = stripe; set <= setMask; set += STRIPES) {
+                    Arrays.fill(ids, set * WAYS, (set + 1) * WAYS, EMPTY);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots, the maximum number of cached metrics.
+     */
+    public int capacity() {
+        return ids.length;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                for (int set = stripe; set <= setMask; set += STRIPES) {
+                    for (int i = set * WAYS; i < (set + 1) * WAYS; i++) {
+                        if (ids[i] != EMPTY) {
+                            size++;
+                        }
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        final long hitCount = getHitCount();
+        final long total = hitCount + getMissCount();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the heap used by the slots: 20 bytes per metric.
+     */
+    public long getEstimatedMemoryBytes() {
+        return (4L + 8L + 8L) * ids.length;
+    }
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Arrays;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+/**
+ * Downsamples one series with Largest-Triangle-Three-Buckets in a single streaming pass.
+ *
+ * The classic algorithm splits the samples into buckets of equal count, which needs the number of samples up front.
+ * Here the time range of the request is split into buckets of equal width instead, so the samples can be processed
+ * as they come from the cursor: only the samples of the current and the next bucket are held in memory.
+ * The first and the last sample are always kept. Of every other bucket, the sample forming the largest triangle with
+ * the previously kept sample and the average of the next bucket is kept, which preserves peaks and dips.
+ *
+ * The result has at most maxPoints samples. Samples must be added in ascending order of time. Not thread safe.
+ */
+class LttbDownsampler {
+
+    interface PointConsumer {
+        void accept(long timeMillis, double value) throws StorageException;
+    }
+
+    private final long start;
+    private final long width;
+    private final int buckets;
+    private final PointConsumer consumer;
+
+    private boolean first = true;
+    private long selectedTime;
+    private double selectedValue;
+
+    private final Bucket current = new Bucket();
+    private final Bucket next = new Bucket();
+
+    /**
+     * @param maxPoints at least 3: the first, the last and one point per bucket in between.
+     */
+    LttbDownsampler(final long start, final long end, final int maxPoints, final PointConsumer consumer) {
+        if (maxPoints < 3) {
+            throw new IllegalArgumentException("maxPoints must be at least 3 but was " + maxPoints);
+        }
+        this.start = start;
+        this.width = Math.max(1, end - start);
+        this.buckets = maxPoints - 2;
+        this.consumer = consumer;
+    }
+
+    void add(final long time, final double value) throws StorageException {
+        if (first) {
+            first = false;
+            select(time, value);
+            return;
+        }
+        final int index = bucketOf(time);
+        if (!next.isEmpty() && index != next.index) {
+            // the next bucket is complete: its average is known and the current bucket can be decided
+            shift(next.averageTime(), next.averageValue());
+        }
+        if (next.isEmpty()) {
+            next.index = index;
+        }
+        next.add(time, value);
+    }
+
+    /**
+     * Emits the remaining samples, call it after the last sample was added.
+     */
+    void finish() throws StorageException {
+        if (next.isEmpty()) {
+            return; // no samples or just the first one
+        }
+        final long lastTime = next.lastTime();
+        final double lastValue = next.lastValue();
+        next.removeLast();
+        if (!next.isEmpty()) {
+            shift(next.averageTime(), next.averageValue());
+        }
+        shift(lastTime, lastValue);
+        select(lastTime, lastValue);
+    }
+
+    /**
+     * Selects the point of the current bucket with the largest triangle, given the average of the bucket after it.
+     * Then the next bucket becomes the current one.
+     */
+    private void shift(final long nextTime, final double nextValue) throws StorageException {
+        if (!current.isEmpty()) {
+            int selected = 0;
+            double maxArea = -1;
+            for (int i = 0; i < current.size; i++) {
+                // twice the area, the factor doesn't matter for the comparison
+                final double area = Math.abs((selectedTime - nextTime) * (current.values[i] - selectedValue)
+                        - (selectedTime - current.times[i]) * (nextValue - selectedValue));
+                if (area > maxArea) { // false for NaN
+                    maxArea = area;
+                    selected = i;
+                }
+            }
+            select(current.times[selected], current.values[selected]);
+        }
+        current.moveFrom(next);
+    }
+
+    private void select(final long time, final double value) throws StorageException {
+        selectedTime = time;
+        selectedValue = value;
+        consumer.accept(time, value);
+    }
+
+    private int bucketOf(final long time) {
+        final long index = (time - start) * buckets / width;
+        return (int) Math.max(0, Math.min(buckets - 1, index));
+    }
+
+    private static class Bucket {
+        private int index;
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(final long time, final double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+        }
+
+        long lastTime() {
+            return times[size - 1];
+        }
+
+        double lastValue() {
+            return values[size - 1];
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        long averageTime() {
+            // relative to the first sample to stay away from overflows
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += times[i] - times[0];
+            }
+            return times[0] + sum / size;
+        }
+
+        double averageValue() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum / size;
+        }
+
+        /**
+         * Takes over the samples of the other bucket and leaves it empty. The arrays are swapped to avoid copying.
+         */
+        void moveFrom(final Bucket other) {
+            final long[] t = times;
+            final double[] v = values;
+            times = other.times;
+            values = other.values;
+            size = other.size;
+            index = other.index;
+            other.times = t;
+            other.values = v;
+            other.size = 0;
+        }
+    }
+}
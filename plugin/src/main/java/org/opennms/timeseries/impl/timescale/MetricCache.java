@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the database id of metric keys and remembers the metrics whose tags have already been persisted, so that we
+ * don't need to look up the id or write the tags again for every sample.
+ * Since {@link Metric#equals(Object)} only looks at the intrinsic tags we also compare meta and external tags: a changed
+ * meta or external tag counts as a miss and the tags are written again.
+ */
+public class MetricCache {
+
+    private static class Entry {
+        private final int id;
+        /** The metric whose tags are persisted, null if we only know the id. */
+        private final Metric persistedMetric;
+
+        private Entry(final int id, final Metric persistedMetric) {
+            this.id = id;
+            this.persistedMetric = persistedMetric;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public MetricCache(final long maxSize, final long expireAfterSeconds) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfterSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the database id of the metric key or null if unknown.
+     */
+    public Integer getId(final String key) {
+        final Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.id;
+    }
+
+    /**
+     * @return true if the metric, including its meta and external tags, has already been persisted.
+     */
+    public boolean isPersisted(final Metric metric) {
+        final Entry entry = cache.getIfPresent(metric.getKey());
+        if (entry != null && entry.persistedMetric != null && hasSameTags(entry.persistedMetric, metric)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * @return true if both metrics have the same key (intrinsic tags), meta and external tags.
+     */
+    static boolean hasSameTags(final Metric a, final Metric b) {
+        return Objects.equals(a.getKey(), b.getKey())
+                && Objects.equals(a.getMetaTags(), b.getMetaTags())
+                && Objects.equals(a.getExternalTags(), b.getExternalTags());
+    }
+
+    /**
+     * Remembers the id of a metric key without touching the information about persisted tags.
+     */
+    public void putId(final String key, final int id) {
+        cache.asMap().compute(key, (k, entry) -> entry != null && entry.id == id ? entry : new Entry(id, null));
+    }
+
+    public void markPersisted(final int id, final Metric metric) {
+        cache.put(metric.getKey(), new Entry(id, metric));
+    }
+
+    public void invalidate(final Metric metric) {
+        cache.invalidate(metric.getKey());
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+/**
+ * Thrown by {@link ShardedTimescaleStorage#store(List)} if the samples of some shards could not be written while the
+ * samples of the other shards are written. Only the failed samples must be stored again: the hypertable has no unique
+ * key, retrying the whole call would store the written samples twice.
+ */
+public class PartialStoreException extends StorageException {
+
+    private final List<Sample> failedSamples;
+    private final List<String> storedShards;
+    private final List<String> failedShards;
+
+    public PartialStoreException(final List<Sample> failedSamples, final List<String> storedShards, final List<String> failedShards, final Throwable cause) {
+        super(String.format("Could not store %s samples on %s, the samples of %s are stored.", failedSamples.size(), failedShards, storedShards), cause);
+        this.failedSamples = Collections.unmodifiableList(failedSamples);
+        this.storedShards = Collections.unmodifiableList(storedShards);
+        this.failedShards = Collections.unmodifiableList(failedShards);
+    }
+
+    /**
+     * @return the samples which are not written, to be stored again.
+     */
+    public List<Sample> getFailedSamples() {
+        return failedSamples;
+    }
+
+    public List<String> getStoredShards() {
+        return storedShards;
+    }
+
+    public List<String> getFailedShards() {
+        return failedShards;
+    }
+}
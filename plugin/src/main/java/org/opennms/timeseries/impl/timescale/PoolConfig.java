@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import lombok.Data;
+
+/**
+ * Settings of one of the connection pools the plugin creates when dedicatedPoolsEnabled is set.
+ */
+@Data
+public class PoolConfig {
+
+    /** Maximum number of connections. */
+    private int maxSize = 10;
+
+    /** Minimum number of idle connections kept open. */
+    private int minIdle = 2;
+
+    /** Time to wait for a connection before giving up. */
+    private long connectionTimeoutMillis = 30_000;
+
+    /** Idle connections above minIdle are closed after this time. */
+    private long idleTimeoutMillis = 600_000;
+
+    /** Connections are replaced after this time. */
+    private long maxLifetimeMillis = 1_800_000;
+
+    /** Number of prepared statements the driver caches per connection (preparedStatementCacheQueries). */
+    private int statementCacheQueries = 256;
+
+    /** Number of executions after which the driver switches to a server side prepared statement (prepareThreshold). */
+    private int prepareThreshold = 5;
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.opennms.timeseries.impl.timescale.util.RateLimitedLog;
+
+import com.google.common.base.Splitter;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads queries over streaming replicas of the database, round robin. A replica is skipped if
+ * <ul>
+ *   <li>its last health check or connection attempt failed,</li>
+ *   <li>its replication lag exceeds replicaMaxLagMillis or</li>
+ *   <li>the query ends within its lag window: the replica might not have the latest samples yet.</li>
+ * </ul>
+ * If no replica qualifies, the query goes to the primary. The health and lag of every replica are checked periodically.
+ */
+@Slf4j
+public class ReplicaRouter implements ReplicaRouterMXBean, AutoCloseable {
+
+    private static final RateLimitedLog RATE_LIMITED_LOGGER = new RateLimitedLog(log, Duration.ofMinutes(1));
+
+    /**
+     * The time since the last replayed transaction, 0 if the replica has replayed everything it received.
+     * A server which is not in recovery isn't a replica (anymore), it has no lag.
+     */
+    static final String LAG_SQL = "SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0"
+            + " ELSE floor(extract(epoch from now() - pg_last_xact_replay_timestamp()) * 1000)::bigint END";
+
+    static final class Replica {
+        private final String url;
+        private final DataSource dataSource;
+        private volatile boolean healthy = false;
+        private volatile long lagMillis = -1;
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        Replica(final String url, final DataSource dataSource) {
+            this.url = url;
+            this.dataSource = dataSource;
+        }
+
+        private void markFailed() {
+            healthy = false;
+            failures.increment();
+        }
+    }
+
+    private final DataSource primary;
+    private final List<Replica> replicas;
+    private final long maxLagMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final LongAdder primaryFallbacks = new LongAdder();
+    private volatile ScheduledExecutorService healthChecker;
+
+    /**
+     * @param primary the DataSource used if no replica qualifies.
+     * @param replicas the replicas to spread the queries over.
+     */
+    ReplicaRouter(final DataSource primary, final List<Replica> replicas, final long maxLagMillis) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    /**
+     * Creates a read-only pool for each of the replicaJdbcUrls, with the settings of the read pool.
+     */
+    public static ReplicaRouter create(final DataSource primary, final TimescaleStorageConfig config) {
+        final List<Replica> replicas = new ArrayList<>();
+        for (String url : Splitter.on(',').trimResults().omitEmptyStrings().split(config.getReplicaJdbcUrls())) {
+            replicas.add(new Replica(url, ConnectionPools.createPool("timescale-replica-" + (replicas.size() + 1), url, config.getReadPool(), true, config)));
+        }
+        return new ReplicaRouter(primary, replicas, config.getReplicaMaxLagMillis());
+    }
+
+    /**
+     * Checks all replicas once, then periodically in the background.
+     */
+    public void start(final long healthCheckIntervalMillis) {
+        checkHealth();
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "timescale-replica-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::checkHealth, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        this.healthChecker = executor;
+        log.info("Routing queries to {} replicas: {}", replicas.size(), getReplicas());
+    }
+
+    void checkHealth() {
+        for (Replica replica : replicas) {
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery(LAG_SQL)) {
+                rs.next();
+                final boolean inRecovery = rs.getBoolean(1);
+                final long lag = rs.getLong(2);
+                // a replica which hasn't replayed anything yet has no lag to report
+                replica.lagMillis = !inRecovery ? 0 : rs.wasNull() ? Long.MAX_VALUE : Math.max(lag, 0);
+                replica.healthy = true;
+            } catch (SQLException | RuntimeException e) {
+                replica.markFailed();
+                RATE_LIMITED_LOGGER.warn("Health check of a replica failed, sending its queries elsewhere.", e);
+            }
+        }
+    }
+
+    /**
+     * @param end the end of the queried time range, null if the query has none (e.g. findMetrics()).
+     * @return a connection to a replica which qualifies for the query or to the primary.
+     */
+    public Connection getConnection(final Instant end) throws SQLException {
+        Replica replica;
+        while ((replica = select(end, System.currentTimeMillis())) != null) {
+            try {
+                final Connection connection = replica.dataSource.getConnection();
+                replica.queries.increment();
+                return connection;
+            } catch (SQLException e) {
+                replica.markFailed();
+                RATE_LIMITED_LOGGER.warn("Could not connect to a replica, trying the next one.", e);
+            }
+        }
+        primaryFallbacks.increment();
+        return primary.getConnection();
+    }
+
+    Replica select(final Instant end, final long now) {
+        final int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        final int first = Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            final Replica replica = replicas.get((first + i) % size);
+            final long lag = replica.lagMillis;
+            if (replica.healthy && lag >= 0 && lag <= maxLagMillis && (end == null || end.toEpochMilli() <= now - lag)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<ReplicaStats> getReplicas() {
+        final List<ReplicaStats> stats = new ArrayList<>(replicas.size());
+        for (Replica replica : replicas) {
+            stats.add(new ReplicaStats(replica.url, replica.healthy, replica.lagMillis == Long.MAX_VALUE ? -1 : replica.lagMillis,
+                    replica.queries.sum(), replica.failures.sum()));
+        }
+        return stats;
+    }
+
+    @Override
+    public long getPrimaryFallbacks() {
+        return primaryFallbacks.sum();
+    }
+
+    @Override
+    public void close() {
+        final ScheduledExecutorService executor = this.healthChecker;
+        if (executor != null) {
+            this.healthChecker = null;
+            executor.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            ConnectionPools.closePool(replica.dataSource);
+        }
+    }
+}
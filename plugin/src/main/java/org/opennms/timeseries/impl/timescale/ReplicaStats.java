@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the state of one read replica, exposed as composite data via JMX.
+ */
+public class ReplicaStats {
+
+    private final String url;
+    private final boolean healthy;
+    private final long lagMillis;
+    private final long queries;
+    private final long failures;
+
+    @ConstructorProperties({"url", "healthy", "lagMillis", "queries", "failures"})
+    public ReplicaStats(final String url, final boolean healthy, final long lagMillis, final long queries, final long failures) {
+        this.url = url;
+        this.healthy = healthy;
+        this.lagMillis = lagMillis;
+        this.queries = queries;
+        this.failures = failures;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return false if the last health check or connection attempt failed.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return the replication lag measured by the last health check, -1 if unknown.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * @return the number of connections handed out for queries.
+     */
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of failed health checks and connection attempts.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: healthy=%s, lag=%sms, queries=%s, failures=%s", url, healthy, lagMillis, queries, failures);
+    }
+}
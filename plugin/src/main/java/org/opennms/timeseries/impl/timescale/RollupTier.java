@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A pre-aggregated copy of timescale_time_series, maintained by TimescaleDB as a continuous aggregate.
+ * Each tier holds min, max, avg and count of the samples per metric and bucket.
+ */
+public enum RollupTier {
+    FIVE_MINUTES("5m", Duration.ofMinutes(5)),
+    ONE_HOUR("1h", Duration.ofHours(1)),
+    ONE_DAY("1d", Duration.ofDays(1));
+
+    private final String shortName;
+    private final Duration width;
+
+    RollupTier(final String shortName, final Duration width) {
+        this.shortName = shortName;
+        this.width = width;
+    }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    public Duration getWidth() {
+        return width;
+    }
+
+    public String getViewName() {
+        return "timescale_time_series_" + shortName;
+    }
+
+    /**
+     * A tier can serve a request if its buckets fit exactly into the requested step.
+     */
+    public boolean canServe(final Duration step) {
+        return !step.isZero() && step.getSeconds() % width.getSeconds() == 0;
+    }
+
+    /**
+     * Parses a comma separated list of short names, e.g. "5m,1h,1d".
+     *
+     * @return the tiers, coarsest first.
+     */
+    public static List<RollupTier> parse(final String tiers) {
+        final List<RollupTier> result = new ArrayList<>();
+        if (tiers == null) {
+            return result;
+        }
+        for (String name : tiers.split(",")) {
+            final String trimmed = name.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            result.add(fromShortName(trimmed));
+        }
+        result.sort(Comparator.comparing(RollupTier::getWidth).reversed());
+        return result;
+    }
+
+    public static RollupTier fromShortName(final String shortName) {
+        for (RollupTier tier : values()) {
+            if (tier.shortName.equalsIgnoreCase(shortName)) {
+                return tier;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rollup tier " + shortName);
+    }
+}
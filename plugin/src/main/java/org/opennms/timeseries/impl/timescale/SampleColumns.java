@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/**
+ * The samples of one metric, stored column wise in primitive arrays: 16 bytes per sample instead of a Sample, an Instant
+ * and a boxed Double each. Samples are only created when they are accessed via {@link #asList()}.
+ * Not thread safe while it is filled.
+ */
+public class SampleColumns {
+
+    private final Metric metric;
+    private long[] times;
+    private double[] values;
+    private int size = 0;
+
+    public SampleColumns(final Metric metric) {
+        this(metric, 16);
+    }
+
+    public SampleColumns(final Metric metric, final int initialCapacity) {
+        this.metric = metric;
+        this.times = new long[Math.max(initialCapacity, 1)];
+        this.values = new double[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(final long timeMillis, final double value) {
+        if (size == times.length) {
+            final int capacity = size + (size >> 1) + 1;
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        times[size] = timeMillis;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Releases unused capacity, e.g. before the columns are kept for a long time.
+     */
+    public void trimToSize() {
+        if (times.length > size) {
+            times = Arrays.copyOf(times, Math.max(size, 1));
+            values = Arrays.copyOf(values, Math.max(size, 1));
+        }
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the time of the i-th sample in milliseconds since the epoch.
+     */
+    public long getTime(final int i) {
+        checkIndex(i);
+        return times[i];
+    }
+
+    public double getValue(final int i) {
+        checkIndex(i);
+        return values[i];
+    }
+
+    public long[] toTimeArray() {
+        return Arrays.copyOf(times, size);
+    }
+
+    public double[] toValueArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return a read only view of the samples. The Sample objects are created on access and not retained.
+     */
+    public List<Sample> asList() {
+        return new SampleList();
+    }
+
+    public long estimateMemoryBytes() {
+        // object + two arrays with headers
+        return 24 + 2 * 16 + 8L * times.length + 8L * values.length;
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    private class SampleList extends AbstractList<Sample> implements RandomAccess {
+        @Override
+        public Sample get(final int i) {
+            checkIndex(i);
+            return ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(times[i]))
+                    .value(values[i])
+                    .build();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Streams samples into timescale_time_series using the binary COPY protocol of PostgreSQL.
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4 for the format.
+ *
+ * Rows are encoded into a fixed size buffer which is handed to the driver whenever it is full. The buffer is reused for
+ * all rows of an encoder, so there is no allocation per row. Not thread safe.
+ */
+class SampleCopyEncoder {
+
+    static final String COPY_SQL = "COPY timescale_time_series(time, fk_timescale_metric, value) FROM STDIN (FORMAT binary)";
+
+    private static final byte[] HEADER = {
+            'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0, // signature
+            0, 0, 0, 0, // flags
+            0, 0, 0, 0  // header extension length
+    };
+
+    /** Postgres timestamps are microseconds since 2000-01-01 00:00:00 UTC. */
+    private static final long POSTGRES_EPOCH_MILLIS = 946_684_800_000L;
+
+    private static final short FIELD_COUNT = 3;
+
+    /** fields count + time (length + int8) + metric id (length + int4) + value (length + float8) */
+    private static final int ROW_SIZE = 2 + (4 + 8) + (4 + 4) + (4 + 8);
+
+    private final ByteBuffer buffer;
+
+    SampleCopyEncoder(final int bufferSize) {
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, HEADER.length + ROW_SIZE));
+    }
+
+    /**
+     * @return true if the connection is backed by the pgjdbc driver and thus supports the copy api.
+     */
+    static boolean isCopySupported(final Connection connection) {
+        try {
+            return connection.isWrapperFor(PGConnection.class);
+        } catch (SQLException | NoClassDefFoundError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies all samples within one COPY statement.
+     * @param metricIds the database ids of all metric keys of the given samples
+     * @return the number of rows written
+     */
+    long copy(final Connection connection, final List<Sample> samples, final Map<String, Integer> metricIds) throws SQLException {
+        final CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+        try {
+            buffer.clear();
+            buffer.put(HEADER);
+            for (Sample sample : samples) {
+                writeRow(copyIn, sample, metricIds.get(sample.getMetric().getKey()));
+            }
+            ensureCapacity(copyIn, 2);
+            buffer.putShort((short) -1); // trailer
+            flush(copyIn);
+            return copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    private void writeRow(final CopyIn copyIn, final Sample sample, final int metricId) throws SQLException {
+        ensureCapacity(copyIn, ROW_SIZE);
+
+        buffer.putShort(FIELD_COUNT);
+
+        buffer.putInt(8);
+        buffer.putLong((sample.getTime().toEpochMilli() - POSTGRES_EPOCH_MILLIS) * 1000L);
+
+        buffer.putInt(4);
+        buffer.putInt(metricId);
+
+        final Double value = sample.getValue();
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(8);
+            buffer.putDouble(value);
+        }
+    }
+
+    private void ensureCapacity(final CopyIn copyIn, final int bytes) throws SQLException {
+        if (buffer.remaining() < bytes) {
+            flush(copyIn);
+        }
+    }
+
+    private void flush(final CopyIn copyIn) throws SQLException {
+        if (buffer.position() > 0) {
+            copyIn.writeToCopy(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A write-ahead spool on local disk for samples which can't be written to the database right now, e.g. during a
+ * maintenance window. The samples are appended to memory-mapped segment files (see {@link SpoolSegment} for the format),
+ * so the backlog doesn't live on the heap. {@link SpoolReplayer} drains the spool, oldest segment first, and deletes
+ * segments once they are replayed.
+ *
+ * The disk usage is bounded by maxBytes: a new segment is only created if it fits, otherwise append() fails.
+ * The data is written to the page cache: it survives a crash of the JVM, not necessarily one of the operating system.
+ */
+@Slf4j
+public class SampleSpool implements SampleSpoolMXBean {
+
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * Samples read from the spool, to be committed once they are written to the database.
+     */
+    static class Batch {
+        private final SpoolSegment segment;
+        private final List<Sample> samples;
+        /** The samples at the start of the batch which are committed already. */
+        private int committed;
+
+        private Batch(final SpoolSegment segment, final List<Sample> samples) {
+            this.segment = segment;
+            this.samples = samples;
+        }
+
+        List<Sample> getSamples() {
+            return samples;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    /** Oldest first, the last one is written to unless it is sealed. */
+    private final Deque<SpoolSegment> segments = new ArrayDeque<>();
+    private long nextSequence = 0;
+
+    private final AtomicLong pendingSamples = new AtomicLong();
+    private final LongAdder spooledSamples = new LongAdder();
+    private final LongAdder replayedSamples = new LongAdder();
+    private final LongAdder droppedSamples = new LongAdder();
+    private final LongAdder discardedSamples = new LongAdder();
+
+    SampleSpool(final Path directory, final int segmentBytes, final long maxBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the segments left over from a previous run, their samples are replayed first.
+     */
+    synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        final TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                final String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in the spool directory.", file);
+                }
+            }
+        }
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            final SpoolSegment segment;
+            try {
+                segment = SpoolSegment.open(file.getKey(), file.getValue());
+            } catch (IOException e) {
+                log.error("Could not open spool segment {}, its samples are lost.", file.getValue(), e);
+                delete(file.getValue());
+                continue;
+            }
+            if (segment.isReplayed()) {
+                delete(file.getValue());
+            } else {
+                segments.addLast(segment);
+                pendingSamples.addAndGet(segment.getPendingSamples());
+            }
+        }
+        nextSequence = files.isEmpty() ? 0 : files.lastKey() + 1;
+        if (!segments.isEmpty()) {
+            log.info("Found {} samples in the spool directory {}, they will be replayed.", getPendingSamples(), directory);
+        }
+    }
+
+    /**
+     * Appends the samples to the current segment, rotating to new segments as they fill up.
+     *
+     * @throws StorageException if the spool is full. The samples which fit are kept and will be replayed, the rest are
+     *                          lost: the message tells how many were kept. Retrying the whole list would spool these twice.
+     */
+    synchronized void append(final List<Sample> samples) throws StorageException {
+        int index = 0;
+        try {
+            while (index < samples.size()) {
+                SpoolSegment segment = segments.peekLast();
+                if (segment == null || segment.isSealed()) {
+                    segment = newSegment();
+                    if (segment == null) {
+                        break;
+                    }
+                }
+                final int next = segment.append(samples, index);
+                if (next == index) {
+                    if (segment.isEmpty()) {
+                        // doesn't even fit into an empty segment
+                        break;
+                    }
+                    segment.seal();
+                    segment.force();
+                }
+                index = next;
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            spooledSamples.add(index);
+            if (index > 0) {
+                pendingSamples.addAndGet(index);
+                notifyAll();
+            }
+        }
+        if (index < samples.size()) {
+            droppedSamples.add(samples.size() - index);
+            throw new StorageException(String.format("The spool is full (%s bytes): the first %s of %s samples were spooled, the remaining %s were dropped.",
+                    maxBytes, index, samples.size(), samples.size() - index));
+        }
+    }
+
+    /**
+     * @return the new segment or null if it would exceed maxBytes.
+     */
+    private SpoolSegment newSegment() throws IOException {
+        if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+            return null;
+        }
+        final long sequence = nextSequence++;
+        final SpoolSegment segment = SpoolSegment.create(sequence, directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX)), segmentBytes);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Reads the oldest samples which are not replayed yet, whole frames until at least maxSamples are read.
+     *
+     * @return the samples or null if the spool is empty.
+     */
+    synchronized Batch read(final int maxSamples) {
+        while (!segments.isEmpty()) {
+            final SpoolSegment head = segments.peekFirst();
+            if (!head.isReplayed()) {
+                final List<Sample> samples = new ArrayList<>();
+                head.read(maxSamples, samples);
+                return new Batch(head, samples);
+            }
+            if (!head.isSealed()) {
+                return null;
+            }
+            segments.pollFirst();
+            delete(head.getPath());
+        }
+        return null;
+    }
+
+    /**
+     * Marks the samples of the batch as written to the database.
+     */
+    synchronized void commit(final Batch batch) {
+        commit(batch, batch.samples.size());
+    }
+
+    /**
+     * Marks the first samples of the batch as written to the database, e.g. because a later transaction failed. They
+     * are not replayed again.
+     *
+     * @param count the samples from the start of the batch which are written, including those committed before.
+     */
+    synchronized void commit(final Batch batch, final int count) {
+        final int samples = count - batch.committed;
+        if (samples <= 0) {
+            return;
+        }
+        batch.committed = count;
+        batch.segment.commit(samples);
+        pendingSamples.addAndGet(-samples);
+        replayedSamples.add(samples);
+        if (batch.segment.isSealed() && batch.segment.isReplayed() && segments.peekFirst() == batch.segment) {
+            segments.pollFirst();
+            delete(batch.segment.getPath());
+        }
+    }
+
+    /**
+     * Removes the samples of the batch which are not committed yet without writing them, e.g. because the database
+     * refuses them.
+     */
+    synchronized void discard(final Batch batch) {
+        final int samples = batch.samples.size() - batch.committed;
+        commit(batch);
+        replayedSamples.add(-samples);
+        discardedSamples.add(samples);
+    }
+
+    /**
+     * Waits until the spool has pending samples or the timeout passed.
+     */
+    synchronized void awaitPending(final long timeoutMillis) throws InterruptedException {
+        if (getPendingSamples() == 0) {
+            wait(timeoutMillis);
+        }
+    }
+
+    /**
+     * Wakes up threads waiting in awaitPending(), e.g. on shutdown.
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Writes the pending samples to disk. The segments stay on disk and are replayed after the next start.
+     */
+    synchronized void close() {
+        for (SpoolSegment segment : segments) {
+            segment.force();
+        }
+        if (getPendingSamples() > 0) {
+            log.info("{} samples remain in the spool directory {}, they will be replayed after the next start.", getPendingSamples(), directory);
+        }
+        segments.clear();
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete spool segment {}.", file, e);
+        }
+    }
+
+    @Override
+    public long getPendingSamples() {
+        return pendingSamples.get();
+    }
+
+    @Override
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    @Override
+    public long getSpooledSamples() {
+        return spooledSamples.sum();
+    }
+
+    @Override
+    public long getReplayedSamples() {
+        return replayedSamples.sum();
+    }
+
+    @Override
+    public long getDroppedSamples() {
+        return droppedSamples.sum();
+    }
+
+    @Override
+    public long getDiscardedSamples() {
+        return discardedSamples.sum();
+    }
+}
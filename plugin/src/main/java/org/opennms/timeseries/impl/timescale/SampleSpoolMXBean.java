@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * The disk spool for samples which couldn't be written, exposed via JMX as org.opennms.plugins.tss.timescale:type=SampleSpool.
+ */
+public interface SampleSpoolMXBean {
+
+    /** Number of samples in the spool which are not replayed yet. */
+    long getPendingSamples();
+
+    int getSegmentCount();
+
+    /** Disk space taken by the segment files. */
+    long getUsedBytes();
+
+    long getSpooledSamples();
+
+    long getReplayedSamples();
+
+    /** Samples which didn't fit into the spool because it reached its maximum size. */
+    long getDroppedSamples();
+
+    /** Samples which the database refused when they were replayed, e.g. because of invalid values. */
+    long getDiscardedSamples();
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves every metric which is not on the shard owning it to its owner, e.g. after a shard was added:
+ * <ol>
+ *   <li>Append the new database to shardJdbcUrls. From now on the moved metrics are written to the new shard.</li>
+ *   <li>Run the rebalancer, e.g. via the rebalance operation of the ShardedTimescaleStorage MBean. Until it is done,
+ *   older samples of the moved metrics are missing in getTimeseries().</li>
+ * </ol>
+ * A metric is moved in batches of samples, ordered by time. Before a batch is written to the owner, the owner's samples
+ * in the time range of the batch are deleted: a run interrupted between copying and deleting the metric on the old
+ * shard can be started again without duplicating samples. Once all batches are written, the metric is deleted on the
+ * old shard. Samples written to the owner since the shard was added are kept, unless they are older than the
+ * newest sample on the old shard.
+ *
+ * Samples are moved through the live shards, so their caches and tag indexes learn about the moved metrics.
+ * The moved samples are older than the refresh windows of the rollup tiers: at the end of a run the tiers of every
+ * owner are refreshed over the time range of the samples it received.
+ */
+@Slf4j
+public class ShardRebalancer {
+
+    /** Every metric has a name, matching it lists all metrics of a shard. */
+    private static final TagMatcher ALL_METRICS = ImmutableTagMatcher.builder()
+            .type(TagMatcher.Type.EQUALS_REGEX)
+            .key(IntrinsicTagNames.name)
+            .value(".*")
+            .build();
+
+    private static final int BATCH_SIZE = 10_000;
+
+    @Data
+    public static class Result {
+        private int metricsChecked;
+        private int metricsMoved;
+        private long samplesMoved;
+    }
+
+    private final ShardedTimescaleStorage storage;
+
+    private final int batchSize;
+
+    public ShardRebalancer(final ShardedTimescaleStorage storage) {
+        this(storage, BATCH_SIZE);
+    }
+
+    ShardRebalancer(final ShardedTimescaleStorage storage, final int batchSize) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+    }
+
+    public Result rebalance() throws StorageException {
+        final Result result = new Result();
+        final List<TimescaleStorage> shards = storage.getShards();
+        // owner => time range of the samples it received
+        final Map<TimescaleStorage, Instant[]> movedRanges = new IdentityHashMap<>();
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                final TimescaleStorage shard = shards.get(i);
+                for (Metric metric : shard.findMetrics(Collections.singletonList(ALL_METRICS))) {
+                    result.metricsChecked++;
+                    final TimescaleStorage owner = storage.getShard(metric);
+                    if (owner != shard) {
+                        result.samplesMoved += move(metric, shard, owner, movedRanges.computeIfAbsent(owner, o -> new Instant[2]));
+                        result.metricsMoved++;
+                    }
+                }
+                log.info("Rebalanced {}: {} of {} metrics moved so far.", ShardedTimescaleStorage.shardName(i), result.metricsMoved, result.metricsChecked);
+            }
+        } finally {
+            // also after a failure: the metrics moved so far are deleted on their old shards already
+            refreshRollups(movedRanges);
+        }
+        return result;
+    }
+
+    private static void refreshRollups(final Map<TimescaleStorage, Instant[]> movedRanges) {
+        for (Map.Entry<TimescaleStorage, Instant[]> range : movedRanges.entrySet()) {
+            if (range.getValue()[0] == null) {
+                continue;
+            }
+            try {
+                range.getKey().refreshRollups(range.getValue()[0], range.getValue()[1]);
+            } catch (StorageException e) {
+                log.error("Could not refresh the rollup tiers between {} and {} after moving metrics, queries might miss the moved samples"
+                        + " until the tiers are refreshed.", range.getValue()[0], range.getValue()[1], e);
+            }
+        }
+    }
+
+    /**
+     * @param range the first and last time of the moved samples, extended by the samples of this metric.
+     */
+    private long move(final Metric metric, final TimescaleStorage from, final TimescaleStorage to, final Instant[] range) throws StorageException {
+        final List<Sample> batch = new ArrayList<>(batchSize);
+        final long[] count = new long[1];
+        from.exportSamples(metric, sample -> {
+            if (range[0] == null || sample.getTime().isBefore(range[0])) {
+                range[0] = sample.getTime();
+            }
+            if (range[1] == null || sample.getTime().isAfter(range[1])) {
+                range[1] = sample.getTime();
+            }
+            // samples with the same time stay in one batch, the time ranges of the batches don't overlap
+            if (batch.size() >= batchSize && !sample.getTime().equals(batch.get(batch.size() - 1).getTime())) {
+                count[0] += replace(batch, to);
+                batch.clear();
+            }
+            batch.add(sample);
+        });
+        if (!batch.isEmpty()) {
+            count[0] += replace(batch, to);
+        }
+        // a metric without samples, e.g. after they were dropped by the retention, is only deleted
+        from.delete(metric);
+        return count[0];
+    }
+
+    /**
+     * Writes the batch, replacing what a previous run may have copied already.
+     */
+    private static int replace(final List<Sample> batch, final TimescaleStorage to) throws StorageException {
+        final Sample first = batch.get(0);
+        to.deleteSamples(first.getMetric(), first.getTime(), batch.get(batch.size() - 1).getTime());
+        // synchronously, even with asyncWrites: the metric is deleted on the old shard afterwards
+        to.writeSamples(batch);
+        return batch.size();
+    }
+}
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.sql.DataSource;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.timeseries.impl.timescale.util.ConsistentHashRing;
+
+import com.google.common.base.Splitter;
+import com.zaxxer.hikari.HikariDataSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads the metrics over several TimescaleDB databases, each one a {@link TimescaleStorage} of its own.
+ * Every metric key belongs to one shard, chosen by consistent hashing:
+ * <ul>
+ *   <li>store() splits the samples by shard and writes to all shards in parallel. If some shards fail, a
+ *   {@link PartialStoreException} tells which samples are not written.</li>
+ *   <li>getTimeseries() goes to the shard owning the metric.</li>
+ *   <li>findMetrics() asks all shards in parallel and merges the results.</li>
+ *   <li>delete() deletes on all shards, in case a rebalancing left a copy behind.</li>
+ * </ul>
+ * The shards are named by their position (shard-0, shard-1, ...), which places them on the hash ring. Adding a shard
+ * at the end moves about 1/n of the metrics to it, see {@link ShardRebalancer}.
+ */
+@Slf4j
+public class ShardedTimescaleStorage implements TimeSeriesStorage, ShardedTimescaleStorageMXBean {
+
+    private static final String MBEAN_NAME = "org.opennms.plugins.tss.timescale:type=ShardedTimescaleStorage";
+
+    private final List<TimescaleStorage> shards = new ArrayList<>();
+
+    private final ConsistentHashRing<TimescaleStorage> ring;
+
+    private final TimescaleStorageConfig config;
+
+    /** The pools we created for the shardJdbcUrls and need to close. */
+    private final List<HikariDataSource> ownedPools = new ArrayList<>();
+
+    /** Writes to the shards in parallel, null until init(). Separate from reads: slow fetches don't hold up writes. */
+    private volatile ExecutorService writeExecutor;
+
+    /** Reads from the shards in parallel, null until init(). */
+    private volatile ExecutorService readExecutor;
+
+    private final AtomicBoolean rebalancing = new AtomicBoolean();
+
+    private final AtomicReference<ShardRebalancer.Result> lastRebalance = new AtomicReference<>();
+
+    private ObjectName mbeanName;
+
+    public ShardedTimescaleStorage(final List<? extends DataSource> dataSources, final TimescaleStorageConfig config) {
+        if (dataSources.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        this.config = Objects.requireNonNull(config);
+        final Map<String, TimescaleStorage> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < dataSources.size(); i++) {
+            final TimescaleStorage shard = new TimescaleStorage(dataSources.get(i), config, shardName(i));
+            shards.add(shard);
+            nodes.put(shardName(i), shard);
+        }
+        this.ring = new ConsistentHashRing<>(nodes, config.getShardVirtualNodes());
+    }
+
+    /**
+     * Creates a pool with the settings of the write pool for each of the shardJdbcUrls.
+     */
+    public static ShardedTimescaleStorage create(final TimescaleStorageConfig config) {
+        final List<HikariDataSource> pools = new ArrayList<>();
+        try {
+            int i = 0;
+            for (String url : Splitter.on(',').trimResults().omitEmptyStrings().split(config.getShardJdbcUrls())) {
+                pools.add(ConnectionPools.createPool("timescale-" + shardName(i++), url, config.getWritePool(), false, config));
+            }
+            final ShardedTimescaleStorage storage = new ShardedTimescaleStorage(pools, config);
+            storage.ownedPools.addAll(pools);
+            log.info("Sharding metrics over {} databases: {}", pools.size(), config.getShardJdbcUrls());
+            return storage;
+        } catch (RuntimeException e) {
+            pools.forEach(HikariDataSource::close);
+            throw e;
+        }
+    }
+
+    static String shardName(final int index) {
+        return "shard-" + index;
+    }
+
+    @Override
+    public void store(final List<Sample> entries) throws StorageException {
+        final Map<TimescaleStorage, List<Sample>> samplesByShard = new IdentityHashMap<>();
+        for (Sample sample : entries) {
+            samplesByShard.computeIfAbsent(getShard(sample.getMetric()), s -> new ArrayList<>()).add(sample);
+        }
+        final List<TimescaleStorage> targets = new ArrayList<>(samplesByShard.keySet());
+        final List<Callable<Void>> tasks = new ArrayList<>(targets.size());
+        for (TimescaleStorage shard : targets) {
+            tasks.add(() -> {
+                shard.store(samplesByShard.get(shard));
+                return null;
+            });
+        }
+        final List<Exception> failures = runAll(writeExecutor, tasks, new ArrayList<>());
+        final List<Sample> failedSamples = new ArrayList<>();
+        final List<String> storedShards = new ArrayList<>();
+        final List<String> failedShards = new ArrayList<>();
+        Exception cause = null;
+        for (int i = 0; i < targets.size(); i++) {
+            final String name = shardName(shards.indexOf(targets.get(i)));
+            final Exception failure = failures.get(i);
+            if (failure == null) {
+                storedShards.add(name);
+                continue;
+            }
+            failedShards.add(name);
+            failedSamples.addAll(samplesByShard.get(targets.get(i)));
+            if (cause == null) {
+                cause = failure;
+            } else {
+                cause.addSuppressed(failure);
+            }
+        }
+        if (cause == null) {
+            return;
+        }
+        if (storedShards.isEmpty() && cause instanceof StorageException) {
+            // nothing is written, the whole call can be retried
+            throw (StorageException) cause;
+        }
+        // the samples of the other shards are written, retrying them would store them twice
+        throw new PartialStoreException(failedSamples, storedShards, failedShards, cause);
+    }
+
+    @Override
+    public List<Metric> findMetrics(final Collection<TagMatcher> matchers) throws StorageException {
+        Objects.requireNonNull(matchers, "tags collection can not be null");
+        if (matchers.isEmpty()) {
+            throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
+        }
+        final List<Callable<List<Metric>>> tasks = new ArrayList<>(shards.size());
+        for (TimescaleStorage shard : shards) {
+            tasks.add(() -> shard.findMetrics(matchers));
+        }
+        // a metric is only on one shard, unless a rebalancing is under way
+        final Map<String, Metric> metrics = new LinkedHashMap<>();
+        for (List<Metric> found : invokeAll(readExecutor, tasks)) {
+            for (Metric metric : found) {
+                metrics.putIfAbsent(metric.getKey(), metric);
+            }
+        }
+        return new ArrayList<>(metrics.values());
+    }
+
+    @Override
+    public List<Sample> getTimeseries(final TimeSeriesFetchRequest request) throws StorageException {
+        return getShard(request.getMetric()).getTimeseries(request);
+    }
+
+    /**
+     * Fetches many series at once: the requests of each shard are fetched together, all shards in parallel.
+     *
+     * @return the samples of each request, in the order of the requests.
+     */
+    public List<List<Sample>> getTimeseries(final List<? extends TimeSeriesFetchRequest> requests) throws StorageException {
+        final Map<TimescaleStorage, List<Integer>> indexesByShard = new IdentityHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            indexesByShard.computeIfAbsent(getShard(requests.get(i).getMetric()), s -> new ArrayList<>()).add(i);
+        }
+        final List<List<Integer>> indexes = new ArrayList<>(indexesByShard.size());
+        final List<Callable<List<List<Sample>>>> tasks = new ArrayList<>(indexesByShard.size());
+        indexesByShard.forEach((shard, shardIndexes) -> {
+            final List<TimeSeriesFetchRequest> shardRequests = new ArrayList<>(shardIndexes.size());
+            for (int index : shardIndexes) {
+                shardRequests.add(requests.get(index));
+            }
+            indexes.add(shardIndexes);
+            tasks.add(() -> shard.getTimeseries(shardRequests));
+        });
+        final List<List<List<Sample>>> results = invokeAll(readExecutor, tasks);
+
+        final List<List<Sample>> samples = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        for (int task = 0; task < results.size(); task++) {
+            for (int i = 0; i < indexes.get(task).size(); i++) {
+                samples.set(indexes.get(task).get(i), results.get(task).get(i));
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public void delete(final Metric metric) throws StorageException {
+        delete(Collections.singletonList(metric));
+    }
+
+    public void delete(final Collection<Metric> metrics) throws StorageException {
+        final List<Callable<Void>> tasks = new ArrayList<>(shards.size());
+        for (TimescaleStorage shard : shards) {
+            tasks.add(() -> {
+                shard.delete(metrics);
+                return null;
+            });
+        }
+        invokeAll(writeExecutor, tasks);
+    }
+
+    @Override
+    public boolean supportsAggregation(final Aggregation aggregation) {
+        return shards.get(0).supportsAggregation(aggregation);
+    }
+
+    /**
+     * @return the shard owning the metric.
+     */
+    public TimescaleStorage getShard(final Metric metric) {
+        return ring.get(metric.getKey());
+    }
+
+    public List<TimescaleStorage> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Moves the metrics which are not on their shard, e.g. after a shard was added. See {@link ShardRebalancer}.
+     *
+     * @throws IllegalStateException if a rebalancing is already running.
+     */
+    public ShardRebalancer.Result rebalance() throws StorageException {
+        if (!rebalancing.compareAndSet(false, true)) {
+            throw new IllegalStateException("A rebalancing is already running.");
+        }
+        try {
+            final ShardRebalancer.Result result = new ShardRebalancer(this).rebalance();
+            lastRebalance.set(result);
+            log.info("Rebalancing done: moved {} samples of {} of {} metrics.", result.getSamplesMoved(), result.getMetricsMoved(), result.getMetricsChecked());
+            return result;
+        } finally {
+            rebalancing.set(false);
+        }
+    }
+
+    @Override
+    public String startRebalance() {
+        if (rebalancing.get()) {
+            return "A rebalancing is already running.";
+        }
+        final Thread thread = new Thread(() -> {
+            try {
+                rebalance();
+            } catch (StorageException | RuntimeException e) {
+                log.error("Rebalancing failed, it can be started again.", e);
+            }
+        }, "timescale-shard-rebalancer");
+        thread.setDaemon(true);
+        thread.start();
+        return "Rebalancing started, see the log and the LastRebalance attribute for the progress.";
+    }
+
+    @Override
+    public boolean isRebalancing() {
+        return rebalancing.get();
+    }
+
+    @Override
+    public ShardRebalancer.Result getLastRebalance() {
+        return lastRebalance.get();
+    }
+
+    @Override
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Runs the tasks like {@link #runAll(ExecutorService, List, List)} and throws the first failure.
+     *
+     * @return the results in the order of the tasks.
+     */
+    private static <T> List<T> invokeAll(final ExecutorService executor, final List<Callable<T>> tasks) throws StorageException {
+        final List<T> results = new ArrayList<>(tasks.size());
+        for (Exception failure : runAll(executor, tasks, results)) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure != null) {
+                throw failure instanceof StorageException ? (StorageException) failure : new StorageException(failure);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs the tasks on the executor, the last one on the calling thread. If a task fails, the others are still
+     * awaited: a store() which fails on one shard has written to the others.
+     *
+     * @param results gets the results in the order of the tasks, null for the failed ones.
+     * @return the failures in the order of the tasks, null for the tasks which succeeded.
+     */
+    private static <T> List<Exception> runAll(final ExecutorService executor, final List<Callable<T>> tasks, final List<T> results) throws StorageException {
+        final List<Exception> failures = new ArrayList<>(tasks.size());
+        final boolean parallel = tasks.size() > 1 && executor != null;
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        if (parallel) {
+            for (Callable<T> task : tasks.subList(0, tasks.size() - 1)) {
+                futures.add(executor.submit(task));
+            }
+        }
+        T last = null;
+        Exception lastFailure = null;
+        for (Callable<T> task : parallel ? tasks.subList(tasks.size() - 1, tasks.size()) : tasks) {
+            try {
+                last = call(task);
+                lastFailure = null;
+            } catch (StorageException | RuntimeException e) {
+                last = null;
+                lastFailure = e;
+            }
+            if (!parallel) {
+                results.add(last);
+                failures.add(lastFailure);
+            }
+        }
+        if (!parallel) {
+            return failures;
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+                failures.add(null);
+            } catch (ExecutionException e) {
+                results.add(null);
+                failures.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : new StorageException(e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new StorageException(e);
+            }
+        }
+        results.add(last);
+        failures.add(lastFailure);
+        return failures;
+    }
+
+    private static <T> T call(final Callable<T> task) throws StorageException {
+        try {
+            return task.call();
+        } catch (StorageException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StorageException(e);
+        }
+    }
+
+    public void init() throws StorageException {
+        final List<TimescaleStorage> started = new ArrayList<>();
+        try {
+            for (TimescaleStorage shard : shards) {
+                shard.init();
+                started.add(shard);
+            }
+        } catch (StorageException | RuntimeException e) {
+            started.forEach(TimescaleStorage::destroy);
+            throw e;
+        }
+        // by default every shard can use its whole pool
+        final int defaultThreads = shards.size() * Math.max(1, config.getWritePool().getMaxSize());
+        this.writeExecutor = createExecutor("timescale-shard-write-", config.getShardWriteThreads() > 0 ? config.getShardWriteThreads() : defaultThreads);
+        this.readExecutor = createExecutor("timescale-shard-read-", config.getShardReadThreads() > 0 ? config.getShardReadThreads() : defaultThreads);
+        if (config.isJmxEnabled()) {
+            registerMBean();
+        }
+    }
+
+    private static ExecutorService createExecutor(final String threadPrefix, final int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, threadPrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // many threads are only needed under load
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void registerMBean() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(MBEAN_NAME);
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left over from a previous instance, e.g. after a bundle refresh
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+            this.mbeanName = name;
+        } catch (JMException e) {
+            log.warn("Could not register MBean {}.", MBEAN_NAME, e);
+        }
+    }
+
+    public void destroy() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                log.warn("Could not unregister {}.", mbeanName, e);
+            }
+            mbeanName = null;
+        }
+        for (ExecutorService executor : Arrays.asList(writeExecutor, readExecutor)) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        this.writeExecutor = null;
+        this.readExecutor = null;
+        shards.forEach(TimescaleStorage::destroy);
+        // after the shards: they flush buffered samples on destroy
+        ownedPools.forEach(HikariDataSource::close);
+    }
+}
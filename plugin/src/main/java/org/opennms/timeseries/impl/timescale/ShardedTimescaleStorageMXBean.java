@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * The sharding of metrics over several databases, exposed via JMX as org.opennms.plugins.tss.timescale:type=ShardedTimescaleStorage.
+ */
+public interface ShardedTimescaleStorageMXBean {
+
+    int getShardCount();
+
+    /**
+     * Starts moving the metrics which are not on their shard in the background, e.g. after a shard was added.
+     * @return a message for the operator.
+     */
+    String startRebalance();
+
+    boolean isRebalancing();
+
+    /** The outcome of the last completed rebalancing, null if there was none. */
+    ShardRebalancer.Result getLastRebalance();
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.timeseries.impl.timescale.util.RateLimitedLog;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drains the {@link SampleSpool} into the database in large batches. While the database is unavailable it retries every
+ * retryIntervalMillis. Batches which the database refuses for other reasons are discarded, so that they can't block the spool.
+ * Once the spool is drained, and when the replayer stops, the replayed callback runs, e.g. to refresh the rollup tiers.
+ */
+@Slf4j
+class SpoolReplayer {
+
+    interface BatchSink {
+        /**
+         * @param committed counts the samples whose transaction is committed, they are written even if the call fails.
+         */
+        void write(List<Sample> samples, AtomicInteger committed) throws StorageException;
+    }
+
+    private static final RateLimitedLog RATE_LIMITED_LOGGER = new RateLimitedLog(log, Duration.ofMinutes(1));
+
+    private final SampleSpool spool;
+    private final BatchSink sink;
+    private final Runnable replayed;
+    private final int batchSize;
+    private final long retryIntervalMillis;
+    private final Thread thread;
+
+    private volatile boolean running = false;
+
+    SpoolReplayer(final SampleSpool spool, final BatchSink sink, final TimescaleStorageConfig config) {
+        this(spool, sink, () -> { }, config);
+    }
+
+    SpoolReplayer(final SampleSpool spool, final BatchSink sink, final Runnable replayed, final TimescaleStorageConfig config) {
+        this.spool = spool;
+        this.sink = sink;
+        this.replayed = replayed;
+        this.batchSize = config.getSpoolReplayBatchSize();
+        this.retryIntervalMillis = config.getSpoolRetryIntervalMillis();
+        this.thread = new Thread(this::replayLoop, "timescale-spool-replayer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops replaying. What is not replayed yet stays in the spool.
+     */
+    void stop(final long timeoutMillis) throws InterruptedException {
+        running = false;
+        spool.wakeUp();
+        thread.join(timeoutMillis);
+        if (thread.isAlive()) {
+            thread.interrupt();
+        }
+    }
+
+    private void replayLoop() {
+        try {
+            replayUntilStopped();
+        } finally {
+            replayed.run();
+        }
+    }
+
+    private void replayUntilStopped() {
+        while (running) {
+            try {
+                final SampleSpool.Batch batch = spool.read(batchSize);
+                if (batch == null) {
+                    spool.awaitPending(retryIntervalMillis);
+                } else if (!replay(batch)) {
+                    Thread.sleep(retryIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Unexpected error while replaying the spool.", e);
+                sleepQuietly();
+            }
+        }
+    }
+
+    /**
+     * @return false if the database is unavailable and we should retry later.
+     */
+    private boolean replay(final SampleSpool.Batch batch) {
+        final AtomicInteger committed = new AtomicInteger();
+        try {
+            sink.write(batch.getSamples(), committed);
+            spool.commit(batch);
+            if (spool.getPendingSamples() == 0) {
+                log.info("Spool replayed, samples are written to the database again.");
+                replayed.run();
+            }
+            return true;
+        } catch (StorageException | RuntimeException e) {
+            // with commitBatchSize, the transactions before the failing one are written and must not be replayed again
+            spool.commit(batch, committed.get());
+            if (e instanceof StorageException && TimescaleStorage.isTransient((StorageException) e)) {
+                RATE_LIMITED_LOGGER.warn("The database is still unavailable, retrying to replay the spool later.", e);
+                return false;
+            }
+            log.error("The database refused {} spooled samples. They are discarded.", batch.getSamples().size() - committed.get(), e);
+            spool.discard(batch);
+            return true;
+        }
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(retryIntervalMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+
+/**
+ * One memory-mapped file of the {@link SampleSpool}. Layout:
+ * <pre>
+ * header:  int magic, int version, int replayed offset, int replayed samples of the frame at the replayed offset
+ * frames:  int payload length, int sample count, payload
+ * payload: records, either
+ *          byte METRIC, int id, 3 x (short count, count x (string key, string value)) for intrinsic, meta and external tags
+ *          byte SAMPLE, int metric id, long time in epoch millis, double value
+ * string:  int length, UTF-8 bytes
+ * </pre>
+ * Every segment has its own dictionary of metrics, so a segment can be replayed and deleted on its own. A metric is
+ * written once per segment, before its first sample. The length of a frame is written last: a crash while writing
+ * leaves a zero length, which ends the segment. Not thread safe, {@link SampleSpool} synchronizes the access.
+ */
+class SpoolSegment {
+
+    static final int MAGIC = 0x54535350; // "TSSP"
+    static final int VERSION = 1;
+    private static final int REPLAYED_OFFSET = 8;
+    private static final int REPLAYED_SAMPLES_OFFSET = 12;
+    static final int HEADER_SIZE = 16;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final byte METRIC = 1;
+    private static final byte SAMPLE = 2;
+    private static final int SAMPLE_RECORD_SIZE = 1 + 4 + 8 + 8;
+
+    private final long sequence;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+
+    /** End of the last complete frame. */
+    private int writePosition;
+
+    /** Start of the first frame which is not replayed yet. */
+    private int readPosition;
+
+    /** The samples at the start of the frame at readPosition which are replayed already. */
+    private int readSkip;
+
+    /** Frames up to here are parsed into readMetrics. */
+    private int scannedPosition = HEADER_SIZE;
+
+    private boolean sealed;
+
+    private long pendingSamples;
+
+    /** metric key => id, for writing. */
+    private final Map<String, Integer> writeIds = new HashMap<>();
+
+    /** id => metric, for reading. */
+    private final Map<Integer, Metric> readMetrics = new HashMap<>();
+
+    private SpoolSegment(final long sequence, final Path path, final MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    static SpoolSegment create(final long sequence, final Path path, final int size) throws IOException {
+        final SpoolSegment segment = new SpoolSegment(sequence, path, map(path, size, StandardOpenOption.CREATE_NEW));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putInt(REPLAYED_OFFSET, HEADER_SIZE);
+        segment.writePosition = HEADER_SIZE;
+        segment.readPosition = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Opens a segment left over from a previous run. It is sealed: new samples go into a new segment.
+     */
+    static SpoolSegment open(final long sequence, final Path path) throws IOException {
+        final SpoolSegment segment = new SpoolSegment(sequence, path, map(path, -1));
+        if (segment.buffer.capacity() < HEADER_SIZE || segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a spool segment: " + path);
+        }
+        segment.readPosition = segment.buffer.getInt(REPLAYED_OFFSET);
+        segment.readSkip = segment.buffer.getInt(REPLAYED_SAMPLES_OFFSET);
+        int position = HEADER_SIZE;
+        while (position + FRAME_HEADER_SIZE <= segment.buffer.capacity()) {
+            final int length = segment.buffer.getInt(position);
+            if (length <= 0 || position + FRAME_HEADER_SIZE + length > segment.buffer.capacity()) {
+                break;
+            }
+            if (position >= segment.readPosition) {
+                segment.pendingSamples += segment.buffer.getInt(position + 4);
+            }
+            position += FRAME_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        if (segment.readPosition < position) {
+            segment.pendingSamples -= segment.readSkip;
+        } else {
+            segment.readPosition = position;
+            segment.readSkip = 0;
+        }
+        segment.sealed = true;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(final Path path, final int size, final StandardOpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, with(options, StandardOpenOption.READ, StandardOpenOption.WRITE))) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size < 0 ? channel.size() : size);
+        }
+    }
+
+    private static StandardOpenOption[] with(final StandardOpenOption[] options, final StandardOpenOption... more) {
+        final StandardOpenOption[] all = new StandardOpenOption[options.length + more.length];
+        System.arraycopy(options, 0, all, 0, options.length);
+        System.arraycopy(more, 0, all, options.length, more.length);
+        return all;
+    }
+
+    /**
+     * Writes as many of the samples, starting at from, as fit into the segment as one frame.
+     *
+     * @return the index of the first sample which was not written.
+     */
+    int append(final List<Sample> samples, final int from) throws IOException {
+        final int frameStart = writePosition;
+        int position = frameStart + FRAME_HEADER_SIZE;
+        int index = from;
+        for (; index < samples.size(); index++) {
+            final Sample sample = samples.get(index);
+            Integer id = writeIds.get(sample.getMetric().getKey());
+            final byte[] metricRecord = id == null ? encodeMetric(writeIds.size(), sample.getMetric()) : null;
+            final int needed = (metricRecord == null ? 0 : metricRecord.length) + SAMPLE_RECORD_SIZE;
+            if (position + needed > buffer.capacity()) {
+                break;
+            }
+            if (metricRecord != null) {
+                id = writeIds.size();
+                writeIds.put(sample.getMetric().getKey(), id);
+                buffer.position(position);
+                buffer.put(metricRecord);
+                position += metricRecord.length;
+            }
+            buffer.put(position, SAMPLE);
+            buffer.putInt(position + 1, id);
+            buffer.putLong(position + 5, sample.getTime().toEpochMilli());
+            buffer.putDouble(position + 13, sample.getValue());
+            position += SAMPLE_RECORD_SIZE;
+        }
+        final int count = index - from;
+        if (count > 0) {
+            buffer.putInt(frameStart + 4, count);
+            // commits the frame
+            buffer.putInt(frameStart, position - frameStart - FRAME_HEADER_SIZE);
+            writePosition = position;
+            pendingSamples += count;
+        }
+        return index;
+    }
+
+    /**
+     * Reads whole frames, starting with the first one which is not replayed yet, until at least maxSamples are read.
+     *
+     * @return the end of the last frame read.
+     */
+    int read(final int maxSamples, final List<Sample> samples) {
+        // the metrics of the replayed frames, e.g. after a restart
+        while (scannedPosition < readPosition) {
+            scannedPosition = parseFrame(scannedPosition, null);
+        }
+        int position = readPosition;
+        if (position < writePosition) {
+            final int first = samples.size();
+            position = parseFrame(position, samples);
+            samples.subList(first, first + readSkip).clear();
+        }
+        while (position < writePosition && samples.size() < maxSamples) {
+            position = parseFrame(position, samples);
+        }
+        scannedPosition = Math.max(scannedPosition, position);
+        return position;
+    }
+
+    /**
+     * Marks the next samples as replayed. A frame can be replayed in parts, e.g. if a later transaction of a batch failed.
+     */
+    void commit(final int samples) {
+        int position = readPosition;
+        int skip = readSkip + samples;
+        while (position < writePosition && skip >= buffer.getInt(position + 4)) {
+            skip -= buffer.getInt(position + 4);
+            position += FRAME_HEADER_SIZE + buffer.getInt(position);
+        }
+        readPosition = position;
+        readSkip = skip;
+        // both in one write: the replayed samples belong to the frame at the replayed offset
+        buffer.putLong(REPLAYED_OFFSET, ((long) position << 32) | (skip & 0xFFFFFFFFL));
+        pendingSamples -= samples;
+    }
+
+    private int parseFrame(final int frameStart, final List<Sample> samples) {
+        final int end = frameStart + FRAME_HEADER_SIZE + buffer.getInt(frameStart);
+        int position = frameStart + FRAME_HEADER_SIZE;
+        while (position < end) {
+            final byte type = buffer.get(position);
+            if (type == METRIC) {
+                position = decodeMetric(position + 1);
+            } else if (type == SAMPLE) {
+                if (samples != null) {
+                    samples.add(ImmutableSample.builder()
+                            .metric(readMetrics.get(buffer.getInt(position + 1)))
+                            .time(Instant.ofEpochMilli(buffer.getLong(position + 5)))
+                            .value(buffer.getDouble(position + 13))
+                            .build());
+                }
+                position += SAMPLE_RECORD_SIZE;
+            } else {
+                throw new IllegalStateException(String.format("Unknown record type %s at %s in %s", type, position, path));
+            }
+        }
+        return end;
+    }
+
+    private static byte[] encodeMetric(final int id, final Metric metric) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(METRIC);
+        out.writeInt(id);
+        for (Set<Tag> tags : Arrays.asList(metric.getIntrinsicTags(), metric.getMetaTags(), metric.getExternalTags())) {
+            out.writeShort(tags.size());
+            for (Tag tag : tags) {
+                writeString(out, tag.getKey());
+                writeString(out, tag.getValue());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private int decodeMetric(int position) {
+        final int id = buffer.getInt(position);
+        position += 4;
+        final ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
+        for (ImmutableMetric.TagType type : new ImmutableMetric.TagType[]{ImmutableMetric.TagType.intrinsic, ImmutableMetric.TagType.meta, ImmutableMetric.TagType.external}) {
+            final int count = buffer.getShort(position);
+            position += 2;
+            for (int i = 0; i < count; i++) {
+                final String key = readString(position);
+                position += 4 + buffer.getInt(position);
+                final String value = readString(position);
+                position += 4 + buffer.getInt(position);
+                final Tag tag = new ImmutableTag(key, value);
+                if (type == ImmutableMetric.TagType.intrinsic) {
+                    metric.intrinsicTag(tag);
+                } else if (type == ImmutableMetric.TagType.meta) {
+                    metric.metaTag(tag);
+                } else {
+                    metric.externalTag(tag);
+                }
+            }
+        }
+        readMetrics.put(id, metric.build());
+        return position;
+    }
+
+    private String readString(final int position) {
+        final byte[] bytes = new byte[buffer.getInt(position)];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Seals the segment: no more samples are written into it and the dictionary for writing isn't needed anymore.
+     */
+    void seal() {
+        sealed = true;
+        writeIds.clear();
+    }
+
+    boolean isEmpty() {
+        return writePosition == HEADER_SIZE;
+    }
+
+    boolean isReplayed() {
+        return readPosition >= writePosition;
+    }
+
+    long getPendingSamples() {
+        return pendingSamples;
+    }
+
+    void force() {
+        buffer.force();
+    }
+}
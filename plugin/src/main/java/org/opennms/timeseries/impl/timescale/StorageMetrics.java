@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.timeseries.impl.timescale.util.Histogram;
+import org.opennms.timeseries.impl.timescale.util.HistogramStats;
+
+/**
+ * Counters and latency histograms of the storage operations. Recording is lock free and doesn't allocate.
+ */
+public class StorageMetrics implements StorageMetricsMXBean {
+
+    /**
+     * Calls, errors and latency of one operation.
+     */
+    public static class Operation {
+        private final Histogram latencyMicros = new Histogram();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * @param startNanos the {@link System#nanoTime()} when the call started.
+         */
+        public void record(final long startNanos, final boolean success) {
+            latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            if (!success) {
+                errors.increment();
+            }
+        }
+
+        public Histogram getLatencyMicros() {
+            return latencyMicros;
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+
+    private final Operation store = new Operation();
+    private final Operation findMetrics = new Operation();
+    private final Operation getTimeseries = new Operation();
+    private final Operation delete = new Operation();
+
+    private final Histogram storeBatchSize = new Histogram();
+    private final Histogram connectionAcquireMicros = new Histogram();
+    private final LongAdder samplesWritten = new LongAdder();
+    private final LongAdder samplesRead = new LongAdder();
+    private final LongAdder metricsFound = new LongAdder();
+    private final LongAdder metricsDeleted = new LongAdder();
+
+    public Operation store() {
+        return store;
+    }
+
+    public Operation findMetrics() {
+        return findMetrics;
+    }
+
+    public Operation getTimeseries() {
+        return getTimeseries;
+    }
+
+    public Operation delete() {
+        return delete;
+    }
+
+    public void recordStoreBatchSize(final int samples) {
+        storeBatchSize.record(samples);
+    }
+
+    public void recordConnectionAcquired(final long startNanos) {
+        connectionAcquireMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public void addSamplesWritten(final long samples) {
+        samplesWritten.add(samples);
+    }
+
+    public void addSamplesRead(final long samples) {
+        samplesRead.add(samples);
+    }
+
+    public void addMetricsFound(final long metrics) {
+        metricsFound.add(metrics);
+    }
+
+    public void addMetricsDeleted(final long metrics) {
+        metricsDeleted.add(metrics);
+    }
+
+    @Override
+    public HistogramStats getStoreLatencyMicros() {
+        return store.latencyMicros.getStats();
+    }
+
+    @Override
+    public long getStoreErrors() {
+        return store.getErrors();
+    }
+
+    @Override
+    public HistogramStats getFindMetricsLatencyMicros() {
+        return findMetrics.latencyMicros.getStats();
+    }
+
+    @Override
+    public long getFindMetricsErrors() {
+        return findMetrics.getErrors();
+    }
+
+    @Override
+    public HistogramStats getGetTimeseriesLatencyMicros() {
+        return getTimeseries.latencyMicros.getStats();
+    }
+
+    @Override
+    public long getGetTimeseriesErrors() {
+        return getTimeseries.getErrors();
+    }
+
+    @Override
+    public HistogramStats getDeleteLatencyMicros() {
+        return delete.latencyMicros.getStats();
+    }
+
+    @Override
+    public long getDeleteErrors() {
+        return delete.getErrors();
+    }
+
+    @Override
+    public HistogramStats getStoreBatchSize() {
+        return storeBatchSize.getStats();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten.sum();
+    }
+
+    @Override
+    public long getSamplesRead() {
+        return samplesRead.sum();
+    }
+
+    @Override
+    public long getMetricsFound() {
+        return metricsFound.sum();
+    }
+
+    @Override
+    public long getMetricsDeleted() {
+        return metricsDeleted.sum();
+    }
+
+    @Override
+    public HistogramStats getConnectionAcquireMicros() {
+        return connectionAcquireMicros.getStats();
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.timescale;
+
+import org.opennms.timeseries.impl.timescale.util.HistogramStats;
+
+/**
+ * Metrics of the {@link TimescaleStorage}, exposed via JMX as org.opennms.plugins.tss.timescale:type=TimescaleStorage.
+ * The count of a latency histogram is the number of calls. Latencies are given in microseconds.
+ */
+public interface StorageMetricsMXBean {
+
+    HistogramStats getStoreLatencyMicros();
+
+    long getStoreErrors();
+
+    HistogramStats getFindMetricsLatencyMicros();
+
+    long getFindMetricsErrors();
+
+    HistogramStats getGetTimeseriesLatencyMicros();
+
+    long getGetTimeseriesErrors();
+
+    HistogramStats getDeleteLatencyMicros();
+
+    long getDeleteErrors();
+
+    /** Number of samples per store() call. */
+    HistogramStats getStoreBatchSize();
+
+    long getSamplesWritten();
+
+    long getSamplesRead();
+
+    long getMetricsFound();
+
+    long getMetricsDeleted();
+
+    /** Time spent waiting for a connection from the pool. */
+    HistogramStats getConnectionAcquireMicros();
+}
@@ -28,21 +28,50 @@
 
 package org.opennms.timeseries.impl.timescale;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 import org.opennms.integration.api.v1.timeseries.Aggregation;
@@ -56,86 +85,594 @@ import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.timescale.index.TagIndex;
 import org.opennms.timeseries.impl.timescale.util.DBUtils;
+import org.opennms.timeseries.impl.timescale.util.HypertableStats;
+import org.opennms.timeseries.impl.timescale.util.RateLimitedLog;
+import org.opennms.timeseries.impl.timescale.util.SortedInts;
 import org.opennms.timeseries.impl.timescale.util.TimescaleDatabaseInitializer;
-import org.slf4j.Logger;
 
 import com.google.common.collect.Lists;
 
-import lombok.RequiredArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-@RequiredArgsConstructor
 public class TimescaleStorage implements TimeSeriesStorage {
 
-    private static final Logger RATE_LIMITED_LOGGER = log; // TODO Patrick: add RateLimitedLog?
+    /** Errors which happen for every call while the database is down are logged once per minute. */
+    private static final RateLimitedLog RATE_LIMITED_LOGGER = new RateLimitedLog(log, Duration.ofMinutes(1));
+
+    private static final String MBEAN_NAME = "org.opennms.plugins.tss.timescale:type=TimescaleStorage";
+
+    private static final String REPLICA_ROUTER_MBEAN_NAME = "org.opennms.plugins.tss.timescale:type=ReplicaRouter";
+
+    private static final String SAMPLE_SPOOL_MBEAN_NAME = "org.opennms.plugins.tss.timescale:type=SampleSpool";
+
+    private static final String ASYNC_WRITER_MBEAN_NAME = "org.opennms.plugins.tss.timescale:type=AsyncSampleWriter";
+
+    private static final String INSERT_SAMPLE_SQL = "INSERT INTO timescale_time_series(time, fk_timescale_metric, value)  values (?, ?, ?)";
+
+    /** Registers all new metrics of a batch with one statement: the keys are bound as one array. */
+    private static final String INSERT_METRIC_SQL = "INSERT INTO timescale_metric(key) SELECT * FROM unnest(?::text[]) ON CONFLICT (key) DO NOTHING";
+
+    private static final String SELECT_METRIC_IDS_SQL = "SELECT id, key FROM timescale_metric WHERE key = ANY(?)";
+
+    /** Maximum number of metrics whose tags are loaded with one query. */
+    private static final int LOAD_METRICS_CHUNK_SIZE = 10_000;
+
+    /** SQL state of a foreign key violation. */
+    private static final String FOREIGN_KEY_VIOLATION = "23503";
+
+    /**
+     * Upserts all tags of a batch with one statement, one array per column. With a batch of single row inserts, the driver
+     * sends a Bind/Execute message per tag.
+     */
+    private static final String INSERT_TAG_SQL = "INSERT INTO timescale_tag(fk_timescale_metric, key, value, type)"
+            + " SELECT * FROM unnest(?::int[], ?::text[], ?::text[], ?::text[]) ON CONFLICT (fk_timescale_metric, key, value, type) DO NOTHING";
+
+    /**
+     * Receives the samples of a streamed getTimeseries().
+     */
+    public interface SampleConsumer {
+        void accept(Sample sample) throws StorageException;
+    }
+
+    private interface RowConsumer {
+        void accept(int metricId, Metric metric, long timeMillis, double value) throws StorageException;
+    }
+
+    private interface IdRowConsumer {
+        void accept(int metricId, long timeMillis, double value) throws StorageException;
+    }
+
+    /** The value of a bucket without samples, as read from the NULL returned by time_bucket_gapfill(). */
+    private static final double GAP_VALUE = 0.0;
 
     private final DataSource dataSource;
 
+    /** The DataSources we actually use: the one of OpenNMS or dedicated pools, created in init(). */
+    private volatile ConnectionPools pools;
+
+    private final TimescaleStorageConfig config;
+
+    private final MetricCache metricCache;
+
+    private final Queue<SampleCopyEncoder> copyEncoders = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean copyFallbackLogged = new AtomicBoolean(false);
+
+    private volatile AsyncSampleWriter asyncWriter;
+
+    /** Spool for samples which can't be written right now, null if disabled. */
+    private volatile SampleSpool spool;
+
+    private volatile SpoolReplayer spoolReplayer;
+    /** The time range of the replayed samples which is not refreshed in the rollup tiers yet, null if there is none. */
+    private Instant[] replayedRange;
+    private final Object replayedRangeLock = new Object();
+
+    /** In-memory index of all tags, null if disabled. */
+    private final TagIndex tagIndex;
+
+    private volatile boolean tagIndexReady = false;
+
+    /** Cache of aggregated fetch results, null if disabled. */
+    private final FetchResultCache resultCache;
+
+    /** The latest sample of recently written metrics, null if disabled. */
+    private final LatestValueCache latestValueCache;
+
+    /** Fetches groups of requests in parallel, null until init(). */
+    private volatile ExecutorService fetchExecutor;
+
+    /** The rollup tiers available for queries, coarsest first. */
+    private volatile List<RollupTier> rollupTiers = Collections.emptyList();
+
+    private final StorageMetrics metrics = new StorageMetrics();
+
+    /** Routes queries to read replicas, null if none are configured. */
+    private volatile ReplicaRouter replicaRouter;
+
+    /** The names of the MBeans we registered. */
+    private final List<ObjectName> mbeanNames = new CopyOnWriteArrayList<>();
+
+    /** The name of the shard if this storage is part of a ShardedTimescaleStorage, null otherwise. */
+    private final String shard;
+
     private int maxBatchSize = 100;
 
+    public TimescaleStorage(final DataSource dataSource) {
+        this(dataSource, new TimescaleStorageConfig());
+    }
+
+    public TimescaleStorage(final DataSource dataSource, final TimescaleStorageConfig config) {
+        this(dataSource, config, null);
+    }
+
+    /**
+     * Creates one shard of a ShardedTimescaleStorage. The shard uses the given DataSource for everything: the dedicated
+     * pools and replicas of the config are ignored. MBeans and spool directory are qualified with the shard name.
+     */
+    TimescaleStorage(final DataSource dataSource, final TimescaleStorageConfig config, final String shard) {
+        this.shard = shard;
+        this.dataSource = Objects.requireNonNull(dataSource);
+        this.pools = ConnectionPools.shared(dataSource);
+        this.config = Objects.requireNonNull(config);
+        this.metricCache = new MetricCache(config.getMetricCacheMaxSize(), config.getMetricCacheExpireAfterSeconds());
+        this.tagIndex = config.isTagIndexEnabled() ? new TagIndex() : null;
+        this.resultCache = config.getResultCacheMaxBytes() > 0
+                ? new FetchResultCache(config.getResultCacheMaxBytes(), config.getResultCacheBucketsPerBlock(), config.getResultCacheSealDelaySeconds() * 1000)
+                : null;
+        this.latestValueCache = config.getLatestValueCacheMaxSize() > 0 ? new LatestValueCache(config.getLatestValueCacheMaxSize()) : null;
+    }
+
     @Override
     public void store(List<Sample> entries) throws StorageException {
-        String sql = "INSERT INTO timescale_time_series(time, key, value)  values (?, ?, ?)";
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            metrics.recordStoreBatchSize(entries.size());
+            final AsyncSampleWriter writer = this.asyncWriter;
+            if (writer != null) {
+                // writes synchronously if the writer is stopped
+                writer.enqueue(entries);
+            } else {
+                writeOrSpool(entries);
+            }
+            success = true;
+        } finally {
+            metrics.store().record(startNanos, success);
+        }
+    }
+
+    /**
+     * Writes the samples or, if the database is unavailable, appends them to the spool. As long as the spool is not
+     * empty, new samples are spooled right away: we don't wait for the timeouts of a database which is down.
+     */
+    void writeOrSpool(final List<Sample> entries) throws StorageException {
+        final SampleSpool spool = this.spool;
+        if (spool == null) {
+            writeSamples(entries);
+            return;
+        }
+        // with commitBatchSize, the transactions before the failing one are committed and must not be spooled again
+        final AtomicInteger committed = new AtomicInteger();
+        if (spool.getPendingSamples() == 0) {
+            try {
+                writeSamples(entries, committed);
+                return;
+            } catch (StorageException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                RATE_LIMITED_LOGGER.warn("The database is unavailable, spooling samples to disk.", e);
+            }
+        }
+        spool.append(entries.subList(committed.get(), entries.size()));
+    }
+
+    /**
+     * Writes spooled samples. They are written late, after the refresh policies of the rollup tiers passed their buckets:
+     * their time range is collected and refreshed by {@link #refreshReplayedRollups()}.
+     */
+    void replaySamples(final List<Sample> entries, final AtomicInteger committed) throws StorageException {
+        try {
+            writeSamples(entries, committed);
+        } finally {
+            if (!rollupTiers.isEmpty() && committed.get() > 0) {
+                synchronized (replayedRangeLock) {
+                    for (Sample sample : entries.subList(0, committed.get())) {
+                        if (replayedRange == null) {
+                            replayedRange = new Instant[]{sample.getTime(), sample.getTime()};
+                        } else if (sample.getTime().isBefore(replayedRange[0])) {
+                            replayedRange[0] = sample.getTime();
+                        } else if (sample.getTime().isAfter(replayedRange[1])) {
+                            replayedRange[1] = sample.getTime();
+                        }
+                    }
+                }
+            }
+        }
+    }
 
+    private void refreshReplayedRollups() {
+        final Instant[] range;
+        synchronized (replayedRangeLock) {
+            range = replayedRange;
+            replayedRange = null;
+        }
+        if (range == null) {
+            return;
+        }
+        try {
+            refreshRollups(range[0], range[1]);
+        } catch (StorageException e) {
+            log.warn("Could not refresh the rollup tiers for the replayed samples between {} and {}.", range[0], range[1], e);
+        }
+    }
+
+    /**
+     * Re-aggregates the buckets of the rollup tiers between start and end, e.g. for samples which were written late.
+     */
+    void refreshRollups(final Instant start, final Instant end) throws StorageException {
+        if (rollupTiers.isEmpty()) {
+            return;
+        }
+        try {
+            new TimescaleDatabaseInitializer(pools.getWriteDataSource()).refreshRollups(rollupTiers, start, end);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * @return true if the database is unavailable or overloaded, as opposed to refusing the statement itself.
+     */
+    static boolean isTransient(final StorageException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+            return true;
+        }
+        if (cause instanceof SQLException) {
+            final String state = ((SQLException) cause).getSQLState();
+            // connection exception, transaction rollback (e.g. deadlock), insufficient resources, operator intervention
+            return state != null && (state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57P"));
+        }
+        return false;
+    }
+
+    /**
+     * Writes the samples and the tags of new or changed metrics using one connection.
+     * Everything is written in one transaction, unless commitBatchSize is set: then we commit after every commitBatchSize samples.
+     */
+    void writeSamples(List<Sample> entries) throws StorageException {
+        writeSamples(entries, new AtomicInteger());
+    }
+
+    /**
+     * @param committed counts the samples whose transaction is committed, so that a caller knows which samples are
+     *                  written if a later transaction fails.
+     */
+    void writeSamples(final List<Sample> entries, final AtomicInteger committed) throws StorageException {
         final DBUtils db = new DBUtils(this.getClass());
+        Connection connection = null;
         try {
-            Connection connection = this.dataSource.getConnection();
+            connection = getWriteConnection();
             db.watch(connection);
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
+            connection.setAutoCommit(false);
+
+            final boolean useCopy = useCopy(connection);
+            PreparedStatement insertStatement = null;
+            if (!useCopy) {
+                insertStatement = connection.prepareStatement(INSERT_SAMPLE_SQL);
+                db.watch(insertStatement);
+            }
+            final PreparedStatement tagStatement = connection.prepareStatement(INSERT_TAG_SQL);
+            db.watch(tagStatement);
 
-            // Partition the samples into collections smaller then max_batch_size
-            for (List<Sample> batch : Lists.partition(entries, maxBatchSize)) {
-                log.debug("Inserting {} samples", batch.size());
-                for (Sample sample : batch) {
-                    ps.setTimestamp(1, new Timestamp(sample.getTime().toEpochMilli()));
-                    ps.setString(2, sample.getMetric().getKey());
-                    ps.setDouble(3, sample.getValue());
-                    ps.addBatch();
-                    storeTags(sample.getMetric(), ImmutableMetric.TagType.intrinsic, sample.getMetric().getIntrinsicTags());
-                    storeTags(sample.getMetric(), ImmutableMetric.TagType.meta, sample.getMetric().getMetaTags());
-                    storeTags(sample.getMetric(), ImmutableMetric.TagType.external, sample.getMetric().getExternalTags());
+            final int commitBatchSize = config.getCommitBatchSize() > 0 ? config.getCommitBatchSize() : Math.max(entries.size(), 1);
+            for (List<Sample> transactionBatch : Lists.partition(entries, commitBatchSize)) {
+                final Map<String, Integer> metricIds = resolveMetricIds(connection, db, transactionBatch);
+                if (useCopy) {
+                    copySamples(connection, transactionBatch, metricIds);
+                } else {
+                    insertSamples(insertStatement, transactionBatch, metricIds);
                 }
-                ps.executeBatch();
-
-                if (log.isDebugEnabled()) {
-                    String keys = batch.stream()
-                            .map(s -> s.getMetric().getKey())
-                            .distinct()
-                            .collect(Collectors.joining(", "));
-                    log.debug("Successfully inserted samples for resources with ids {}", keys);
+                final Collection<Metric> newMetrics = storeTags(connection, tagStatement, transactionBatch, metricIds);
+                connection.commit();
+                committed.addAndGet(transactionBatch.size());
+                metrics.addSamplesWritten(transactionBatch.size());
+                // only now the metrics and tags are visible for others
+                metricIds.forEach(metricCache::putId);
+                invalidateSealedResults(transactionBatch);
+                updateLatestValues(transactionBatch, metricIds);
+                for (Metric metric : newMetrics) {
+                    int metricId = metricIds.get(metric.getKey());
+                    metricCache.markPersisted(metricId, metric);
+                    if (tagIndex != null) {
+                        tagIndex.add(metricId, metric);
+                    }
                 }
             }
         } catch (SQLException e) {
+            rollback(connection);
+            if (FOREIGN_KEY_VIOLATION.equals(e.getSQLState())) {
+                // a cached metric id doesn't exist anymore, e.g. the metric was deleted by another OpenNMS instance
+                metricCache.invalidateAll();
+            }
             RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", e);
             throw new StorageException(e);
         } finally {
+            resetAutoCommit(connection);
             db.cleanUp();
         }
     }
 
-    private void storeTags(final Metric metric, final ImmutableMetric.TagType tagType, final Collection<Tag> tags) throws SQLException {
-        final String sql = "INSERT INTO timescale_tag(fk_timescale_metric, key, value, type)  values (?, ?, ?, ?) ON CONFLICT (fk_timescale_metric, key, value, type) DO NOTHING;";
+    /**
+     * Looks up the database ids of all metrics of the given samples. Metrics which are not yet known are registered in
+     * timescale_metric.
+     */
+    private Map<String, Integer> resolveMetricIds(final Connection connection, final DBUtils db, final List<Sample> samples) throws SQLException {
+        final Map<String, Integer> metricIds = new HashMap<>();
+        final Set<String> unknownKeys = new HashSet<>();
+        for (Sample sample : samples) {
+            final String key = sample.getMetric().getKey();
+            if (!metricIds.containsKey(key) && !unknownKeys.contains(key)) {
+                final Integer id = metricCache.getId(key);
+                if (id == null) {
+                    unknownKeys.add(key);
+                } else {
+                    metricIds.put(key, id);
+                }
+            }
+        }
+        if (unknownKeys.isEmpty()) {
+            return metricIds;
+        }
+
+        // sorted: concurrent writers registering the same new metrics lock the keys in the same order, no deadlocks
+        final String[] sortedKeys = unknownKeys.toArray(new String[0]);
+        Arrays.sort(sortedKeys);
+        final PreparedStatement insertStatement = connection.prepareStatement(INSERT_METRIC_SQL);
+        db.watch(insertStatement);
+        insertStatement.setArray(1, connection.createArrayOf("text", sortedKeys));
+        insertStatement.executeUpdate();
+
+        final PreparedStatement selectStatement = connection.prepareStatement(SELECT_METRIC_IDS_SQL);
+        db.watch(selectStatement);
+        selectStatement.setArray(1, connection.createArrayOf("text", unknownKeys.toArray()));
+        final ResultSet rs = selectStatement.executeQuery();
+        db.watch(rs);
+        while (rs.next()) {
+            metricIds.put(rs.getString("key"), rs.getInt("id"));
+        }
+        return metricIds;
+    }
+
+    /**
+     * @return metric key => id of the given keys, unknown keys are missing.
+     */
+    private Map<String, Integer> lookupMetricIds(final Connection connection, final DBUtils db, final Collection<String> keys) throws SQLException {
+        final Map<String, Integer> metricIds = new HashMap<>();
+        final Set<String> unknownKeys = new HashSet<>();
+        for (String key : keys) {
+            final Integer id = metricCache.getId(key);
+            if (id == null) {
+                unknownKeys.add(key);
+            } else {
+                metricIds.put(key, id);
+            }
+        }
+        if (unknownKeys.isEmpty()) {
+            return metricIds;
+        }
+        final PreparedStatement ps = connection.prepareStatement(SELECT_METRIC_IDS_SQL);
+        db.watch(ps);
+        ps.setArray(1, connection.createArrayOf("text", unknownKeys.toArray()));
+        final ResultSet rs = ps.executeQuery();
+        db.watch(rs);
+        while (rs.next()) {
+            final String key = rs.getString("key");
+            final int id = rs.getInt("id");
+            metricIds.put(key, id);
+            metricCache.putId(key, id);
+        }
+        return metricIds;
+    }
 
-        final DBUtils db = new DBUtils(this.getClass());
+    /**
+     * Samples arriving for sealed buckets make the cached results of their metric stale.
+     */
+    private void invalidateSealedResults(final List<Sample> samples) {
+        final FetchResultCache cache = this.resultCache;
+        if (cache == null) {
+            return;
+        }
+        final long sealedUntil = cache.getSealedUntil(System.currentTimeMillis());
+        final Set<String> keys = new HashSet<>();
+        for (Sample sample : samples) {
+            if (sample.getTime().toEpochMilli() < sealedUntil) {
+                keys.add(sample.getMetric().getKey());
+            }
+        }
+        cache.invalidate(keys);
+    }
+
+    private void updateLatestValues(final List<Sample> samples, final Map<String, Integer> metricIds) {
+        final LatestValueCache cache = this.latestValueCache;
+        if (cache == null) {
+            return;
+        }
+        for (Sample sample : samples) {
+            cache.updateIfPresent(metricIds.get(sample.getMetric().getKey()), sample.getTime().toEpochMilli(), sample.getValue());
+        }
+    }
+
+    /**
+     * Takes a connection for store() and delete() from the pool and records how long we had to wait for it.
+     */
+    private Connection getWriteConnection() throws SQLException {
+        return getConnection(pools.getWriteDataSource());
+    }
+
+    /**
+     * Takes a connection for findMetrics() and getTimeseries() from a replica or the read pool and records how long we
+     * had to wait for it.
+     *
+     * @param end the end of the queried time range, null if the query has none.
+     */
+    private Connection getReadConnection(final Instant end) throws SQLException {
+        final ReplicaRouter router = this.replicaRouter;
+        if (router == null) {
+            return getConnection(pools.getReadDataSource());
+        }
+        final long startNanos = System.nanoTime();
+        final Connection connection = router.getConnection(end);
+        metrics.recordConnectionAcquired(startNanos);
+        return connection;
+    }
+
+    private Connection getConnection(final DataSource dataSource) throws SQLException {
+        final long startNanos = System.nanoTime();
+        final Connection connection = dataSource.getConnection();
+        metrics.recordConnectionAcquired(startNanos);
+        return connection;
+    }
+
+    private void rollback(final Connection connection) {
+        if (connection == null) {
+            return;
+        }
         try {
-            Connection connection = this.dataSource.getConnection();
-            db.watch(connection);
-            PreparedStatement ps = connection.prepareStatement(sql);
-            db.watch(ps);
-            for (Tag tag : tags) {
-                ps.setString(1, metric.getKey());
-                ps.setString(2, tag.getKey());
-                ps.setString(3, tag.getValue());
-                ps.setString(4, tagType.name());
+            connection.rollback();
+        } catch (SQLException e) {
+            log.warn("Could not rollback transaction", e);
+        }
+    }
+
+    private void resetAutoCommit(final Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Could not reset auto commit", e);
+        }
+    }
+
+    private boolean useCopy(final Connection connection) {
+        if (config.getIngestMode() != IngestMode.COPY) {
+            return false;
+        }
+        if (SampleCopyEncoder.isCopySupported(connection)) {
+            return true;
+        }
+        if (copyFallbackLogged.compareAndSet(false, true)) {
+            log.warn("Ingest mode {} is configured but the connection doesn't support the postgres copy api. Falling back to {}.", IngestMode.COPY, IngestMode.INSERT);
+        }
+        return false;
+    }
+
+    private void insertSamples(final PreparedStatement ps, final List<Sample> entries, final Map<String, Integer> metricIds) throws SQLException {
+        // Partition the samples into collections smaller then max_batch_size
+        for (List<Sample> batch : Lists.partition(entries, maxBatchSize)) {
+            for (Sample sample : batch) {
+                ps.setTimestamp(1, new Timestamp(sample.getTime().toEpochMilli()));
+                ps.setInt(2, metricIds.get(sample.getMetric().getKey()));
+                ps.setDouble(3, sample.getValue());
                 ps.addBatch();
             }
             ps.executeBatch();
-            ps.close();
+
+            if (log.isTraceEnabled()) {
+                String keys = batch.stream()
+                        .map(s -> s.getMetric().getKey())
+                        .distinct()
+                        .collect(Collectors.joining(", "));
+                log.trace("Successfully inserted samples for resources with ids {}", keys);
+            }
+        }
+    }
+
+    private void copySamples(final Connection connection, final List<Sample> entries, final Map<String, Integer> metricIds) throws SQLException {
+        // encoders (and their buffers) are reused across calls, we only need as many as there are concurrent writers
+        SampleCopyEncoder encoder = copyEncoders.poll();
+        if (encoder == null) {
+            encoder = new SampleCopyEncoder(config.getCopyBufferSize());
+        }
+        try {
+            long rows = encoder.copy(connection, entries, metricIds);
+            log.debug("Successfully copied {} samples", rows);
         } finally {
-            db.cleanUp();
+            copyEncoders.offer(encoder);
+        }
+    }
+
+    /**
+     * Writes the tags of all metrics we haven't seen (in their current form) before in one batch.
+     * @return the metrics whose tags were written.
+     */
+    private Collection<Metric> storeTags(final Connection connection, final PreparedStatement ps, final List<Sample> samples,
+                                         final Map<String, Integer> metricIds) throws SQLException {
+        final Map<String, Metric> newMetrics = new HashMap<>();
+        final Set<TagRow> rows = new LinkedHashSet<>();
+        for (Sample sample : samples) {
+            final Metric metric = sample.getMetric();
+            final Metric alreadyAdded = newMetrics.get(metric.getKey());
+            if ((alreadyAdded != null && MetricCache.hasSameTags(alreadyAdded, metric)) || metricCache.isPersisted(metric)) {
+                continue;
+            }
+            newMetrics.put(metric.getKey(), metric);
+            final int metricId = metricIds.get(metric.getKey());
+            addTags(rows, metricId, ImmutableMetric.TagType.intrinsic, metric.getIntrinsicTags());
+            addTags(rows, metricId, ImmutableMetric.TagType.meta, metric.getMetaTags());
+            addTags(rows, metricId, ImmutableMetric.TagType.external, metric.getExternalTags());
+        }
+        if (rows.isEmpty()) {
+            return newMetrics.values();
+        }
+        final Integer[] ids = new Integer[rows.size()];
+        final String[] keys = new String[rows.size()];
+        final String[] values = new String[rows.size()];
+        final String[] types = new String[rows.size()];
+        int i = 0;
+        for (TagRow row : rows) {
+            ids[i] = row.metricId;
+            keys[i] = row.key;
+            values[i] = row.value;
+            types[i] = row.type;
+            i++;
+        }
+        ps.setArray(1, connection.createArrayOf("int4", ids));
+        ps.setArray(2, connection.createArrayOf("text", keys));
+        ps.setArray(3, connection.createArrayOf("text", values));
+        ps.setArray(4, connection.createArrayOf("text", types));
+        ps.executeUpdate();
+        return newMetrics.values();
+    }
+
+    private static void addTags(final Set<TagRow> rows, final int metricId, final ImmutableMetric.TagType tagType, final Collection<Tag> tags) {
+        for (Tag tag : tags) {
+            rows.add(new TagRow(metricId, tag.getKey(), tag.getValue(), tagType.name()));
+        }
+    }
+
+    /** A row of timescale_tag. Metrics stored several times with changed tags in one batch repeat most of their rows. */
+    @EqualsAndHashCode
+    private static final class TagRow {
+        private final int metricId;
+        private final String key;
+        private final String value;
+        private final String type;
+
+        private TagRow(final int metricId, final String key, final String value, final String type) {
+            this.metricId = metricId;
+            this.key = key;
+            this.value = value;
+            this.type = type;
         }
     }
 
@@ -145,27 +682,111 @@ public class TimescaleStorage implements TimeSeriesStorage {
         if (matchers.isEmpty()) {
             throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
         }
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            final List<Metric> result = findMetricsFromIndexOrDatabase(matchers);
+            metrics.addMetricsFound(result.size());
+            success = true;
+            return result;
+        } finally {
+            metrics.findMetrics().record(startNanos, success);
+        }
+    }
+
+    private List<Metric> findMetricsFromIndexOrDatabase(final Collection<TagMatcher> matchers) throws StorageException {
+        if (tagIndex != null && tagIndexReady) {
+            return tagIndex.findMetrics(matchers);
+        }
+
+        final List<TagMatcher> matcherList = new ArrayList<>(matchers);
+        if (chooseStrategy(config.getFindMetricsStrategy(), matcherList) == FindMetricsStrategy.PARALLEL) {
+            return findMetricsInParallel(matcherList);
+        }
 
         final DBUtils db = new DBUtils(this.getClass());
         try {
-
-            String sql = createMetricsSQL(matchers);
-            Connection connection = this.dataSource.getConnection();
+            String sql = createMetricsSQL(matcherList);
+            Connection connection = getReadConnection(null);
             db.watch(connection);
 
-            // Get all relevant metricKeys
+            // Get all relevant metric ids
             PreparedStatement ps = connection.prepareStatement(sql);
             db.watch(ps);
+            bindMatchers(ps, matcherList);
             ResultSet rs = ps.executeQuery();
             db.watch(rs);
-            Set<String> metricKeys = new HashSet<>();
+            Set<Integer> metricIds = new HashSet<>();
             while (rs.next()) {
-                metricKeys.add(rs.getString("fk_timescale_metric"));
+                metricIds.add(rs.getInt("fk_timescale_metric"));
             }
             rs.close();
 
             // Load the actual metrics
-            return loadMetrics(connection, db, metricKeys);
+            return loadMetrics(connection, db, metricIds);
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * The join works well as long as EQUALS matchers, which can use the index on (key, value), drive it. With several other
+     * matchers the planner often gets the join order wrong and ends up scanning timescale_tag once per matcher.
+     */
+    static FindMetricsStrategy chooseStrategy(final FindMetricsStrategy configured, final List<TagMatcher> matchers) {
+        if (configured != FindMetricsStrategy.AUTO) {
+            return configured;
+        }
+        if (matchers.size() < 2) {
+            return FindMetricsStrategy.JOIN;
+        }
+        final long notEquals = matchers.stream().filter(m -> m.getType() != TagMatcher.Type.EQUALS).count();
+        return matchers.size() >= 4 || notEquals >= 2 ? FindMetricsStrategy.PARALLEL : FindMetricsStrategy.JOIN;
+    }
+
+    /**
+     * Runs one query per matcher in parallel and intersects the ids found in Java, starting with the smallest set.
+     * The queries of the usually most selective matchers are submitted first. As soon as one matcher matches nothing,
+     * the remaining queries are cancelled. Without fetch threads, the queries run one after the other.
+     */
+    private List<Metric> findMetricsInParallel(final List<TagMatcher> matchers) throws StorageException {
+        final List<TagMatcher> ordered = new ArrayList<>(matchers);
+        ordered.sort(Comparator.comparingInt(m -> selectivityRank(m.getType())));
+        final ExecutorService executor = this.fetchExecutor;
+        final CompletionService<int[]> completionService = new ExecutorCompletionService<>(executor != null ? executor : Runnable::run);
+        final List<Future<int[]>> futures = new ArrayList<>(ordered.size());
+        final List<int[]> matches = new ArrayList<>(ordered.size());
+        try {
+            for (TagMatcher matcher : ordered) {
+                futures.add(completionService.submit(() -> findMetricIds(matcher)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                final int[] ids = completionService.take().get();
+                if (ids.length == 0) {
+                    return new ArrayList<>();
+                }
+                matches.add(ids);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new StorageException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+
+        final int[] ids = SortedInts.intersectAll(matches);
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = getReadConnection(null);
+            db.watch(connection);
+            return loadMetrics(connection, db, Arrays.stream(ids).boxed().collect(Collectors.toList()));
         } catch (SQLException e) {
             throw new StorageException(e);
         } finally {
@@ -173,61 +794,145 @@ public class TimescaleStorage implements TimeSeriesStorage {
         }
     }
 
-    private List<Metric> loadMetrics(Connection connection, DBUtils db, Collection<String> metricKeys) throws SQLException {
-        List<Metric> metrics = new ArrayList<>();
-        String sql = "SELECT * FROM timescale_tag WHERE fk_timescale_metric=?";
+    /**
+     * @return the sorted ids of the metrics with a tag matching the matcher.
+     */
+    private int[] findMetricIds(final TagMatcher matcher) throws SQLException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = getReadConnection(null);
+            db.watch(connection);
+            final PreparedStatement ps = connection.prepareStatement("SELECT fk_timescale_metric FROM timescale_tag WHERE key=? AND value "
+                    + tagMatcherToComp(matcher) + " ?");
+            db.watch(ps);
+            bindMatchers(ps, Collections.singletonList(matcher));
+            final ResultSet rs = ps.executeQuery();
+            db.watch(rs);
+            int[] ids = new int[64];
+            int size = 0;
+            while (rs.next()) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                ids[size++] = rs.getInt(1);
+            }
+            return SortedInts.sortDistinct(ids, size);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private static int selectivityRank(final TagMatcher.Type type) {
+        switch (type) {
+            case EQUALS:
+                return 0;
+            case EQUALS_REGEX:
+                return 1;
+            case NOT_EQUALS:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    /**
+     * Loads the metrics with all their tags. The tags of up to LOAD_METRICS_CHUNK_SIZE metrics are fetched with one query.
+     */
+    private List<Metric> loadMetrics(Connection connection, DBUtils db, Collection<Integer> metricIds) throws SQLException {
+        List<Metric> metrics = new ArrayList<>(metricIds.size());
+        loadMetrics(connection, db, metricIds, (metric, metricId) -> metrics.add(metric));
+        return metrics;
+    }
+
+    private void loadMetrics(Connection connection, DBUtils db, Collection<Integer> metricIds, ObjIntConsumer<Metric> consumer) throws SQLException {
+        if (metricIds.isEmpty()) {
+            return;
+        }
+        String sql = "SELECT fk_timescale_metric, key, value, type FROM timescale_tag WHERE fk_timescale_metric = ANY(?) ORDER BY fk_timescale_metric";
         PreparedStatement ps = connection.prepareStatement(sql);
         db.watch(ps);
-        for (String metricKey : metricKeys) {
-            ps.setString(1, metricKey);
+        for (List<Integer> chunk : Lists.partition(new ArrayList<>(metricIds), LOAD_METRICS_CHUNK_SIZE)) {
+            ps.setArray(1, connection.createArrayOf("int4", chunk.toArray()));
             ResultSet rs = ps.executeQuery();
             db.watch(rs);
-            ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
-            boolean intrinsicTagAvailable = false;
-            while (rs.next()) {
-                Tag tag = new ImmutableTag(rs.getString("key"), rs.getString("value"));
-                ImmutableMetric.TagType type = ImmutableMetric.TagType.valueOf(rs.getString("type"));
-                if ((type == ImmutableMetric.TagType.intrinsic)) {
-                    metric.intrinsicTag(tag);
-                    intrinsicTagAvailable = true;
-                } else if (type == ImmutableMetric.TagType.meta) {
-                    metric.metaTag(tag);
-                } else if (type == ImmutableMetric.TagType.external) {
-                    metric.externalTag(tag);
-                } else {
-                    throw new IllegalArgumentException("Unknown ImmutableMetric.TagType " + type);
-                }
+            readMetrics(rs, (metric, metricId) -> {
+                metricCache.putId(metric.getKey(), metricId);
+                consumer.accept(metric, metricId);
+            });
+            rs.close();
+        }
+    }
+
+    /**
+     * Builds metrics from tag rows which are ordered by metric id, in a single pass.
+     */
+    private void readMetrics(ResultSet rs, ObjIntConsumer<Metric> consumer) throws SQLException {
+        int currentMetricId = -1;
+        ImmutableMetric.MetricBuilder metric = null;
+        boolean intrinsicTagAvailable = false;
+        while (rs.next()) {
+            int metricId = rs.getInt("fk_timescale_metric");
+            if (metric == null || metricId != currentMetricId) {
+                addMetric(consumer, currentMetricId, metric, intrinsicTagAvailable);
+                currentMetricId = metricId;
+                metric = ImmutableMetric.builder();
+                intrinsicTagAvailable = false;
             }
-            if (intrinsicTagAvailable) {
-                // create metric only if at least one intrinsic tag is available. Otherwise we are no valid metric.
-                metrics.add(metric.build());
+            Tag tag = new ImmutableTag(rs.getString("key"), rs.getString("value"));
+            ImmutableMetric.TagType type = ImmutableMetric.TagType.valueOf(rs.getString("type"));
+            if ((type == ImmutableMetric.TagType.intrinsic)) {
+                metric.intrinsicTag(tag);
+                intrinsicTagAvailable = true;
+            } else if (type == ImmutableMetric.TagType.meta) {
+                metric.metaTag(tag);
+            } else if (type == ImmutableMetric.TagType.external) {
+                metric.externalTag(tag);
+            } else {
+                throw new IllegalArgumentException("Unknown ImmutableMetric.TagType " + type);
             }
-            rs.close();
         }
-        return metrics;
+        addMetric(consumer, currentMetricId, metric, intrinsicTagAvailable);
     }
 
-    String createMetricsSQL(Collection<TagMatcher> matchers) {
+    private void addMetric(ObjIntConsumer<Metric> consumer, int metricId, ImmutableMetric.MetricBuilder metric, boolean intrinsicTagAvailable) {
+        if (metric != null && intrinsicTagAvailable) {
+            // create metric only if at least one intrinsic tag is available. Otherwise we are no valid metric.
+            consumer.accept(metric.build(), metricId);
+        }
+    }
+
+    /**
+     * Creates the sql to find the ids of all metrics matching the matchers. The values of the matchers are bound as
+     * parameters, see {@link #bindMatchers(PreparedStatement, List)}.
+     */
+    String createMetricsSQL(List<TagMatcher> matchers) {
         Objects.requireNonNull(matchers, "matchers collection can not be null");
-        List<TagMatcher> tagsList = new ArrayList<>(matchers);
         StringBuilder b = new StringBuilder("select distinct t0.fk_timescale_metric from timescale_tag t0");
         for (int i = 1; i < matchers.size(); i++) {
-            b.append(String.format(" join timescale_tag t%s on t%s.fk_timescale_metric = t%s.fk_timescale_metric", i, i - 1, 1));
+            b.append(String.format(" join timescale_tag t%s on t%s.fk_timescale_metric = t%s.fk_timescale_metric", i, i - 1, i));
         }
         b.append(" WHERE");
         for (int i = 0; i < matchers.size(); i++) {
             if (i > 0) {
                 b.append(" AND");
             }
-            TagMatcher matcher = tagsList.get(i);
+            TagMatcher matcher = matchers.get(i);
             String comp = tagMatcherToComp(matcher);
-            b.append(String.format(" (t%s.key='%s' AND t%s.value %s '%s')", i, matcher.getKey(), i, comp, matcher.getValue()));
+            b.append(String.format(" (t%s.key=? AND t%s.value %s ?)", i, i, comp));
         }
         b.append(";");
 
         return b.toString();
     }
 
+    private void bindMatchers(PreparedStatement ps, List<TagMatcher> matchers) throws SQLException {
+        int index = 1;
+        for (TagMatcher matcher : matchers) {
+            ps.setString(index++, matcher.getKey());
+            ps.setString(index++, matcher.getValue());
+        }
+    }
+
     private String tagMatcherToComp(final TagMatcher matcher) {
         // see https://www.postgresql.org/docs/11/functions-matching.html#FUNCTIONS-POSIX-REGEXP
         Objects.requireNonNull(matcher);
@@ -247,72 +952,674 @@ public class TimescaleStorage implements TimeSeriesStorage {
 
     @Override
     public List<Sample> getTimeseries(TimeSeriesFetchRequest request) throws StorageException {
+        return getTimeseries(Collections.singletonList(request)).get(0);
+    }
 
-        DBUtils db = new DBUtils();
-        ArrayList<Sample> samples;
+    /**
+     * Fetches many series at once, e.g. all lines of a graph. Requests with the same time range, step and aggregation
+     * are answered by one query. If there are several of these groups, they are fetched in parallel on separate connections.
+     *
+     * @return the samples of each request, in the order of the requests.
+     */
+    public List<List<Sample>> getTimeseries(final List<? extends TimeSeriesFetchRequest> requests) throws StorageException {
+        final long startNanos = System.nanoTime();
+        boolean success = false;
         try {
-            final Connection connection = this.dataSource.getConnection();
-            db.watch(connection);
-            long stepInSeconds = request.getStep().getSeconds();
-            List<Metric> metrics = loadMetrics(connection, db, Collections.singletonList(request.getMetric().getKey()));
-            if (metrics.isEmpty()) {
-                // we didn't find teh metric => nothing to do.
-                return Collections.emptyList();
+            final List<List<Sample>> results = fetchGroups(requests);
+            success = true;
+            return results;
+        } finally {
+            metrics.getTimeseries().record(startNanos, success);
+        }
+    }
+
+    private List<List<Sample>> fetchGroups(final List<? extends TimeSeriesFetchRequest> requests) throws StorageException {
+        // start, end, step, aggregation => indexes of the requests
+        final Map<List<Object>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final TimeSeriesFetchRequest request = requests.get(i);
+            groups.computeIfAbsent(Arrays.asList(request.getStart(), request.getEnd(), request.getStep(), request.getAggregation()), k -> new ArrayList<>())
+                    .add(i);
+        }
+
+        final List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), Collections.emptyList()));
+        final ExecutorService executor = this.fetchExecutor;
+        if (groups.size() <= 1 || executor == null) {
+            for (List<Integer> group : groups.values()) {
+                fetchGroup(requests, group, results);
+            }
+            return results;
+        }
+
+        final List<Future<Void>> futures = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups.values()) {
+            futures.add(executor.submit(() -> {
+                fetchGroup(requests, group, results);
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
             }
-            Metric metric = metrics.get(0);
+        } catch (ExecutionException e) {
+            futures.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof StorageException) {
+                throw (StorageException) e.getCause();
+            }
+            throw new StorageException(e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(f -> f.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        }
+        return results;
+    }
+
+    /**
+     * Fetches the requests of one group with one query and puts the samples of each request into results.
+     * All requests of the group have the same time range, step and aggregation.
+     */
+    private void fetchGroup(final List<? extends TimeSeriesFetchRequest> requests, final List<Integer> group,
+                            final List<List<Sample>> results) throws StorageException {
+        final Map<Integer, SampleColumns> columnsById = new HashMap<>();
+        final Map<String, Integer> metricIds = streamGroup(requests, group, (metricId, metric, time, value) ->
+                columnsById.computeIfAbsent(metricId, id -> new SampleColumns(metric)).add(time, value));
+        for (int index : group) {
+            final Integer metricId = metricIds.get(requests.get(index).getMetric().getKey());
+            final SampleColumns columns = metricId == null ? null : columnsById.get(metricId);
+            if (columns != null) {
+                results.set(index, columns.asList());
+            }
+        }
+    }
+
+    /**
+     * Like getTimeseries() but returns the samples in primitive arrays, without creating a Sample object per row.
+     */
+    public SampleColumns getTimeseriesColumns(final TimeSeriesFetchRequest request) throws StorageException {
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            final SampleColumns[] result = new SampleColumns[1];
+            streamGroup(Collections.singletonList(request), Collections.singletonList(0), (metricId, metric, time, value) -> {
+                if (result[0] == null) {
+                    result[0] = new SampleColumns(metric);
+                }
+                result[0].add(time, value);
+            });
+            success = true;
+            return result[0] == null ? new SampleColumns(request.getMetric(), 1) : result[0];
+        } finally {
+            metrics.getTimeseries().record(startNanos, success);
+        }
+    }
+
+    /**
+     * Streams the samples of a request to the consumer as they are read from the database, using a server side cursor:
+     * only fetchSize rows are held in memory at a time, no matter how big the time range is.
+     * The samples are delivered in ascending order of time.
+     */
+    public void getTimeseries(final TimeSeriesFetchRequest request, final SampleConsumer consumer) throws StorageException {
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            streamGroup(Collections.singletonList(request), Collections.singletonList(0), (metricId, metric, time, value) ->
+                    consumer.accept(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value(value).build()));
+            success = true;
+        } finally {
+            metrics.getTimeseries().record(startNanos, success);
+        }
+    }
 
-            String sql;
-            if (Aggregation.NONE == request.getAggregation()) {
-                sql = "SELECT time AS step, value as aggregation FROM timescale_time_series where key=? AND time > ? AND time < ? ORDER BY step ASC";
+    /**
+     * Fetches the requests of one group with one query and hands the samples over to the consumer, ordered by metric and time.
+     * All requests of the group have the same time range, step and aggregation.
+     *
+     * @return metric key => id of the metrics found.
+     */
+    private Map<String, Integer> streamGroup(final List<? extends TimeSeriesFetchRequest> requests, final List<Integer> group,
+                                             final RowConsumer consumer) throws StorageException {
+        return streamGroup(requests, group, false, consumer);
+    }
+
+    /**
+     * @param raw if true the samples are read as stored: no result cache, no downsampling.
+     */
+    private Map<String, Integer> streamGroup(final List<? extends TimeSeriesFetchRequest> requests, final List<Integer> group,
+                                             final boolean raw, final RowConsumer consumer) throws StorageException {
+        final TimeSeriesFetchRequest first = requests.get(group.get(0));
+        final DBUtils db = new DBUtils(this.getClass());
+        Connection connection = null;
+        try {
+            connection = getReadConnection(first.getEnd());
+            db.watch(connection);
+            final Set<String> keys = new HashSet<>();
+            for (int index : group) {
+                keys.add(requests.get(index).getMetric().getKey());
+            }
+            final Map<String, Integer> metricIds = lookupMetricIds(connection, db, keys);
+            if (metricIds.isEmpty()) {
+                // we didn't find the metrics => nothing to do.
+                return metricIds;
+            }
+            final Map<Integer, Metric> metrics = new HashMap<>();
+            loadMetrics(connection, db, metricIds.values(), (metric, metricId) -> metrics.put(metricId, metric));
 
+            // the driver only uses a cursor (and honors the fetch size) within a transaction
+            connection.setAutoCommit(false);
+            final FetchResultCache cache = this.resultCache;
+            if (!raw && cache != null && cache.isCacheable(first.getAggregation(), first.getStep().getSeconds() * 1000)) {
+                fetchCached(connection, db, cache, first, metrics, consumer);
+            } else if (!raw && Aggregation.NONE == first.getAggregation() && config.getDownsampleMaxPoints() > 0) {
+                fetchDownsampled(connection, db, first, metrics, consumer);
             } else {
-                sql = String.format("SELECT time_bucket_gapfill('%s Seconds', time) AS step, "
-                        + "%s(value) as aggregation, avg(value), max(value) FROM timescale_time_series where "
-                        + "key=? AND time > ? AND time < ? GROUP BY step ORDER BY step ASC", stepInSeconds, toSql(request.getAggregation()));
+                fetchRange(connection, db, first, metrics.keySet(), first.getStart(), false, first.getEnd(),
+                        (metricId, time, value) -> consumer.accept(metricId, metrics.get(metricId), time, value));
             }
-            PreparedStatement statement = connection.prepareStatement(sql);
-            db.watch(statement);
-            statement.setString(1, request.getMetric().getKey());
-            statement.setTimestamp(2, new java.sql.Timestamp(request.getStart().toEpochMilli()));
-            statement.setTimestamp(3, new java.sql.Timestamp(request.getEnd().toEpochMilli()));
-            ResultSet rs = statement.executeQuery();
+            connection.commit();
+            return metricIds;
+        } catch (SQLException e) {
+            rollback(connection);
+            RATE_LIMITED_LOGGER.error("Could not retrieve FetchResults", e);
+            throw new StorageException(e);
+        } finally {
+            resetAutoCommit(connection);
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Streams the samples of the metrics between start and end, ordered by metric and time.
+     *
+     * @param includeStart the time range of a request excludes the start, the blocks of the result cache include it.
+     */
+    private void fetchRange(final Connection connection, final DBUtils db, final TimeSeriesFetchRequest request, final Collection<Integer> metricIds,
+                            final Instant start, final boolean includeStart, final Instant end, final IdRowConsumer consumer) throws SQLException, StorageException {
+        RollupTier tier = selectRollupTier(request);
+        long tierStart = 0, tierEnd = 0;
+        if (tier != null) {
+            // only whole buckets of the tier are within the range, the partial buckets at the edges come from the raw samples
+            final long width = tier.getWidth().toMillis();
+            tierStart = FetchResultCache.alignDown(start.toEpochMilli(), width);
+            if (tierStart < start.toEpochMilli() || !includeStart) {
+                tierStart += width;
+            }
+            tierEnd = FetchResultCache.alignDown(end.toEpochMilli(), width);
+            if (tierStart >= tierEnd) {
+                tier = null;
+            }
+        }
+        final PreparedStatement statement = connection.prepareStatement(createFetchSql(request, tier, includeStart), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        db.watch(statement);
+        statement.setFetchSize(config.getFetchSize());
+        final java.sql.Array ids = connection.createArrayOf("int4", metricIds.toArray());
+        if (tier == null) {
+            statement.setArray(1, ids);
+            statement.setTimestamp(2, new java.sql.Timestamp(start.toEpochMilli()));
+            statement.setTimestamp(3, new java.sql.Timestamp(end.toEpochMilli()));
+        } else {
+            // head, tier, tail and the whole range for time_bucket_gapfill()
+            final long[] bounds = {start.toEpochMilli(), tierStart, tierStart, tierEnd, tierEnd, end.toEpochMilli()};
+            for (int i = 0; i < 3; i++) {
+                statement.setArray(3 * i + 1, ids);
+                statement.setTimestamp(3 * i + 2, new java.sql.Timestamp(bounds[2 * i]));
+                statement.setTimestamp(3 * i + 3, new java.sql.Timestamp(bounds[2 * i + 1]));
+            }
+            statement.setTimestamp(10, new java.sql.Timestamp(start.toEpochMilli()));
+            statement.setTimestamp(11, new java.sql.Timestamp(end.toEpochMilli()));
+        }
+        final ResultSet rs = statement.executeQuery();
+        db.watch(rs);
+        long rows = 0;
+        while (rs.next()) {
+            consumer.accept(rs.getInt(1), rs.getLong(2), rs.getDouble(3));
+            rows++;
+        }
+        rs.close();
+        metrics.addSamplesRead(rows);
+    }
+
+    /**
+     * Serves the sealed blocks of the request from the result cache and only queries the rest:
+     * the buckets before the first block, the blocks which are not cached yet and the open buckets at the end.
+     */
+    private void fetchCached(final Connection connection, final DBUtils db, final FetchResultCache cache, final TimeSeriesFetchRequest request,
+                             final Map<Integer, Metric> metrics, final RowConsumer consumer) throws SQLException, StorageException {
+        final Aggregation aggregation = request.getAggregation();
+        // like in the queries, the step is used in whole seconds
+        final long step = request.getStep().getSeconds() * 1000;
+        final long blockWidth = step * cache.getBucketsPerBlock();
+        final long start = request.getStart().toEpochMilli();
+        final long end = request.getEnd().toEpochMilli();
+
+        // the sample on the start is not part of the result, so the first block needs to start after it
+        long firstBlock = FetchResultCache.alignDown(start, blockWidth);
+        if (firstBlock <= start) {
+            firstBlock += blockWidth;
+        }
+        final long sealedUntil = Math.min(end, cache.getSealedUntil(System.currentTimeMillis()));
+        final int blocks = firstBlock >= sealedUntil ? 0 : (int) ((sealedUntil - firstBlock) / blockWidth);
+        if (blocks == 0) {
+            fetchRange(connection, db, request, metrics.keySet(), request.getStart(), false, request.getEnd(),
+                    (metricId, time, value) -> consumer.accept(metricId, metrics.get(metricId), time, value));
+            return;
+        }
+        final long blocksEnd = firstBlock + blocks * blockWidth;
+
+        // the parts of the result, in order of time: the head, the blocks, the tail
+        final Map<Integer, SampleColumns> head = new HashMap<>();
+        fetchRange(connection, db, request, metrics.keySet(), request.getStart(), false, Instant.ofEpochMilli(firstBlock), collectInto(head, metrics));
+
+        final List<Map<Integer, SampleColumns>> blockParts = new ArrayList<>(blocks);
+        final Set<Integer> missingIds = new HashSet<>();
+        int firstMissing = -1, lastMissing = -1;
+        for (int i = 0; i < blocks; i++) {
+            final Map<Integer, SampleColumns> part = new HashMap<>();
+            for (Map.Entry<Integer, Metric> metric : metrics.entrySet()) {
+                final SampleColumns columns = cache.get(metric.getValue().getKey(), aggregation, step, firstBlock + i * blockWidth);
+                if (columns != null) {
+                    part.put(metric.getKey(), columns);
+                } else {
+                    missingIds.add(metric.getKey());
+                    firstMissing = firstMissing < 0 ? i : firstMissing;
+                    lastMissing = i;
+                }
+            }
+            blockParts.add(part);
+        }
+        if (!missingIds.isEmpty()) {
+            // one query for all missing blocks, split into blocks afterwards
+            final long missingStart = firstBlock + firstMissing * blockWidth;
+            final Map<Integer, Long> generations = new HashMap<>();
+            for (int metricId : missingIds) {
+                generations.put(metricId, cache.getGeneration(metrics.get(metricId).getKey()));
+            }
+            final Map<Integer, SampleColumns> fetched = new HashMap<>();
+            fetchRange(connection, db, request, missingIds, Instant.ofEpochMilli(missingStart), true,
+                    Instant.ofEpochMilli(firstBlock + (lastMissing + 1) * blockWidth), collectInto(fetched, metrics));
+            for (int i = firstMissing; i <= lastMissing; i++) {
+                final long blockStart = firstBlock + i * blockWidth;
+                final Map<Integer, SampleColumns> part = blockParts.get(i);
+                for (int metricId : missingIds) {
+                    if (part.containsKey(metricId)) {
+                        continue;
+                    }
+                    final Metric metric = metrics.get(metricId);
+                    final SampleColumns columns = slice(metric, fetched.get(metricId), blockStart, blockStart + blockWidth);
+                    cache.put(metric.getKey(), aggregation, step, blockStart, columns, generations.get(metricId));
+                    part.put(metricId, columns);
+                }
+            }
+        }
+
+        final Map<Integer, SampleColumns> tail = new HashMap<>();
+        fetchRange(connection, db, request, metrics.keySet(), Instant.ofEpochMilli(blocksEnd), true, request.getEnd(), collectInto(tail, metrics));
+
+        // time_bucket_gapfill() fills all buckets of the range for every metric with samples in the range. Since the
+        // parts are separate ranges, a metric may be missing from some of them => fill those buckets the same way.
+        final long firstBucket = FetchResultCache.alignDown(start, step);
+        final List<Integer> metricIds = new ArrayList<>(metrics.keySet());
+        Collections.sort(metricIds);
+        for (int metricId : metricIds) {
+            final List<SampleColumns> parts = new ArrayList<>(blocks + 2);
+            addIfNotEmpty(parts, head.get(metricId));
+            for (Map<Integer, SampleColumns> part : blockParts) {
+                addIfNotEmpty(parts, part.get(metricId));
+            }
+            addIfNotEmpty(parts, tail.get(metricId));
+            if (parts.isEmpty()) {
+                continue;
+            }
+            final Metric metric = metrics.get(metricId);
+            int partIndex = 0, row = 0;
+            for (long bucket = firstBucket; bucket < end; bucket += step) {
+                while (partIndex < parts.size() && row >= parts.get(partIndex).size()) {
+                    partIndex++;
+                    row = 0;
+                }
+                if (partIndex < parts.size() && parts.get(partIndex).getTime(row) == bucket) {
+                    consumer.accept(metricId, metric, bucket, parts.get(partIndex).getValue(row));
+                    row++;
+                } else {
+                    consumer.accept(metricId, metric, bucket, GAP_VALUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the raw samples of the request and downsamples each series on the fly, see {@link LttbDownsampler}.
+     */
+    private void fetchDownsampled(final Connection connection, final DBUtils db, final TimeSeriesFetchRequest request,
+                                  final Map<Integer, Metric> metrics, final RowConsumer consumer) throws SQLException, StorageException {
+        final long start = request.getStart().toEpochMilli();
+        final long end = request.getEnd().toEpochMilli();
+        final int maxPoints = Math.max(3, config.getDownsampleMaxPoints());
+        // the rows are ordered by metric: one downsampler at a time
+        final LttbDownsampler[] downsampler = new LttbDownsampler[1];
+        final int[] downsampledId = new int[1];
+        fetchRange(connection, db, request, metrics.keySet(), request.getStart(), false, request.getEnd(), (metricId, time, value) -> {
+            if (downsampler[0] == null || downsampledId[0] != metricId) {
+                if (downsampler[0] != null) {
+                    downsampler[0].finish();
+                }
+                final Metric metric = metrics.get(metricId);
+                downsampler[0] = new LttbDownsampler(start, end, maxPoints, (t, v) -> consumer.accept(metricId, metric, t, v));
+                downsampledId[0] = metricId;
+            }
+            downsampler[0].add(time, value);
+        });
+        if (downsampler[0] != null) {
+            downsampler[0].finish();
+        }
+    }
+
+    private static IdRowConsumer collectInto(final Map<Integer, SampleColumns> columns, final Map<Integer, Metric> metrics) {
+        return (metricId, time, value) -> columns.computeIfAbsent(metricId, id -> new SampleColumns(metrics.get(id))).add(time, value);
+    }
+
+    private static void addIfNotEmpty(final List<SampleColumns> parts, final SampleColumns columns) {
+        if (columns != null && !columns.isEmpty()) {
+            parts.add(columns);
+        }
+    }
+
+    /**
+     * @return the samples of the columns between start (inclusive) and end (exclusive).
+     */
+    private static SampleColumns slice(final Metric metric, final SampleColumns columns, final long start, final long end) {
+        final SampleColumns slice = new SampleColumns(metric);
+        if (columns != null) {
+            for (int i = 0; i < columns.size(); i++) {
+                final long time = columns.getTime(i);
+                if (time >= start && time < end) {
+                    slice.add(time, columns.getValue(i));
+                }
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * Parameters: metric ids, start, end. With a rollup tier: metric ids, start and end of the head, of the tier and
+     * of the tail, then start, end.
+     * Columns: metric id, time in epoch milliseconds (no Timestamp object per row), value.
+     */
+    private String createFetchSql(final TimeSeriesFetchRequest request, final RollupTier tier, final boolean includeStart) {
+        final long stepInSeconds = request.getStep().getSeconds();
+        final String startOperator = includeStart ? ">=" : ">";
+        if (Aggregation.NONE == request.getAggregation()) {
+            return "SELECT fk_timescale_metric, " + toEpochMillisSql("time") + " AS step, value as aggregation FROM timescale_time_series where "
+                    + "fk_timescale_metric = ANY(?) AND time " + startOperator + " ? AND time < ? ORDER BY fk_timescale_metric, time ASC";
+        }
+        final String sql;
+        if (tier != null) {
+            // the raw samples at the edges are single sample buckets, so they aggregate like the buckets of the tier
+            final String rawSql = "SELECT fk_timescale_metric, time, value AS min, value AS max, value AS avg, (value IS NOT NULL)::int::bigint AS count"
+                    + " FROM timescale_time_series WHERE fk_timescale_metric = ANY(?) AND time %s ? AND time < ?";
+            sql = String.format("SELECT fk_timescale_metric, time_bucket_gapfill('%s Seconds', time) AS step, "
+                    + "%s as aggregation FROM ("
+                    + String.format(rawSql, startOperator)
+                    + " UNION ALL SELECT fk_timescale_metric, bucket, min, max, avg, count FROM %s"
+                    + " WHERE fk_timescale_metric = ANY(?) AND bucket >= ? AND bucket < ?"
+                    + " UNION ALL " + String.format(rawSql, ">=")
+                    + ") samples where time %s ? AND time < ? GROUP BY fk_timescale_metric, step",
+                    stepInSeconds, toRollupSql(request.getAggregation()), tier.getViewName(), startOperator);
+        } else {
+            sql = String.format("SELECT fk_timescale_metric, time_bucket_gapfill('%s Seconds', time) AS step, "
+                    + "%s(value) as aggregation FROM timescale_time_series where "
+                    + "fk_timescale_metric = ANY(?) AND time %s ? AND time < ? GROUP BY fk_timescale_metric, step",
+                    stepInSeconds, toSql(request.getAggregation()), startOperator);
+        }
+        // time_bucket_gapfill() needs to be a top level expression => convert in an outer query
+        return "SELECT fk_timescale_metric, " + toEpochMillisSql("step") + " AS step_millis, aggregation FROM (" + sql + ") buckets"
+                + " ORDER BY fk_timescale_metric, step_millis ASC";
+    }
+
+    private static String toEpochMillisSql(final String column) {
+        return "floor(extract(epoch from " + column + ") * 1000)::bigint";
+    }
+
+    /**
+     * Returns the latest sample of each metric, e.g. for status pages showing the current value of many metrics.
+     * Metrics found in the latest value cache are answered from memory, all others are read with one query which
+     * picks the newest row of each metric from the (fk_timescale_metric, time DESC) index. Only this query adds metrics
+     * to the cache, writes just keep cached metrics up to date.
+     *
+     * @return the latest samples in the order of the given metrics. Metrics without samples are left out.
+     */
+    public List<Sample> getLatestSamples(final List<Metric> metrics) throws StorageException {
+        final LatestValueCache cache = this.latestValueCache;
+        final Sample[] latest = new Sample[metrics.size()];
+        // metric key => positions in the given list, of the metrics we have to look up in the database
+        final Map<String, List<Integer>> missing = new HashMap<>();
+        for (int i = 0; i < metrics.size(); i++) {
+            final Metric metric = metrics.get(i);
+            final Integer id = metricCache.getId(metric.getKey());
+            final int index = i;
+            if (id == null || cache == null || !cache.get(id, (time, value) -> latest[index] = toSample(metric, time, value))) {
+                missing.computeIfAbsent(metric.getKey(), k -> new ArrayList<>(1)).add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            readLatestSamples(metrics, missing, latest);
+        }
+
+        final List<Sample> samples = new ArrayList<>(latest.length);
+        for (Sample sample : latest) {
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    private void readLatestSamples(final List<Metric> metrics, final Map<String, List<Integer>> missing, final Sample[] latest) throws StorageException {
+        final LatestValueCache cache = this.latestValueCache;
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = getReadConnection(Instant.now());
+            db.watch(connection);
+            final Map<String, Integer> metricIds = lookupMetricIds(connection, db, missing.keySet());
+            if (metricIds.isEmpty()) {
+                return;
+            }
+            final Map<Integer, String> keys = new HashMap<>();
+            metricIds.forEach((key, id) -> keys.put(id, key));
+
+            // one index probe per metric. DISTINCT ON (fk_timescale_metric) would read all samples of the metrics:
+            // PostgreSQL can't skip through the index to the next metric.
+            final PreparedStatement ps = connection.prepareStatement("SELECT m.id, " + toEpochMillisSql("s.time") + ", s.value"
+                    + " FROM unnest(?::int[]) AS m(id) CROSS JOIN LATERAL (SELECT time, value FROM timescale_time_series"
+                    + " WHERE fk_timescale_metric = m.id ORDER BY time DESC LIMIT 1) s");
+            db.watch(ps);
+            ps.setArray(1, connection.createArrayOf("int4", metricIds.values().toArray()));
+            final ResultSet rs = ps.executeQuery();
             db.watch(rs);
-            samples = new ArrayList<>();
             while (rs.next()) {
-                long timestamp = rs.getTimestamp("step").getTime();
-                samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(timestamp)).value(rs.getDouble("aggregation")).build());
+                final int id = rs.getInt(1);
+                final long time = rs.getLong(2);
+                final double value = rs.getDouble(3);
+                for (int index : missing.get(keys.get(id))) {
+                    latest[index] = toSample(metrics.get(index), time, value);
+                }
+                if (cache != null) {
+                    cache.update(id, time, value);
+                }
+            }
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private static Sample toSample(final Metric metric, final long timeMillis, final double value) {
+        return ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(timeMillis))
+                .value(value)
+                .build();
+    }
+
+    /**
+     * Streams all samples of the metric as stored, in ascending order of time. Used to move metrics between shards.
+     */
+    void exportSamples(final Metric metric, final SampleConsumer consumer) throws StorageException {
+        final TimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.EPOCH)
+                // samples from the future are exported as well
+                .end(Instant.now().plus(Duration.ofDays(365)))
+                .step(Duration.ZERO)
+                .aggregation(Aggregation.NONE)
+                .build();
+        streamGroup(Collections.singletonList(request), Collections.singletonList(0), true, (metricId, m, time, value) ->
+                consumer.accept(ImmutableSample.builder().metric(m).time(Instant.ofEpochMilli(time)).value(value).build()));
+    }
+
+    /**
+     * Deletes the samples of the metric between start and end, both inclusive. The metric and its tags are kept.
+     */
+    void deleteSamples(final Metric metric, final Instant start, final Instant end) throws StorageException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = getWriteConnection();
+            db.watch(connection);
+            final Integer metricId = lookupMetricIds(connection, db, Collections.singleton(metric.getKey())).get(metric.getKey());
+            if (metricId == null) {
+                return;
+            }
+            final PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM timescale_time_series WHERE fk_timescale_metric = ? AND time >= ? AND time <= ?");
+            db.watch(statement);
+            statement.setInt(1, metricId);
+            statement.setTimestamp(2, new Timestamp(start.toEpochMilli()));
+            statement.setTimestamp(3, new Timestamp(end.toEpochMilli()));
+            statement.executeUpdate();
+            if (resultCache != null) {
+                resultCache.invalidate(Collections.singleton(metric.getKey()));
+            }
+            if (latestValueCache != null) {
+                latestValueCache.invalidate(metricId);
             }
         } catch (SQLException e) {
-            log.error("Could not retrieve FetchResults", e);
             throw new StorageException(e);
         } finally {
             db.cleanUp();
         }
-        return samples;
     }
 
     @Override
     public void delete(final Metric metric) throws StorageException {
+        delete(Collections.singletonList(metric));
+    }
+
+    /**
+     * Deletes the metrics with all their samples and tags in one transaction, using one set based statement per table
+     * instead of one per metric. The tags are deleted by the database: ON DELETE CASCADE.
+     */
+    public void delete(final Collection<Metric> metrics) throws StorageException {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        final long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            deleteMetrics(metrics);
+            success = true;
+        } finally {
+            this.metrics.delete().record(startNanos, success);
+        }
+    }
 
-        DBUtils db = new DBUtils(this.getClass());
+    private void deleteMetrics(final Collection<Metric> metrics) throws StorageException {
+        final DBUtils db = new DBUtils(this.getClass());
+        Connection connection = null;
         try {
-            Connection connection = this.dataSource.getConnection();
+            connection = getWriteConnection();
             db.watch(connection);
+            connection.setAutoCommit(false);
+
+            final Set<String> keys = new HashSet<>();
+            for (Metric metric : metrics) {
+                keys.add(metric.getKey());
+            }
+            final PreparedStatement selectStatement = connection.prepareStatement(SELECT_METRIC_IDS_SQL);
+            db.watch(selectStatement);
+            selectStatement.setArray(1, connection.createArrayOf("text", keys.toArray()));
+            final ResultSet rs = selectStatement.executeQuery();
+            db.watch(rs);
+            final List<Integer> metricIds = new ArrayList<>(keys.size());
+            while (rs.next()) {
+                metricIds.add(rs.getInt("id"));
+            }
+            if (metricIds.isEmpty()) {
+                log.debug("None of the {} metrics exist, nothing to delete.", metrics.size());
+                return;
+            }
+            final java.sql.Array ids = connection.createArrayOf("int4", metricIds.toArray());
 
-            PreparedStatement statement = connection.prepareStatement("DELETE FROM timescale_time_series where key=?");
+            // fk_timescale_metric is the segmentby column: on compressed chunks only the segments of these metrics are touched
+            PreparedStatement statement = connection.prepareStatement("DELETE FROM timescale_time_series WHERE fk_timescale_metric = ANY(?)");
             db.watch(statement);
-            statement.setString(1, metric.getKey());
+            statement.setArray(1, ids);
             int deletedTimeseriesEntries = statement.executeUpdate();
+            // the rollup tiers keep their buckets until the next refresh covers them. This is harmless: metric ids
+            // come from a sequence and are never reused, so nobody will query them again.
 
-            statement = connection.prepareStatement("DELETE FROM timescale_tag where fk_timescale_metric=?");
+            statement = connection.prepareStatement("DELETE FROM timescale_metric WHERE id = ANY(?)");
             db.watch(statement);
-            statement.setString(1, metric.getKey());
-            int deletedTimeseriesTags = statement.executeUpdate();
+            statement.setArray(1, ids);
+            int deletedMetrics = statement.executeUpdate();
+            connection.commit();
+            this.metrics.addMetricsDeleted(deletedMetrics);
 
-            log.debug("Deleted {} timeseries entries and {} timeseries tags for metric {}", deletedTimeseriesEntries, deletedTimeseriesTags, metric);
+            if (tagIndex != null) {
+                metricIds.forEach(tagIndex::remove);
+            }
+            if (latestValueCache != null) {
+                metricIds.forEach(latestValueCache::invalidate);
+            }
+            log.debug("Deleted {} timeseries entries of {} metrics.", deletedTimeseriesEntries, deletedMetrics);
         } catch (SQLException e) {
-            log.error("Could not retrieve FetchResults", e);
+            rollback(connection);
+            log.error("Could not delete metrics", e);
+            throw new StorageException(e);
+        } finally {
+            // the metrics are gone (or in an unknown state) => make sure the next store() registers them again
+            metrics.forEach(metricCache::invalidate);
+            if (resultCache != null) {
+                resultCache.invalidate(metrics.stream().map(Metric::getKey).collect(Collectors.toSet()));
+            }
+            resetAutoCommit(connection);
             db.cleanUp();
+        }
+    }
+
+    /**
+     * Drops all chunks of timescale_time_series which only hold samples older than the given time. Much cheaper than
+     * deleting the rows: no table scan, no dead tuples for the autovacuum.
+     *
+     * @return the number of dropped chunks.
+     */
+    public int dropChunksOlderThan(final Instant olderThan) throws StorageException {
+        final DBUtils db = new DBUtils(this.getClass());
+        try {
+            final Connection connection = getWriteConnection();
+            db.watch(connection);
+            final PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM drop_chunks('timescale_time_series', older_than => ?)");
+            db.watch(statement);
+            statement.setTimestamp(1, new java.sql.Timestamp(olderThan.toEpochMilli()));
+            final ResultSet rs = statement.executeQuery();
+            db.watch(rs);
+            rs.next();
+            final int droppedChunks = rs.getInt(1);
+            log.info("Dropped {} chunks older than {}.", droppedChunks, olderThan);
+            return droppedChunks;
+        } catch (SQLException e) {
+            log.error("Could not drop chunks", e);
             throw new StorageException(e);
         } finally {
             db.cleanUp();
@@ -331,17 +1638,282 @@ public class TimescaleStorage implements TimeSeriesStorage {
         }
     }
 
+    /**
+     * Aggregates the pre-aggregated values of the buckets of a rollup tier. The average is weighted by the number of
+     * samples per bucket, so the result is the same as aggregating the raw samples.
+     */
+    private String toRollupSql(final Aggregation aggregation) {
+        if (Aggregation.AVERAGE == aggregation) {
+            return "sum(avg * count) / nullif(sum(count), 0)";
+        } else if (Aggregation.MAX == aggregation) {
+            return "max(max)";
+        } else if (Aggregation.MIN == aggregation) {
+            return "min(min)";
+        } else {
+            throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        }
+    }
+
+    /**
+     * @return the coarsest rollup tier which can serve the request or null if the raw samples need to be queried.
+     */
+    RollupTier selectRollupTier(final TimeSeriesFetchRequest request) {
+        if (Aggregation.NONE == request.getAggregation()) {
+            return null;
+        }
+        for (RollupTier tier : rollupTiers) {
+            if (tier.canServe(request.getStep())) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean supportsAggregation(final Aggregation aggregation) {
         return aggregation == Aggregation.MAX || aggregation == Aggregation.MIN || aggregation == Aggregation.AVERAGE;
     }
 
+    /**
+     * @return the counters and latencies of the storage operations, also available via JMX.
+     */
+    public StorageMetrics getMetrics() {
+        return metrics;
+    }
+
+    public MetricCache getMetricCache() {
+        return metricCache;
+    }
+
+    /**
+     * @return the asynchronous writer or null if samples are written synchronously.
+     */
+    public AsyncSampleWriter getAsyncWriter() {
+        return asyncWriter;
+    }
+
+    /**
+     * @return the current chunk and compression statistics of the timescale_time_series hypertable.
+     */
+    public HypertableStats getHypertableStats() throws StorageException {
+        try {
+            return new TimescaleDatabaseInitializer(pools.getWriteDataSource()).getHypertableStats();
+        } catch (SQLException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * @return the disk spool or null if disabled.
+     */
+    public SampleSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return the router of queries to read replicas or null if no replicas are configured.
+     */
+    public ReplicaRouter getReplicaRouter() {
+        return replicaRouter;
+    }
+
+    /**
+     * @return the cache of aggregated fetch results or null if disabled.
+     */
+    public FetchResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the cache of the latest sample per metric or null if disabled.
+     */
+    public LatestValueCache getLatestValueCache() {
+        return latestValueCache;
+    }
+
+    /**
+     * @return the in-memory tag index or null if disabled.
+     */
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
+    /**
+     * Loads all tags into the in-memory index. Until this is done findMetrics() queries the database.
+     */
+    private void warmTagIndex() throws SQLException {
+        final long start = System.currentTimeMillis();
+        final DBUtils db = new DBUtils(this.getClass());
+        Connection connection = null;
+        try {
+            // not from a replica: the index needs to be complete
+            connection = getConnection(pools.getReadDataSource());
+            db.watch(connection);
+            // needed for the driver to use a cursor and honor the fetch size instead of loading all tags at once
+            connection.setAutoCommit(false);
+            PreparedStatement ps = connection.prepareStatement("SELECT fk_timescale_metric, key, value, type FROM timescale_tag ORDER BY fk_timescale_metric");
+            db.watch(ps);
+            ps.setFetchSize(10_000);
+            ResultSet rs = ps.executeQuery();
+            db.watch(rs);
+            readMetrics(rs, (metric, metricId) -> tagIndex.add(metricId, metric));
+            connection.commit();
+        } finally {
+            resetAutoCommit(connection);
+            db.cleanUp();
+        }
+        tagIndexReady = true;
+        log.info("Loaded tag index with {} metrics in {}ms, estimated size: {} bytes.", tagIndex.size(),
+                System.currentTimeMillis() - start, tagIndex.estimateMemoryBytes());
+    }
+
     public void init() throws StorageException {
+        if (config.isDedicatedPoolsEnabled() && shard == null) {
+            this.pools = ConnectionPools.create(this.dataSource, config);
+        }
+        if (!config.getReplicaJdbcUrls().trim().isEmpty() && shard == null) {
+            final ReplicaRouter router = ReplicaRouter.create(pools.getReadDataSource(), config);
+            router.start(config.getReplicaHealthCheckIntervalMillis());
+            this.replicaRouter = router;
+        }
         try {
-            new TimescaleDatabaseInitializer(this.dataSource)
-                    .initializeIfNeeded();
+            final TimescaleDatabaseInitializer initializer = new TimescaleDatabaseInitializer(pools.getWriteDataSource());
+            initializer.initializeIfNeeded();
+            initializer.configureHypertable(config);
+            if (config.isRollupsEnabled()) {
+                rollupTiers = initializer.initializeRollups(config);
+                log.info("Using rollup tiers {}.", rollupTiers);
+            }
+            if (tagIndex != null) {
+                warmTagIndex();
+            }
         } catch (final SQLException e) {
             throw new StorageException(e);
         }
+        if (config.getFetchThreads() > 0) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            this.fetchExecutor = Executors.newFixedThreadPool(config.getFetchThreads(), r -> {
+                final Thread thread = new Thread(r, "timescale-fetch-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (config.isSpoolEnabled()) {
+            final SampleSpool sampleSpool = new SampleSpool(getSpoolDirectory(), config.getSpoolSegmentBytes(), config.getSpoolMaxBytes());
+            try {
+                sampleSpool.open();
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+            this.spool = sampleSpool;
+            final SpoolReplayer replayer = new SpoolReplayer(sampleSpool, this::replaySamples, this::refreshReplayedRollups, config);
+            replayer.start();
+            this.spoolReplayer = replayer;
+        }
+        if (config.isAsyncWrites()) {
+            // with a spool, samples which don't fit into the buffer are spooled instead of dropped
+            AsyncSampleWriter writer = new AsyncSampleWriter(this::writeOrSpool, spool == null ? null : spool::append, config);
+            writer.start();
+            this.asyncWriter = writer;
+            log.info("Writing samples asynchronously with {} flusher threads.", config.getAsyncFlusherThreads());
+        }
+        if (config.isJmxEnabled()) {
+            registerMBean(metrics, qualify(MBEAN_NAME));
+            if (replicaRouter != null) {
+                registerMBean(replicaRouter, qualify(REPLICA_ROUTER_MBEAN_NAME));
+            }
+            if (spool != null) {
+                registerMBean(spool, qualify(SAMPLE_SPOOL_MBEAN_NAME));
+            }
+            if (asyncWriter != null) {
+                registerMBean(asyncWriter, qualify(ASYNC_WRITER_MBEAN_NAME));
+            }
+        }
+    }
+
+    private Path getSpoolDirectory() {
+        final Path directory;
+        if (!config.getSpoolDirectory().trim().isEmpty()) {
+            directory = Paths.get(config.getSpoolDirectory().trim());
+        } else {
+            directory = Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "timescale-spool");
+        }
+        return shard == null ? directory : directory.resolve(shard);
+    }
+
+    private String qualify(final String mbeanName) {
+        return shard == null ? mbeanName : mbeanName + ",shard=" + shard;
+    }
+
+    private void registerMBean(final Object mbean, final String objectName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            try {
+                server.registerMBean(mbean, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left over from a previous instance, e.g. after a bundle refresh
+                server.unregisterMBean(name);
+                server.registerMBean(mbean, name);
+            }
+            mbeanNames.add(name);
+        } catch (JMException e) {
+            log.warn("Could not register MBean {}.", objectName, e);
+        }
+    }
+
+    private void unregisterMBeans() {
+        for (ObjectName name : mbeanNames) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Could not unregister {}.", name, e);
+            }
+        }
+        mbeanNames.clear();
+    }
+
+    public void destroy() {
+        unregisterMBeans();
+        final ReplicaRouter router = this.replicaRouter;
+        if (router != null) {
+            this.replicaRouter = null;
+            router.close();
+        }
+        final ExecutorService executor = this.fetchExecutor;
+        if (executor != null) {
+            this.fetchExecutor = null;
+            executor.shutdownNow();
+        }
+        final AsyncSampleWriter writer = this.asyncWriter;
+        if (writer != null) {
+            log.info("Flushing {} buffered samples.", writer.getQueueSize());
+            try {
+                writer.stop(config.getAsyncShutdownTimeoutMillis());
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while flushing buffered samples.", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        // after the writer: it spools what it can't write
+        final SpoolReplayer replayer = this.spoolReplayer;
+        if (replayer != null) {
+            this.spoolReplayer = null;
+            try {
+                replayer.stop(config.getAsyncShutdownTimeoutMillis());
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while stopping the spool replayer.", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        final SampleSpool sampleSpool = this.spool;
+        if (sampleSpool != null) {
+            this.spool = null;
+            sampleSpool.close();
+        }
+        // after the writer: it needs the pool to flush
+        final ConnectionPools dedicatedPools = this.pools;
+        this.pools = ConnectionPools.shared(this.dataSource);
+        dedicatedPools.close();
     }
 }
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale;
+
+import lombok.Data;
+
+/**
+ * Tuning knobs for the {@link TimescaleStorage}.
+ * The values are populated from the OSGi ConfigAdmin (pid org.opennms.plugins.tss.timescale), see blueprint.xml.
+ * The defaults are chosen so that an unconfigured plugin behaves sensibly.
+ */
+@Data
+public class TimescaleStorageConfig {
+
+    /** Maximum number of metrics remembered as already persisted. 0 disables the cache. */
+    private long metricCacheMaxSize = 100_000;
+
+    /** Time after which a cached metric is written again, even if it didn't change. */
+    private long metricCacheExpireAfterSeconds = 3600;
+
+    /** How samples are written into the database. */
+    private IngestMode ingestMode = IngestMode.INSERT;
+
+    /** Size in bytes of the buffer used to encode samples in {@link IngestMode#COPY}. */
+    private int copyBufferSize = 64 * 1024;
+
+    /** Number of samples written per transaction. 0 means all samples of a store() call are written in one transaction. */
+    private int commitBatchSize = 0;
+
+    /** If true all tags are kept in an in-memory index which answers findMetrics() without querying the database. */
+    private boolean tagIndexEnabled = false;
+
+    /** How findMetrics() queries the database if the tag index is not enabled. */
+    private FindMetricsStrategy findMetricsStrategy = FindMetricsStrategy.AUTO;
+
+    /** Time range covered by one chunk of timescale_time_series. 0 keeps the TimescaleDB default (7 days). Applies to new chunks only. */
+    private long chunkTimeIntervalSeconds = 0;
+
+    /** Samples older than this are removed by dropping whole chunks (retention policy). 0 keeps the samples forever. */
+    private long retentionSeconds = 0;
+
+    /** If true chunks of timescale_time_series are compressed once they are older than {@link #compressAfterSeconds}. */
+    private boolean compressionEnabled = false;
+
+    /** Age of a chunk after which it is compressed. */
+    private long compressAfterSeconds = 7 * 24 * 3600;
+
+    /** If true the tiers of {@link #rollupTiers} are maintained as continuous aggregates and used by getTimeseries(). */
+    private boolean rollupsEnabled = false;
+
+    /** Comma separated list of the rollup tiers, see {@link RollupTier}. */
+    private String rollupTiers = "5m,1h,1d";
+
+    /** The refresh policy of a tier recomputes the buckets from now - startOffset ... now - endOffset, given in buckets of the tier. */
+    private int rollupRefreshStartOffsetBuckets = 12;
+
+    /** Buckets which are newer are not materialized yet, they are aggregated from the raw data at query time. */
+    private int rollupRefreshEndOffsetBuckets = 1;
+
+    /** How often the refresh policy runs, in buckets of the tier. */
+    private int rollupRefreshScheduleBuckets = 1;
+
+    /** Number of rows getTimeseries() reads from the database at a time. */
+    private int fetchSize = 10_000;
+
+    /** Raw fetches (Aggregation.NONE) return at most this many samples per series, downsampled with LTTB. 0 returns all samples. */
+    private int downsampleMaxPoints = 0;
+
+    /** Maximum estimated memory of the cached aggregated fetch results. 0 disables the cache. */
+    private long resultCacheMaxBytes = 0;
+
+    /** Number of buckets cached together as one block. */
+    private int resultCacheBucketsPerBlock = 64;
+
+    /** Blocks are cached once they ended this long ago. Samples arriving later than that invalidate the cached results of their metric. */
+    private long resultCacheSealDelaySeconds = 300;
+
+    /** Maximum number of metrics whose latest sample is kept in memory for getLatestSamples(). 0 disables the cache. */
+    private int latestValueCacheMaxSize = 0;
+
+    /** Number of threads fetching groups of requests with different time ranges in parallel. 0 fetches them one after the other. */
+    private int fetchThreads = 4;
+
+    /** If true store() only puts the samples into a buffer, they are written by background threads. */
+    private boolean asyncWrites = false;
+
+    /** Maximum number of samples buffered for asynchronous writing. */
+    private int asyncQueueSize = 100_000;
+
+    /** Number of threads writing buffered samples into the database. */
+    private int asyncFlusherThreads = 2;
+
+    /** Maximum number of samples written in one go by a flusher thread. */
+    private int asyncMaxBatchSize = 10_000;
+
+    /** Time a flusher waits for more samples before it writes a batch which is not full. */
+    private long asyncLingerMillis = 100;
+
+    /** What to do if the buffer is full. */
+    private OverflowPolicy asyncOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /** Time a caller blocks for space in the buffer with {@link OverflowPolicy#BLOCK}. */
+    private long asyncOfferTimeoutMillis = 5_000;
+
+    /** Time we wait on shutdown for the buffered samples to be written. */
+    private long asyncShutdownTimeoutMillis = 30_000;
+
+    /** If true samples which can't be written because the database is unavailable are spooled to disk and replayed later. */
+    private boolean spoolEnabled = false;
+
+    /** Directory of the spool segment files. Empty uses timescale-spool in the Karaf data directory. */
+    private String spoolDirectory = "";
+
+    /** Size of one spool segment file. */
+    private int spoolSegmentBytes = 64 * 1024 * 1024;
+
+    /** Maximum disk space used by the spool. When it is full, further samples are dropped. */
+    private long spoolMaxBytes = 1024L * 1024 * 1024;
+
+    /** Number of samples replayed from the spool in one batch. */
+    private int spoolReplayBatchSize = 10_000;
+
+    /** How often replaying the spool is retried while the database is unavailable. */
+    private long spoolRetryIntervalMillis = 5_000;
+
+    /** Registers the storage metrics as MBean org.opennms.plugins.tss.timescale:type=TimescaleStorage. */
+    private boolean jmxEnabled = true;
+
+    /** If true the plugin creates its own connection pools for writes and reads instead of using the DataSource of OpenNMS. */
+    private boolean dedicatedPoolsEnabled = false;
+
+    /** The database of the dedicated pools, e.g. jdbc:postgresql://localhost:5432/opennms */
+    private String jdbcUrl = "jdbc:postgresql://localhost:5432/opennms";
+
+    private String jdbcUser = "opennms";
+
+    private String jdbcPassword = "opennms";
+
+    /** Pool for store() and delete(). */
+    private PoolConfig writePool = new PoolConfig();
+
+    /** Pool for findMetrics() and getTimeseries(). */
+    private PoolConfig readPool = new PoolConfig();
+
+    /** Comma separated jdbc urls of streaming replicas to send findMetrics() and getTimeseries() to. Empty to use none. */
+    private String replicaJdbcUrls = "";
+
+    /** Replicas lagging behind more than this are not used. */
+    private long replicaMaxLagMillis = 30_000;
+
+    /** Interval of checking the health and replication lag of the replicas. */
+    private long replicaHealthCheckIntervalMillis = 5_000;
+
+    /**
+     * Comma separated jdbc urls of the databases to spread the metrics over. Empty to store everything in the DataSource of OpenNMS.
+     * New shards must be appended at the end: the position of a shard determines which metrics it owns.
+     */
+    private String shardJdbcUrls = "";
+
+    /** Number of points of each shard on the consistent hash ring. More points spread the metrics more evenly. */
+    private int shardVirtualNodes = 128;
+
+    /** Number of threads writing to the shards in parallel, for all callers together. 0 uses writePoolMaxSize per shard. */
+    private int shardWriteThreads = 0;
+
+    /** Number of threads reading from the shards in parallel, for all callers together. 0 uses writePoolMaxSize per shard. */
+    private int shardReadThreads = 0;
+}
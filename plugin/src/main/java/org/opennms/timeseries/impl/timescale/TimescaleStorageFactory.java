@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.timescale;
+
+import javax.sql.DataSource;
+
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+
+/**
+ * Creates the storage described by the config, used by blueprint.xml.
+ */
+public class TimescaleStorageFactory {
+
+    private TimescaleStorageFactory() {
+    }
+
+    /**
+     * @param dataSource the DataSource of OpenNMS, not used if shardJdbcUrls are configured.
+     * @return a {@link ShardedTimescaleStorage} if shardJdbcUrls are configured, a {@link TimescaleStorage} otherwise.
+     */
+    public static TimeSeriesStorage create(final DataSource dataSource, final TimescaleStorageConfig config) {
+        if (config.getShardJdbcUrls().trim().isEmpty()) {
+            return new TimescaleStorage(dataSource, config);
+        }
+        return ShardedTimescaleStorage.create(config);
+    }
+}
@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.timescale.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.timeseries.impl.timescale.util.SortedInts;
+
+/**
+ * An in-memory inverted index from (tag key, tag value) to the ids of the metrics having that tag. It mirrors the
+ * timescale_tag table and answers findMetrics() without a database round trip:
+ * <ul>
+ *   <li>EQUALS is a lookup of the posting list.</li>
+ *   <li>NOT_EQUALS is the difference between all metrics having the tag key and the ones having the value.</li>
+ *   <li>Regex matchers are evaluated once per distinct value of the tag key, not once per metric.</li>
+ * </ul>
+ * The results of all matchers are intersected, starting with the smallest one.
+ *
+ * Like timescale_tag, tags are only ever added to a metric: storing a metric with changed meta tags adds the new tags.
+ */
+public class TagIndex {
+
+    /** tag key => tag value => ids of the metrics with that tag */
+    private final Map<String, Map<String, PostingList>> postings = new HashMap<>();
+
+    /** tag key => ids of all metrics with that tag key */
+    private final Map<String, PostingList> keyPostings = new HashMap<>();
+
+    private final Map<Integer, Metric> metrics = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds the metric to the index. If the metric is already known, the new tags are added to the existing ones.
+     */
+    public void add(final int id, final Metric metric) {
+        lock.writeLock().lock();
+        try {
+            final Metric existing = metrics.get(id);
+            final Metric merged = existing == null ? metric : merge(existing, metric);
+            metrics.put(id, merged);
+            for (Tag tag : allTags(merged)) {
+                postings.computeIfAbsent(tag.getKey(), k -> new HashMap<>())
+                        .computeIfAbsent(tag.getValue(), v -> new PostingList())
+                        .add(id);
+                keyPostings.computeIfAbsent(tag.getKey(), k -> new PostingList()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(final int id) {
+        lock.writeLock().lock();
+        try {
+            final Metric metric = metrics.remove(id);
+            if (metric == null) {
+                return;
+            }
+            for (Tag tag : allTags(metric)) {
+                final Map<String, PostingList> values = postings.get(tag.getKey());
+                if (values != null) {
+                    removeFrom(values, tag.getValue(), id);
+                    if (values.isEmpty()) {
+                        postings.remove(tag.getKey());
+                    }
+                }
+                removeFrom(keyPostings, tag.getKey(), id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void removeFrom(final Map<String, PostingList> map, final String key, final int id) {
+        final PostingList list = map.get(key);
+        if (list != null) {
+            list.remove(id);
+            if (list.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            keyPostings.clear();
+            metrics.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<Metric> findMetrics(final Collection<TagMatcher> matchers) {
+        lock.readLock().lock();
+        try {
+            final int[] ids = findIds(matchers);
+            final List<Metric> result = new ArrayList<>(ids.length);
+            for (int id : ids) {
+                result.add(metrics.get(id));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the sorted ids of all metrics matching all matchers.
+     */
+    public int[] findIds(final Collection<TagMatcher> matchers) {
+        Objects.requireNonNull(matchers);
+        lock.readLock().lock();
+        try {
+            final List<int[]> matches = new ArrayList<>(matchers.size());
+            for (TagMatcher matcher : matchers) {
+                final int[] ids = evaluate(matcher);
+                if (ids.length == 0) {
+                    return SortedInts.EMPTY;
+                }
+                matches.add(ids);
+            }
+            return SortedInts.intersectAll(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] evaluate(final TagMatcher matcher) {
+        final Map<String, PostingList> values = postings.get(matcher.getKey());
+        if (values == null) {
+            return SortedInts.EMPTY;
+        }
+        switch (matcher.getType()) {
+            case EQUALS:
+                final PostingList list = values.get(matcher.getValue());
+                return list == null ? SortedInts.EMPTY : list.toArray();
+            case NOT_EQUALS:
+                return notEquals(matcher.getKey(), matcher.getValue(), values);
+            case EQUALS_REGEX:
+                return unionOfValues(values, Pattern.compile(matcher.getValue()).asPredicate());
+            case NOT_EQUALS_REGEX:
+                return unionOfValues(values, Pattern.compile(matcher.getValue()).asPredicate().negate());
+            default:
+                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
+        }
+    }
+
+    private int[] notEquals(final String key, final String value, final Map<String, PostingList> values) {
+        final PostingList withValue = values.get(value);
+        final int[] withKey = keyPostings.get(key).toArray();
+        if (withValue == null) {
+            return withKey;
+        }
+        int[] result = SortedInts.difference(withKey, withValue.toArray());
+        // a metric having the excluded value and another value for the same key still matches (as in the sql version)
+        if (values.size() > 1) {
+            final List<Integer> alsoOtherValue = new ArrayList<>();
+            for (int id : withValue.toArray()) {
+                if (metrics.get(id).getTagsByKey(key).stream().anyMatch(t -> !value.equals(t.getValue()))) {
+                    alsoOtherValue.add(id);
+                }
+            }
+            if (!alsoOtherValue.isEmpty()) {
+                result = SortedInts.union(result, alsoOtherValue.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+        return result;
+    }
+
+    private static int[] unionOfValues(final Map<String, PostingList> values, final Predicate<String> predicate) {
+        int[] result = SortedInts.EMPTY;
+        for (Map.Entry<String, PostingList> entry : values.entrySet()) {
+            if (predicate.test(entry.getKey())) {
+                result = SortedInts.union(result, entry.getValue().toArray());
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return metrics.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a rough estimate of the heap used by the index (posting lists, dictionary and metrics).
+     */
+    public long estimateMemoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Map.Entry<String, Map<String, PostingList>> key : postings.entrySet()) {
+                bytes += estimateStringBytes(key.getKey()) + 48;
+                for (Map.Entry<String, PostingList> value : key.getValue().entrySet()) {
+                    // hash map entry + string + posting list
+                    bytes += 32 + estimateStringBytes(value.getKey()) + value.getValue().estimateMemoryBytes();
+                }
+            }
+            for (PostingList list : keyPostings.values()) {
+                bytes += 32 + list.estimateMemoryBytes();
+            }
+            for (Metric metric : metrics.values()) {
+                // hash map entry + boxed id + metric with its tag sets
+                bytes += 32 + 16 + 96 + estimateStringBytes(metric.getKey());
+                for (Tag tag : allTags(metric)) {
+                    bytes += 48 + estimateStringBytes(tag.getKey()) + estimateStringBytes(tag.getValue());
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long estimateStringBytes(final String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    private static List<Tag> allTags(final Metric metric) {
+        final List<Tag> tags = new ArrayList<>();
+        tags.addAll(metric.getIntrinsicTags());
+        tags.addAll(metric.getMetaTags());
+        tags.addAll(metric.getExternalTags());
+        return tags;
+    }
+
+    private static Metric merge(final Metric existing, final Metric metric) {
+        if (existing.getMetaTags().containsAll(metric.getMetaTags())
+                && existing.getExternalTags().containsAll(metric.getExternalTags())
+                && existing.getIntrinsicTags().equals(metric.getIntrinsicTags())) {
+            return existing;
+        }
+        return ImmutableMetric.builder()
+                .intrinsicTags(union(existing.getIntrinsicTags(), metric.getIntrinsicTags()))
+                .metaTags(union(existing.getMetaTags(), metric.getMetaTags()))
+                .externalTags(union(existing.getExternalTags(), metric.getExternalTags()))
+                .build();
+    }
+
+    private static List<Tag> union(final Set<Tag> a, final Set<Tag> b) {
+        final List<Tag> tags = new ArrayList<>(a);
+        for (Tag tag : b) {
+            if (!a.contains(tag)) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+}
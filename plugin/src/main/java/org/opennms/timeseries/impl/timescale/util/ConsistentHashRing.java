@@ -0,0 +1,80 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Maps keys to nodes with consistent hashing: each node is placed on a ring of 64 bit hashes at virtualNodes points,
+ * a key belongs to the node of the first point at or after its own hash. Adding a node only moves the keys which fall
+ * onto its points, about 1/n of all keys, and those keys all move to the new node.
+ *
+ * The placement of a node only depends on its name, so the names need to stay the same when nodes are added.
+ * Immutable and thread safe.
+ */
+public class ConsistentHashRing<T> {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /** The points on the ring, sorted. */
+    private final long[] points;
+
+    /** The node of each point. */
+    private final List<T> owners;
+
+    /**
+     * @param nodes node name => node.
+     */
+    public ConsistentHashRing(final Map<String, T> nodes, final int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required.");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive, got " + virtualNodes);
+        }
+        final int size = nodes.size() * virtualNodes;
+        final long[] hashes = new long[size];
+        final Object[] nodeOfHash = new Object[size];
+        int i = 0;
+        for (Map.Entry<String, T> node : nodes.entrySet()) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = hash(node.getKey() + "#" + v);
+                nodeOfHash[i] = Objects.requireNonNull(node.getValue());
+                i++;
+            }
+        }
+        // sort the points and their nodes together
+        final Integer[] order = new Integer[size];
+        for (i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[size];
+        final List<T> sortedOwners = new ArrayList<>(size);
+        for (i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            @SuppressWarnings("unchecked")
+            final T node = (T) nodeOfHash[order[i]];
+            sortedOwners.add(node);
+        }
+        this.owners = sortedOwners;
+    }
+
+    public T get(final String key) {
+        int pos = Arrays.binarySearch(points, hash(key));
+        if (pos < 0) {
+            pos = -(pos + 1);
+        }
+        return owners.get(pos == points.length ? 0 : pos);
+    }
+
+    private static long hash(final String s) {
+        return HASH.hashString(s, StandardCharsets.UTF_8).asLong();
+    }
+}
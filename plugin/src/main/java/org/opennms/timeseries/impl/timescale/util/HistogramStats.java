@@ -0,0 +1,55 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of a {@link Histogram}, exposed as composite data via JMX.
+ */
+public class HistogramStats {
+
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p95;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p95", "p99", "max"})
+    public HistogramStats(final long count, final double mean, final long p50, final long p95, final long p99, final long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1f, p50=%d, p95=%d, p99=%d, max=%d", count, mean, p50, p95, p99, max);
+    }
+}
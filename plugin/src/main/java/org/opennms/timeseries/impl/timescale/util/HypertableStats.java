@@ -0,0 +1,30 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import lombok.Data;
+
+/**
+ * Chunk and compression statistics of the timescale_time_series hypertable.
+ */
+@Data
+public class HypertableStats {
+
+    private long chunks;
+
+    private long compressedChunks;
+
+    /** Size of the hypertable including indexes and toast, compressed chunks count with their compressed size. */
+    private long totalBytes;
+
+    /** Size of the compressed chunks before they were compressed. */
+    private long beforeCompressionBytes;
+
+    /** Size of the compressed chunks after they were compressed. */
+    private long afterCompressionBytes;
+
+    /**
+     * @return before / after compression size of the compressed chunks, 0 if nothing is compressed yet.
+     */
+    public double getCompressionRatio() {
+        return afterCompressionBytes == 0 ? 0 : (double) beforeCompressionBytes / afterCompressionBytes;
+    }
+}
@@ -0,0 +1,71 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * Logs a message at most once per interval, e.g. for errors which can happen for every call when the database is down.
+ * Suppressed messages are counted and the count is logged with the next message that goes through.
+ * Messages are told apart by their text, so it should be a constant.
+ */
+public class RateLimitedLog {
+
+    private static class State {
+        private final AtomicLong lastLogged;
+        private final LongAdder suppressed = new LongAdder();
+
+        private State(final long lastLogged) {
+            this.lastLogged = new AtomicLong(lastLogged);
+        }
+    }
+
+    private final Logger delegate;
+    private final long intervalNanos;
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+
+    public RateLimitedLog(final Logger delegate, final Duration interval) {
+        this.delegate = delegate;
+        this.intervalNanos = interval.toNanos();
+    }
+
+    public void error(final String message, final Throwable t) {
+        if (delegate.isErrorEnabled()) {
+            final long suppressed = acquire(message);
+            if (suppressed == 0) {
+                delegate.error(message, t);
+            } else if (suppressed > 0) {
+                delegate.error("{} ({} similar messages suppressed)", message, suppressed, t);
+            }
+        }
+    }
+
+    public void warn(final String message, final Throwable t) {
+        if (delegate.isWarnEnabled()) {
+            final long suppressed = acquire(message);
+            if (suppressed == 0) {
+                delegate.warn(message, t);
+            } else if (suppressed > 0) {
+                delegate.warn("{} ({} similar messages suppressed)", message, suppressed, t);
+            }
+        }
+    }
+
+    /**
+     * @return -1 if the message needs to be suppressed, otherwise the number of messages suppressed since the last one.
+     */
+    private long acquire(final String message) {
+        final long now = System.nanoTime();
+        final State state = states.computeIfAbsent(message, m -> new State(now - intervalNanos));
+        final long last = state.lastLogged.get();
+        if (now - last >= intervalNanos && state.lastLogged.compareAndSet(last, now)) {
+            return state.suppressed.sumThenReset();
+        }
+        state.suppressed.increment();
+        return -1;
+    }
+}
@@ -0,0 +1,45 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * One step of the schema history. Applied migrations are recorded in timescale_schema_version, every migration is applied
+ * exactly once and in the order of its version.
+ *
+ * Migrations building indexes with CREATE INDEX CONCURRENTLY can't run inside a transaction block. They are applied
+ * statement by statement and have to be written so that they can be re-run if they failed half way.
+ */
+@Getter
+public class SchemaMigration {
+
+    private final int version;
+
+    private final String description;
+
+    private final boolean transactional;
+
+    private final List<String> statements;
+
+    private SchemaMigration(final int version, final String description, final boolean transactional, final String... statements) {
+        this.version = version;
+        this.description = description;
+        this.transactional = transactional;
+        this.statements = Arrays.asList(statements);
+    }
+
+    static SchemaMigration transactional(final int version, final String description, final String... statements) {
+        return new SchemaMigration(version, description, true, statements);
+    }
+
+    static SchemaMigration concurrent(final int version, final String description, final String... statements) {
+        return new SchemaMigration(version, description, false, statements);
+    }
+
+    @Override
+    public String toString() {
+        return "V" + version + " " + description;
+    }
+}
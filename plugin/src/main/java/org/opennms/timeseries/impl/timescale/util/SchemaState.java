@@ -0,0 +1,21 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import lombok.Data;
+
+/**
+ * What {@link TimescaleDatabaseInitializer} checks on startup, read in one round trip.
+ */
+@Data
+class SchemaState {
+
+    private boolean extensionInstalled;
+
+    /** true if timescale_time_series, timescale_metric and timescale_tag exist. */
+    private boolean tablesExisting;
+
+    /** true if timescale_time_series still has the TEXT key column of version 0.2.0 and older. */
+    private boolean legacySchema;
+
+    /** The latest applied migration, 0 if none is applied yet and -1 if the version table doesn't exist. */
+    private int version;
+}
@@ -0,0 +1,104 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set operations on sorted arrays of distinct ints, e.g. lists of metric ids.
+ */
+public final class SortedInts {
+
+    public static final int[] EMPTY = new int[0];
+
+    private SortedInts() {
+    }
+
+    /**
+     * Sorts the first size elements of the array and removes duplicates. Sorts in place.
+     */
+    public static int[] sortDistinct(final int[] values, final int size) {
+        Arrays.sort(values, 0, size);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (n == 0 || values[n - 1] != values[i]) {
+                values[n++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, n);
+    }
+
+    public static int[] intersect(final int[] a, final int[] b) {
+        final int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Intersects all sets, starting with the smallest one so that the intermediate results stay small.
+     */
+    public static int[] intersectAll(final List<int[]> sets) {
+        if (sets.isEmpty()) {
+            return EMPTY;
+        }
+        final int[][] sorted = sets.toArray(new int[0][]);
+        Arrays.sort(sorted, (x, y) -> Integer.compare(x.length, y.length));
+        int[] result = sorted[0];
+        for (int i = 1; i < sorted.length && result.length > 0; i++) {
+            result = intersect(result, sorted[i]);
+        }
+        return result;
+    }
+
+    public static int[] union(final int[] a, final int[] b) {
+        final int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[n++] = a[i++];
+        }
+        while (j < b.length) {
+            result[n++] = b[j++];
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return all elements of a which are not in b.
+     */
+    public static int[] difference(final int[] a, final int[] b) {
+        final int[] result = new int[a.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length) {
+            if (j >= b.length || a[i] < b[j]) {
+                result[n++] = a[i++];
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+}
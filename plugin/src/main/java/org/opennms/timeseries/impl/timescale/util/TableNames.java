@@ -4,4 +4,5 @@ public interface TableNames {
     String TIMESCALE_TIME_SERIES = "timescale_time_series";
     String TIMESCALE_METRIC = "timescale_metric";
     String TIMESCALE_TAG = "timescale_tag";
+    String TIMESCALE_SCHEMA_VERSION = "timescale_schema_version";
 }
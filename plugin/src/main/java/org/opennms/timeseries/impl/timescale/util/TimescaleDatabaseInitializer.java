@@ -1,13 +1,24 @@
 package org.opennms.timeseries.impl.timescale.util;
 
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
+import org.opennms.timeseries.impl.timescale.FetchResultCache;
+import org.opennms.timeseries.impl.timescale.RollupTier;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
+
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
@@ -19,8 +30,73 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class TimescaleDatabaseInitializer {
 
+    static final String[] CREATE_TABLES = {
+            "CREATE TABLE timescale_metric(id SERIAL PRIMARY KEY, key TEXT NOT NULL UNIQUE)",
+            "CREATE TABLE timescale_time_series(time TIMESTAMPTZ NOT NULL, fk_timescale_metric INTEGER NOT NULL, value DOUBLE PRECISION NULL)",
+            "SELECT create_hypertable('timescale_time_series', 'time')",
+            "CREATE INDEX timescale_time_series_metric_time_idx ON timescale_time_series(fk_timescale_metric, time DESC)",
+            "CREATE TABLE timescale_tag(fk_timescale_metric INTEGER NOT NULL REFERENCES timescale_metric(id) ON DELETE CASCADE, key TEXT, value TEXT NOT NULL, type TEXT NOT NULL, UNIQUE (fk_timescale_metric, key, value, type))"
+    };
+
+    /**
+     * The schema history, ordered by version. Never change a released migration, add a new one instead.
+     */
+    static final List<SchemaMigration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            SchemaMigration.transactional(1, "Create tables", CREATE_TABLES),
+            // tag lookups by key and value (findMetrics) without scanning timescale_tag. An aborted concurrent build leaves
+            // an invalid index behind, so we drop it before (re-)building.
+            SchemaMigration.concurrent(2, "Index timescale_tag(key, value)",
+                    "DROP INDEX CONCURRENTLY IF EXISTS timescale_tag_key_value_idx",
+                    "CREATE INDEX CONCURRENTLY timescale_tag_key_value_idx ON timescale_tag(key, value)")));
+
+    /** Key of the advisory lock which keeps several instances from migrating the same database at once. */
+    private static final long MIGRATION_LOCK_KEY = 0x74737363616c65L;
+
+    private static final long MIGRATION_LOCK_POLL_MILLIS = 1000;
+
+    private static final String SCHEMA_STATE_SQL = "SELECT"
+            + " EXISTS (SELECT 1 FROM pg_extension WHERE extname = 'timescaledb'),"
+            + " to_regclass('timescale_time_series') IS NOT NULL AND to_regclass('timescale_metric') IS NOT NULL AND to_regclass('timescale_tag') IS NOT NULL,"
+            + " EXISTS (SELECT 1 FROM pg_attribute WHERE attrelid = to_regclass('timescale_time_series') AND attname = 'key' AND NOT attisdropped),"
+            + " to_regclass('timescale_schema_version') IS NOT NULL";
+
     private final DataSource dataSource;
 
+    static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).getVersion();
+    }
+
+    /**
+     * Reads everything we need to know about the schema on startup with one query, plus one for the version if the
+     * version table exists.
+     */
+    SchemaState readSchemaState() throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery(SCHEMA_STATE_SQL);
+            db.watch(rs);
+            rs.next();
+            SchemaState state = new SchemaState();
+            state.setExtensionInstalled(rs.getBoolean(1));
+            state.setTablesExisting(rs.getBoolean(2));
+            state.setLegacySchema(rs.getBoolean(3));
+            state.setVersion(-1);
+            if (rs.getBoolean(4)) {
+                ResultSet version = stmt.executeQuery("SELECT coalesce(max(version), 0) FROM " + TableNames.TIMESCALE_SCHEMA_VERSION);
+                db.watch(version);
+                version.next();
+                state.setVersion(version.getInt(1));
+            }
+            return state;
+        } finally {
+            db.cleanUp();
+        }
+    }
+
     boolean isTimescaleExtensionInstalled() throws SQLException {
         DBUtils db = new DBUtils();
         try {
@@ -38,62 +114,391 @@ public class TimescaleDatabaseInitializer {
         }
     }
 
-    boolean isTimescaleTableExisting(String tableName) throws SQLException {
+    private void createTables(Statement stmt) throws SQLException {
+        for (String sql : CREATE_TABLES) {
+            executeQuery(stmt, sql);
+        }
+    }
+
+    /**
+     * Moves the data of the legacy schema into the new schema where the metric keys are replaced by ids from timescale_metric.
+     * Runs in one transaction: either everything is migrated or nothing.
+     */
+    void migrateLegacySchema() throws SQLException {
+        DBUtils db = new DBUtils();
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            db.watch(conn);
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+
+            executeQuery(stmt, "ALTER TABLE timescale_time_series RENAME TO timescale_time_series_legacy");
+            executeQuery(stmt, "ALTER TABLE timescale_tag RENAME TO timescale_tag_legacy");
+            // free up the names of the indexes / constraints, they would clash with the ones of the new tables
+            executeQuery(stmt, "ALTER INDEX IF EXISTS timescale_time_series_time_idx RENAME TO timescale_time_series_legacy_time_idx");
+            executeQuery(stmt, "ALTER TABLE timescale_tag_legacy DROP CONSTRAINT IF EXISTS timescale_tag_fk_timescale_metric_key_value_type_key");
+            // timescale_metric was never used by the legacy schema
+            executeQuery(stmt, "DROP TABLE timescale_metric");
+            createTables(stmt);
+
+            executeUpdate(stmt, "INSERT INTO timescale_metric(key) SELECT fk_timescale_metric FROM timescale_tag_legacy"
+                    + " UNION SELECT key FROM timescale_time_series_legacy");
+            executeUpdate(stmt, "INSERT INTO timescale_tag(fk_timescale_metric, key, value, type)"
+                    + " SELECT m.id, t.key, t.value, t.type FROM timescale_tag_legacy t JOIN timescale_metric m ON m.key = t.fk_timescale_metric");
+            executeUpdate(stmt, "INSERT INTO timescale_time_series(time, fk_timescale_metric, value)"
+                    + " SELECT s.time, m.id, s.value FROM timescale_time_series_legacy s JOIN timescale_metric m ON m.key = s.key");
+
+            executeQuery(stmt, "DROP TABLE timescale_tag_legacy");
+            executeQuery(stmt, "DROP TABLE timescale_time_series_legacy");
+            conn.commit();
+        } catch (SQLException e) {
+            if (conn != null) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    Set<String> getContinuousAggregates() throws SQLException {
         DBUtils db = new DBUtils();
         try {
             Connection conn = dataSource.getConnection();
             db.watch(conn);
-            DatabaseMetaData metaData = conn.getMetaData();
-            ResultSet tables = metaData.getTables(null, null, tableName, null);
-            db.watch(tables);
-            return tables.next();
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery("SELECT view_name FROM timescaledb_information.continuous_aggregates");
+            db.watch(rs);
+            Set<String> views = new HashSet<>();
+            while (rs.next()) {
+                views.add(rs.getString(1));
+            }
+            return views;
         } finally {
             db.cleanUp();
         }
     }
 
-    boolean isTimescaleTablesExisting() throws SQLException {
-        return isTimescaleTableExisting(TableNames.TIMESCALE_TIME_SERIES)
-                && isTimescaleTableExisting(TableNames.TIMESCALE_METRIC)
-                && isTimescaleTableExisting(TableNames.TIMESCALE_TAG);
+    /**
+     * Creates a continuous aggregate with min, max, avg and count per metric and bucket. The aggregate is created
+     * WITH DATA: existing samples are aggregated right away.
+     * Since materialized_only is off, buckets which are not materialized yet are aggregated from the raw samples at query time.
+     */
+    void createRollup(final RollupTier tier) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            executeQuery(stmt, String.format("CREATE MATERIALIZED VIEW %s WITH (timescaledb.continuous, timescaledb.materialized_only = false) AS"
+                    + " SELECT fk_timescale_metric, time_bucket(INTERVAL '%d seconds', time) AS bucket,"
+                    + " min(value) AS min, max(value) AS max, avg(value) AS avg, count(value) AS count"
+                    + " FROM timescale_time_series GROUP BY fk_timescale_metric, bucket", tier.getViewName(), tier.getWidth().getSeconds()));
+        } finally {
+            db.cleanUp();
+        }
     }
 
-    void createTables() throws SQLException {
+    /**
+     * (Re-)creates the refresh policy of the tier so that changes of the configuration are applied.
+     */
+    void updateRollupPolicy(final RollupTier tier, final int startOffsetBuckets, final int endOffsetBuckets, final int scheduleBuckets) throws SQLException {
+        final long width = tier.getWidth().getSeconds();
         DBUtils db = new DBUtils();
         try {
             Connection conn = dataSource.getConnection();
             db.watch(conn);
             Statement stmt = conn.createStatement();
             db.watch(stmt);
-            executeQuery(stmt, "CREATE TABLE timescale_time_series(key TEXT NOT NULL, time TIMESTAMPTZ NOT NULL, value DOUBLE PRECISION NULL)");
-            executeQuery(stmt, "SELECT create_hypertable('timescale_time_series', 'time');");
-            executeQuery(stmt, "CREATE TABLE timescale_metric(key TEXT NOT NULL PRIMARY KEY)");
-            executeQuery(stmt, "CREATE TABLE timescale_tag(fk_timescale_metric TEXT NOT NULL, key TEXT, value TEXT NOT NULL, type TEXT NOT NULL, UNIQUE (fk_timescale_metric, key, value, type))");
+            executeQuery(stmt, String.format("SELECT remove_continuous_aggregate_policy('%s', if_exists => true)", tier.getViewName()));
+            executeQuery(stmt, String.format("SELECT add_continuous_aggregate_policy('%s', start_offset => INTERVAL '%d seconds',"
+                            + " end_offset => INTERVAL '%d seconds', schedule_interval => INTERVAL '%d seconds')",
+                    tier.getViewName(), startOffsetBuckets * width, endOffsetBuckets * width, scheduleBuckets * width));
         } finally {
             db.cleanUp();
         }
     }
 
+    /**
+     * Makes sure the configured rollup tiers exist and their refresh policies match the configuration.
+     *
+     * @return the tiers which can be queried, coarsest first.
+     */
+    public List<RollupTier> initializeRollups(final TimescaleStorageConfig config) throws SQLException {
+        final List<RollupTier> tiers = RollupTier.parse(config.getRollupTiers());
+        if (tiers.isEmpty() || !isTimescaleExtensionInstalled()) {
+            return new ArrayList<>();
+        }
+        int startOffset = config.getRollupRefreshStartOffsetBuckets();
+        final int endOffset = config.getRollupRefreshEndOffsetBuckets();
+        if (startOffset - endOffset < 2) {
+            // TimescaleDB insists on a refresh window of at least two buckets
+            log.warn("rollupRefreshStartOffsetBuckets must be at least rollupRefreshEndOffsetBuckets + 2, using {}.", endOffset + 2);
+            startOffset = endOffset + 2;
+        }
+        final Set<String> existing = getContinuousAggregates();
+        for (RollupTier tier : tiers) {
+            if (!existing.contains(tier.getViewName())) {
+                log.info("Rollup tier {} is missing. Will create it now, this might take a while if there are many samples.", tier.getShortName());
+                createRollup(tier);
+            }
+            updateRollupPolicy(tier, startOffset, endOffset, Math.max(1, config.getRollupRefreshScheduleBuckets()));
+        }
+        return tiers;
+    }
+
+    /**
+     * Re-aggregates the buckets of the tiers which overlap the time range, e.g. for samples which were written after the
+     * refresh policies passed their buckets. Must not run within a transaction.
+     */
+    public void refreshRollups(final List<RollupTier> tiers, final Instant start, final Instant end) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            for (RollupTier tier : tiers) {
+                final long width = tier.getWidth().toMillis();
+                // only buckets entirely within the window are refreshed
+                final Instant from = Instant.ofEpochMilli(FetchResultCache.alignDown(start.toEpochMilli(), width));
+                final Instant to = Instant.ofEpochMilli(FetchResultCache.alignDown(end.toEpochMilli(), width) + width);
+                executeQuery(stmt, String.format("CALL refresh_continuous_aggregate('%s', '%s'::timestamptz, '%s'::timestamptz)",
+                        tier.getViewName(), from, to));
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    boolean isCompressionEnabled() throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery("SELECT compression_enabled FROM timescaledb_information.hypertables WHERE hypertable_name = 'timescale_time_series'");
+            db.watch(rs);
+            return rs.next() && rs.getBoolean(1);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    /**
+     * Applies chunk interval, compression and retention settings to timescale_time_series. Works for new and existing hypertables:
+     * a changed chunk interval applies to new chunks only, existing chunks keep their size.
+     * The compression settings can't be changed once chunks are compressed, so they are only set if compression is not enabled yet.
+     */
+    public void configureHypertable(final TimescaleStorageConfig config) throws SQLException {
+        if (!isTimescaleExtensionInstalled()) {
+            return;
+        }
+        final boolean compressionEnabled = isCompressionEnabled();
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            if (config.getChunkTimeIntervalSeconds() > 0) {
+                executeQuery(stmt, String.format("SELECT set_chunk_time_interval('timescale_time_series', INTERVAL '%d seconds')", config.getChunkTimeIntervalSeconds()));
+            }
+            if (config.isCompressionEnabled()) {
+                if (!compressionEnabled) {
+                    // segment by metric: the samples of one metric are compressed together and a query for one metric
+                    // only decompresses its own segments
+                    executeQuery(stmt, "ALTER TABLE timescale_time_series SET (timescaledb.compress,"
+                            + " timescaledb.compress_segmentby = 'fk_timescale_metric', timescaledb.compress_orderby = 'time DESC')");
+                }
+                executeQuery(stmt, "SELECT remove_compression_policy('timescale_time_series', if_exists => true)");
+                executeQuery(stmt, String.format("SELECT add_compression_policy('timescale_time_series', INTERVAL '%d seconds')", config.getCompressAfterSeconds()));
+            } else if (compressionEnabled) {
+                // already compressed chunks stay compressed, we just don't compress new ones
+                executeQuery(stmt, "SELECT remove_compression_policy('timescale_time_series', if_exists => true)");
+            }
+            executeQuery(stmt, "SELECT remove_retention_policy('timescale_time_series', if_exists => true)");
+            if (config.getRetentionSeconds() > 0) {
+                executeQuery(stmt, String.format("SELECT add_retention_policy('timescale_time_series', INTERVAL '%d seconds')", config.getRetentionSeconds()));
+            }
+        } finally {
+            db.cleanUp();
+        }
+        log.info("Hypertable timescale_time_series: {}", getHypertableStats());
+    }
+
+    public HypertableStats getHypertableStats() throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery("SELECT"
+                    + " (SELECT count(*) FROM timescaledb_information.chunks WHERE hypertable_name = 'timescale_time_series'),"
+                    + " (SELECT count(*) FROM timescaledb_information.chunks WHERE hypertable_name = 'timescale_time_series' AND is_compressed),"
+                    + " hypertable_size('timescale_time_series'),"
+                    + " (SELECT coalesce(sum(before_compression_total_bytes), 0) FROM chunk_compression_stats('timescale_time_series')),"
+                    + " (SELECT coalesce(sum(after_compression_total_bytes), 0) FROM chunk_compression_stats('timescale_time_series'))");
+            db.watch(rs);
+            rs.next();
+            HypertableStats stats = new HypertableStats();
+            stats.setChunks(rs.getLong(1));
+            stats.setCompressedChunks(rs.getLong(2));
+            stats.setTotalBytes(rs.getLong(3));
+            stats.setBeforeCompressionBytes(rs.getLong(4));
+            stats.setAfterCompressionBytes(rs.getLong(5));
+            return stats;
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private void executeUpdate(Statement stmt, final String sql) throws SQLException {
+        log.info(sql);
+        int rows = stmt.executeUpdate(sql);
+        log.info("{} rows affected.", rows);
+    }
+
     private void executeQuery(Statement stmt, final String sql) throws SQLException {
         log.info(sql);
         stmt.execute(sql);
     }
 
     public void initializeIfNeeded() throws SQLException {
-
-        // Check Plugin
-        if (!isTimescaleExtensionInstalled()) {
+        final SchemaState state = readSchemaState();
+        if (!state.isExtensionInstalled()) {
             log.error("It looks like timescale plugin is not installed. Please install: https://docs.timescale.com/latest/getting-started/installation. Aborting.");
             return;
         }
+        if (state.getVersion() >= getLatestVersion()) {
+            log.info("Timescale schema is at version {}. We are good to go.", state.getVersion());
+            return;
+        }
+
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            lockMigrations(stmt);
+            try {
+                // another instance might have migrated the schema while we were waiting for the lock
+                migrate(conn, stmt, readSchemaState());
+            } finally {
+                executeQuery(stmt, "SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ")");
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private void migrate(final Connection conn, final Statement stmt, final SchemaState state) throws SQLException {
+        int version = state.getVersion();
+        if (version < 0) {
+            if (state.isTablesExisting() && state.isLegacySchema()) {
+                log.info("Timescale tables use the legacy schema with TEXT keys. Will migrate them now, this might take a while for big installations.");
+                migrateLegacySchema();
+                log.info("Timescale tables migrated.");
+            }
+            if (!state.isTablesExisting()) {
+                log.info("Timescale tables are missing. Will create them now.");
+            }
+            createVersionTable(conn, stmt, state.isTablesExisting());
+            version = state.isTablesExisting() ? 1 : 0;
+        }
+        for (SchemaMigration migration : MIGRATIONS) {
+            if (migration.getVersion() > version) {
+                applyMigration(conn, stmt, migration);
+            }
+        }
+        log.info("Timescale schema is at version {}. We are good to go.", getLatestVersion());
+    }
+
+    private void createVersionTable(final Connection conn, final Statement stmt, final boolean tablesExisting) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            executeQuery(stmt, "CREATE TABLE timescale_schema_version(version INTEGER PRIMARY KEY, description TEXT NOT NULL,"
+                    + " installed_on TIMESTAMPTZ NOT NULL DEFAULT now())");
+            if (tablesExisting) {
+                // the tables were created before we kept track of the schema version, they match version 1
+                recordMigration(conn, MIGRATIONS.get(0));
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void applyMigration(final Connection conn, final Statement stmt, final SchemaMigration migration) throws SQLException {
+        log.info("Applying schema migration {}.", migration);
+        if (!migration.isTransactional()) {
+            for (String sql : migration.getStatements()) {
+                executeQuery(stmt, sql);
+            }
+            recordMigration(conn, migration);
+            return;
+        }
+        conn.setAutoCommit(false);
+        try {
+            for (String sql : migration.getStatements()) {
+                executeQuery(stmt, sql);
+            }
+            recordMigration(conn, migration);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void recordMigration(final Connection conn, final SchemaMigration migration) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            PreparedStatement ps = conn.prepareStatement("INSERT INTO timescale_schema_version(version, description) VALUES (?, ?)");
+            db.watch(ps);
+            ps.setInt(1, migration.getVersion());
+            ps.setString(2, migration.getDescription());
+            ps.executeUpdate();
+        } finally {
+            db.cleanUp();
+        }
+    }
 
-        // Check and create tables
-        if (isTimescaleTablesExisting()) {
-            log.info("Timescale tables exist. We are good to go.");
-        } else {
-            log.info("Timescale tables are missing. Will create them now.");
-            createTables();
-            log.info("Timescale tables created.");
+    /**
+     * Waits until no other instance is migrating. Polls instead of blocking in pg_advisory_lock(): a session waiting
+     * for the lock would hold a snapshot, which CREATE INDEX CONCURRENTLY of the other instance had to wait for.
+     */
+    private void lockMigrations(final Statement stmt) throws SQLException {
+        boolean waiting = false;
+        while (true) {
+            try (ResultSet rs = stmt.executeQuery("SELECT pg_try_advisory_lock(" + MIGRATION_LOCK_KEY + ")")) {
+                rs.next();
+                if (rs.getBoolean(1)) {
+                    return;
+                }
+            }
+            if (!waiting) {
+                log.info("Another instance is migrating the Timescale schema. Waiting for it to finish.");
+                waiting = true;
+            }
+            try {
+                Thread.sleep(MIGRATION_LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the schema migration lock.", e);
+            }
         }
     }
 }
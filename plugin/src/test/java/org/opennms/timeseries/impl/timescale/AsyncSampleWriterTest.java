@@ -0,0 +1,239 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class AsyncSampleWriterTest {
+
+    @Test
+    public void shouldWriteAllSamplesOnStop() throws Exception {
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger batches = new AtomicInteger();
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setAsyncMaxBatchSize(1000);
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            written.addAndGet(samples.size());
+            batches.incrementAndGet();
+        }, config);
+        writer.start();
+
+        for (int i = 0; i < 100; i++) {
+            writer.enqueue(createSamples(50));
+        }
+        writer.stop(10_000);
+
+        assertEquals(5000, written.get());
+        assertEquals(5000, writer.getWrittenSamples());
+        assertEquals(0, writer.getQueueSize());
+        // samples of several callers are coalesced
+        assertTrue(batches.get() < 100);
+    }
+
+    @Test
+    public void shouldDropNewestWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            blocked.countDown();
+            await(release);
+        }, createConfig(OverflowPolicy.DROP_NEWEST));
+        writer.start();
+
+        // the first sample blocks the only flusher
+        writer.enqueue(createSamples(1));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        writer.enqueue(createSamples(15));
+        assertEquals(10, writer.getQueueSize());
+        assertEquals(5, writer.getDroppedSamples());
+
+        release.countDown();
+        writer.stop(10_000);
+    }
+
+    @Test
+    public void shouldFailWhenBlockedTooLong() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            blocked.countDown();
+            await(release);
+        }, createConfig(OverflowPolicy.BLOCK));
+        writer.start();
+        writer.enqueue(createSamples(1));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        try {
+            writer.enqueue(createSamples(15));
+            fail("expected StorageException");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(5, writer.getDroppedSamples());
+
+        release.countDown();
+        writer.stop(10_000);
+    }
+
+    @Test
+    public void shouldWriteSynchronouslyWhenStopped() throws Exception {
+        List<Thread> writers = Collections.synchronizedList(new ArrayList<>());
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> writers.add(Thread.currentThread()), createConfig(OverflowPolicy.BLOCK));
+        writer.start();
+        writer.stop(10_000);
+
+        writer.enqueue(createSamples(5));
+        assertEquals(Collections.singletonList(Thread.currentThread()), writers);
+        assertEquals(0, writer.getQueueSize());
+    }
+
+    @Test
+    public void shouldFailWhenInterrupted() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger overflow = new AtomicInteger();
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            blocked.countDown();
+            await(release);
+        }, samples -> overflow.addAndGet(samples.size()), createConfig(OverflowPolicy.BLOCK));
+        writer.start();
+        writer.enqueue(createSamples(1));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        Thread.currentThread().interrupt();
+        try {
+            writer.enqueue(createSamples(15));
+            fail("expected StorageException");
+        } catch (StorageException e) {
+            // expected: the interrupted samples are neither written nor spooled
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, overflow.get());
+        assertEquals(15, writer.getDroppedSamples());
+
+        release.countDown();
+        writer.stop(10_000);
+    }
+
+    @Test
+    public void shouldSpoolEvictedSamples() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Sample> overflow = Collections.synchronizedList(new ArrayList<>());
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            blocked.countDown();
+            await(release);
+        }, overflow::addAll, createConfig(OverflowPolicy.DROP_OLDEST));
+        writer.start();
+        writer.enqueue(createSamples(1));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        List<Sample> samples = createSamples(15);
+        writer.enqueue(samples);
+        assertEquals(10, writer.getQueueSize());
+        assertEquals(samples.subList(0, 5), overflow);
+        assertEquals(0, writer.getDroppedSamples());
+
+        release.countDown();
+        writer.stop(10_000);
+    }
+
+    @Test
+    public void shouldSpoolLeftoverSamplesWhenStopTimesOut() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Sample> overflow = Collections.synchronizedList(new ArrayList<>());
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> {
+            blocked.countDown();
+            // a write stuck in the database doesn't react to the interrupt
+            while (release.getCount() > 0) {
+                await(release);
+                Thread.interrupted();
+            }
+        }, overflow::addAll, createConfig(OverflowPolicy.BLOCK));
+        writer.start();
+        writer.enqueue(createSamples(1));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        List<Sample> samples = createSamples(5);
+        writer.enqueue(samples);
+        writer.stop(100);
+        assertEquals(samples, overflow);
+        assertEquals(0, writer.getQueueSize());
+        assertEquals(0, writer.getDroppedSamples());
+
+        release.countDown();
+    }
+
+    @Test
+    public void shouldExposeStatsViaJmx() throws Exception {
+        AsyncSampleWriter writer = new AsyncSampleWriter(samples -> { }, createConfig(OverflowPolicy.DROP_NEWEST));
+        writer.start();
+        writer.enqueue(createSamples(3));
+        writer.stop(10_000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.opennms.plugins.tss.timescale:type=AsyncSampleWriter,test=true");
+        server.registerMBean(writer, name);
+        try {
+            assertEquals(0, server.getAttribute(name, "QueueSize"));
+            assertEquals(3L, server.getAttribute(name, "WrittenSamples"));
+            assertEquals(0L, server.getAttribute(name, "DroppedSamples"));
+            assertTrue((Long) server.getAttribute(name, "FlushCount") > 0);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static TimescaleStorageConfig createConfig(OverflowPolicy policy) {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setAsyncQueueSize(10);
+        config.setAsyncFlusherThreads(1);
+        config.setAsyncMaxBatchSize(1);
+        config.setAsyncOverflowPolicy(policy);
+        config.setAsyncOfferTimeoutMillis(10);
+        return config;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<Sample> createSamples(int count) {
+        Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "a")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+                .build();
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder().metric(metric).time(Instant.now()).value((double) i).build());
+        }
+        return Collections.unmodifiableList(samples);
+    }
+}
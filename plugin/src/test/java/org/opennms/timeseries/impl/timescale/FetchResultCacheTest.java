@@ -0,0 +1,105 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class FetchResultCacheTest {
+
+    private final Metric metric = ImmutableMetric.builder()
+            .intrinsicTag(IntrinsicTagNames.name, "a")
+            .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+            .build();
+
+    @Test
+    public void shouldAlignLikeTimeBucket() {
+        // time_bucket('1 hour', ...) and time_bucket('1 day', ...) are aligned to the epoch
+        long time = Instant.parse("2021-06-15T13:47:11Z").toEpochMilli();
+        assertEquals(Instant.parse("2021-06-15T13:00:00Z").toEpochMilli(), FetchResultCache.alignDown(time, 3_600_000));
+        assertEquals(Instant.parse("2021-06-15T00:00:00Z").toEpochMilli(), FetchResultCache.alignDown(time, 86_400_000));
+        // weeks start on Monday, the origin of time_bucket()
+        assertEquals(Instant.parse("2021-06-14T00:00:00Z").toEpochMilli(), FetchResultCache.alignDown(time, 7 * 86_400_000L));
+        assertEquals(Instant.parse("1999-12-27T00:00:00Z").toEpochMilli(), FetchResultCache.alignDown(Instant.parse("2000-01-01T00:00:00Z").toEpochMilli(), 7 * 86_400_000L));
+    }
+
+    @Test
+    public void shouldCacheAndInvalidateBlocks() {
+        FetchResultCache cache = new FetchResultCache(1_000_000, 64, 300_000);
+        assertFalse(cache.isCacheable(Aggregation.NONE, 60_000));
+        assertTrue(cache.isCacheable(Aggregation.AVERAGE, 60_000));
+
+        SampleColumns columns = new SampleColumns(metric);
+        columns.add(0, 1.0);
+        assertNull(cache.get(metric.getKey(), Aggregation.AVERAGE, 60_000, 0));
+        cache.put(metric.getKey(), Aggregation.AVERAGE, 60_000, 0, columns, cache.getGeneration(metric.getKey()));
+        assertSame(columns, cache.get(metric.getKey(), Aggregation.AVERAGE, 60_000, 0));
+        assertNull(cache.get(metric.getKey(), Aggregation.MAX, 60_000, 0));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertTrue(cache.getEstimatedMemoryBytes() > 0);
+
+        cache.invalidate(Collections.singleton(metric.getKey()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldOnlyInvalidateTheGivenMetrics() {
+        FetchResultCache cache = new FetchResultCache(1_000_000, 64, 300_000);
+        Metric other = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "c")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+                .build();
+        SampleColumns columns = new SampleColumns(metric);
+        SampleColumns otherColumns = new SampleColumns(other);
+        cache.put(metric.getKey(), Aggregation.AVERAGE, 60_000, 0, columns, cache.getGeneration(metric.getKey()));
+        cache.put(other.getKey(), Aggregation.AVERAGE, 60_000, 0, otherColumns, cache.getGeneration(other.getKey()));
+
+        cache.invalidate(Collections.singleton(metric.getKey()));
+        assertNull(cache.get(metric.getKey(), Aggregation.AVERAGE, 60_000, 0));
+        assertSame(otherColumns, cache.get(other.getKey(), Aggregation.AVERAGE, 60_000, 0));
+    }
+
+    @Test
+    public void shouldNotPutBlocksFetchedBeforeAnInvalidation() {
+        FetchResultCache cache = new FetchResultCache(1_000_000, 64, 300_000);
+        long generation = cache.getGeneration(metric.getKey());
+        // a late sample is written while the block is being fetched
+        cache.invalidate(Collections.singleton(metric.getKey()));
+        cache.put(metric.getKey(), Aggregation.AVERAGE, 60_000, 0, new SampleColumns(metric), generation);
+        assertNull(cache.get(metric.getKey(), Aggregation.AVERAGE, 60_000, 0));
+        assertEquals(0, cache.size());
+
+        SampleColumns columns = new SampleColumns(metric);
+        cache.put(metric.getKey(), Aggregation.AVERAGE, 60_000, 0, columns, cache.getGeneration(metric.getKey()));
+        assertSame(columns, cache.get(metric.getKey(), Aggregation.AVERAGE, 60_000, 0));
+    }
+
+    @Test
+    public void shouldEvictWhenFull() {
+        FetchResultCache cache = new FetchResultCache(10_000, 64, 300_000);
+        for (int block = 0; block < 100; block++) {
+            SampleColumns columns = new SampleColumns(metric);
+            for (int i = 0; i < 64; i++) {
+                columns.add(i, i);
+            }
+            cache.put(metric.getKey(), Aggregation.AVERAGE, 60_000, block, columns, cache.getGeneration(metric.getKey()));
+        }
+        assertTrue(cache.size() < 100);
+        assertTrue(cache.getEstimatedMemoryBytes() <= 10_000);
+
+        // evicted blocks are removed from the index, invalidating only touches the cached ones
+        cache.invalidate(Collections.singleton(metric.getKey()));
+        assertEquals(0, cache.size());
+    }
+}
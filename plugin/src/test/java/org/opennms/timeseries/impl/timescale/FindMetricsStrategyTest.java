@@ -0,0 +1,39 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+public class FindMetricsStrategyTest {
+
+    @Test
+    public void shouldChooseStrategy() {
+        TagMatcher equals = matcher(TagMatcher.Type.EQUALS);
+        TagMatcher regex = matcher(TagMatcher.Type.EQUALS_REGEX);
+        TagMatcher notEquals = matcher(TagMatcher.Type.NOT_EQUALS);
+
+        assertEquals(FindMetricsStrategy.JOIN, choose(regex));
+        assertEquals(FindMetricsStrategy.JOIN, choose(equals, regex));
+        assertEquals(FindMetricsStrategy.JOIN, choose(equals, equals, regex));
+        assertEquals(FindMetricsStrategy.PARALLEL, choose(regex, notEquals));
+        assertEquals(FindMetricsStrategy.PARALLEL, choose(equals, equals, equals, equals));
+
+        // configured strategies are used as they are
+        assertEquals(FindMetricsStrategy.PARALLEL, TimescaleStorage.chooseStrategy(FindMetricsStrategy.PARALLEL, Collections.singletonList(equals)));
+        assertEquals(FindMetricsStrategy.JOIN, TimescaleStorage.chooseStrategy(FindMetricsStrategy.JOIN, Arrays.asList(regex, regex, regex, regex)));
+    }
+
+    private static FindMetricsStrategy choose(TagMatcher... matchers) {
+        return TimescaleStorage.chooseStrategy(FindMetricsStrategy.AUTO, new ArrayList<>(Arrays.asList(matchers)));
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type) {
+        return ImmutableTagMatcher.builder().type(type).key("key").value("value").build();
+    }
+}
@@ -0,0 +1,66 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatestValueCacheTest {
+
+    private static double[] get(LatestValueCache cache, int id) {
+        double[] result = new double[2];
+        assertTrue(cache.get(id, (time, value) -> {
+            result[0] = time;
+            result[1] = value;
+        }));
+        return result;
+    }
+
+    @Test
+    public void shouldKeepNewestSample() {
+        LatestValueCache cache = new LatestValueCache(64);
+        assertFalse(cache.get(1, (time, value) -> {}));
+        cache.update(1, 1000, 1.0);
+        cache.update(1, 3000, 3.0);
+        cache.update(1, 2000, 2.0); // late
+        assertArrayEquals(new double[]{3000, 3.0}, get(cache, 1), 0.0);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.invalidate(1);
+        assertFalse(cache.get(1, (time, value) -> {}));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldOnlyUpdateCachedMetricsFromWrites() {
+        LatestValueCache cache = new LatestValueCache(64);
+        // a late sample of an uncached metric could be older than what the database has
+        cache.updateIfPresent(1, 1000, 1.0);
+        assertFalse(cache.get(1, (time, value) -> {}));
+
+        cache.update(1, 2000, 2.0);
+        cache.updateIfPresent(1, 1000, 1.0);
+        assertArrayEquals(new double[]{2000, 2.0}, get(cache, 1), 0.0);
+        cache.updateIfPresent(1, 3000, 3.0);
+        assertArrayEquals(new double[]{3000, 3.0}, get(cache, 1), 0.0);
+    }
+
+    @Test
+    public void shouldStayBoundedAndEvictOldestSamples() {
+        LatestValueCache cache = new LatestValueCache(100);
+        assertEquals(64, cache.capacity());
+        for (int id = 1; id <= 1000; id++) {
+            cache.update(id, id, id);
+        }
+        assertTrue(cache.size() <= cache.capacity());
+        // the most recently reporting metrics are still there
+        assertArrayEquals(new double[]{1000, 1000}, get(cache, 1000), 0.0);
+        assertFalse(cache.get(1, (time, value) -> {}));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,81 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LttbDownsamplerTest {
+
+    @Test
+    public void shouldKeepPeaksFirstAndLast() throws Exception {
+        List<Long> times = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        LttbDownsampler downsampler = new LttbDownsampler(0, 100_000, 100, (time, value) -> {
+            times.add(time);
+            values.add(value);
+        });
+        for (int i = 1; i < 100_000; i++) {
+            double value = Math.sin(i / 1000.0);
+            if (i == 54_321) {
+                value = 42.0;
+            } else if (i == 12_345) {
+                value = -42.0;
+            }
+            downsampler.add(i, value);
+        }
+        downsampler.finish();
+
+        assertTrue(values.size() <= 100);
+        assertTrue(values.size() >= 90);
+        assertEquals(1, (long) times.get(0));
+        assertEquals(99_999, (long) times.get(times.size() - 1));
+        assertTrue(values.contains(42.0));
+        assertTrue(values.contains(-42.0));
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue(times.get(i - 1) < times.get(i));
+        }
+    }
+
+    @Test
+    public void shouldKeepAllSamplesIfThereAreFewerThanBuckets() throws Exception {
+        List<Double> values = new ArrayList<>();
+        LttbDownsampler downsampler = new LttbDownsampler(0, 1000, 100, (time, value) -> values.add(value));
+        for (int i = 1; i <= 10; i++) {
+            downsampler.add(i * 99, i);
+        }
+        downsampler.finish();
+        assertEquals(10, values.size());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, values.get(i - 1), 0.0);
+        }
+    }
+
+    @Test
+    public void shouldHandleOneAndTwoSamples() throws Exception {
+        List<Double> values = new ArrayList<>();
+        LttbDownsampler downsampler = new LttbDownsampler(0, 1000, 3, (time, value) -> values.add(value));
+        downsampler.finish();
+        assertTrue(values.isEmpty());
+
+        downsampler = new LttbDownsampler(0, 1000, 3, (time, value) -> values.add(value));
+        downsampler.add(1, 1.0);
+        downsampler.finish();
+        assertEquals(1, values.size());
+
+        values.clear();
+        downsampler = new LttbDownsampler(0, 1000, 3, (time, value) -> values.add(value));
+        downsampler.add(1, 1.0);
+        downsampler.add(2, 2.0);
+        downsampler.finish();
+        assertEquals(2, values.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTooFewPoints() {
+        new LttbDownsampler(0, 1000, 2, (time, value) -> {});
+    }
+}
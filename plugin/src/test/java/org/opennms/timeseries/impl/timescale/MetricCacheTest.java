@@ -0,0 +1,66 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class MetricCacheTest {
+
+    @Test
+    public void shouldDetectNewAndChangedMetrics() {
+        MetricCache cache = new MetricCache(100, 3600);
+        Metric metric = createMetric("a", "meta1");
+
+        assertFalse(cache.isPersisted(metric));
+        cache.markPersisted(1, metric);
+        assertTrue(cache.isPersisted(metric));
+        assertTrue(cache.isPersisted(createMetric("a", "meta1")));
+
+        // same intrinsic tags but a different meta tag => needs to be written again
+        assertFalse(cache.isPersisted(createMetric("a", "meta2")));
+
+        cache.invalidate(metric);
+        assertFalse(cache.isPersisted(metric));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void shouldRememberIds() {
+        MetricCache cache = new MetricCache(100, 3600);
+        Metric metric = createMetric("a", "meta1");
+
+        assertNull(cache.getId(metric.getKey()));
+        cache.putId(metric.getKey(), 42);
+        assertEquals(Integer.valueOf(42), cache.getId(metric.getKey()));
+        // knowing the id doesn't mean the tags are persisted
+        assertFalse(cache.isPersisted(metric));
+
+        cache.markPersisted(42, metric);
+        cache.putId(metric.getKey(), 42);
+        assertTrue(cache.isPersisted(metric));
+    }
+
+    @Test
+    public void shouldBeDisabledWithSizeZero() {
+        MetricCache cache = new MetricCache(0, 3600);
+        Metric metric = createMetric("a", "meta1");
+        cache.markPersisted(1, metric);
+        assertFalse(cache.isPersisted(metric));
+    }
+
+    private static Metric createMetric(String name, String metaValue) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.resourceId, "resource")
+                .metaTag("meta", metaValue)
+                .build();
+    }
+}
@@ -0,0 +1,99 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class ReplicaRouterTest {
+
+    private final DataSource primary = mock(DataSource.class);
+    private final Connection primaryConnection = mock(Connection.class);
+
+    @Test
+    public void shouldSpreadQueriesOverHealthyReplicas() throws Exception {
+        Connection a = mock(Connection.class);
+        Connection b = mock(Connection.class);
+        ReplicaRouter router = createRouter(replica("a", a, 0), replica("b", b, 100));
+        router.checkHealth();
+
+        Set<Connection> used = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            used.add(router.getConnection(null));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), used);
+        assertEquals(0, router.getPrimaryFallbacks());
+        assertEquals(2, router.getReplicas().get(0).getQueries());
+        assertEquals(100, router.getReplicas().get(1).getLagMillis());
+    }
+
+    @Test
+    public void shouldFallBackToPrimaryIfReplicaLagsBehind() throws Exception {
+        Connection a = mock(Connection.class);
+        ReplicaRouter router = createRouter(replica("a", a, 60_000));
+        router.checkHealth();
+
+        assertSame(primaryConnection, router.getConnection(null));
+        assertEquals(1, router.getPrimaryFallbacks());
+    }
+
+    @Test
+    public void shouldFallBackToPrimaryIfQueryEndsWithinLag() throws Exception {
+        Connection a = mock(Connection.class);
+        ReplicaRouter router = createRouter(replica("a", a, 10_000));
+        router.checkHealth();
+
+        assertSame(primaryConnection, router.getConnection(Instant.now()));
+        assertSame(a, router.getConnection(Instant.now().minusSeconds(60)));
+    }
+
+    @Test
+    public void shouldSkipFailingReplicas() throws Exception {
+        DataSource broken = mock(DataSource.class);
+        when(broken.getConnection()).thenThrow(new SQLException("down"));
+        Connection b = mock(Connection.class);
+        ReplicaRouter.Replica replicaB = replica("b", b, 0);
+        ReplicaRouter router = createRouter(new ReplicaRouter.Replica("a", broken), replicaB);
+        router.checkHealth();
+
+        assertFalse(router.getReplicas().get(0).isHealthy());
+        assertTrue(router.getReplicas().get(1).isHealthy());
+        for (int i = 0; i < 3; i++) {
+            assertSame(b, router.getConnection(null));
+        }
+        assertEquals(1, router.getReplicas().get(0).getFailures());
+    }
+
+    private ReplicaRouter createRouter(ReplicaRouter.Replica... replicas) throws SQLException {
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        return new ReplicaRouter(primary, Arrays.asList(replicas), 30_000);
+    }
+
+    private static ReplicaRouter.Replica replica(String url, Connection connection, long lagMillis) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenReturn(true);
+        when(rs.getBoolean(1)).thenReturn(true);
+        when(rs.getLong(2)).thenReturn(lagMillis);
+        Statement statement = mock(Statement.class);
+        when(statement.executeQuery(ReplicaRouter.LAG_SQL)).thenReturn(rs);
+        when(connection.createStatement()).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        return new ReplicaRouter.Replica(url, dataSource);
+    }
+}
@@ -0,0 +1,36 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RollupTierTest {
+
+    @Test
+    public void shouldParseTiersCoarsestFirst() {
+        assertEquals(Arrays.asList(RollupTier.ONE_DAY, RollupTier.ONE_HOUR, RollupTier.FIVE_MINUTES), RollupTier.parse("5m, 1d,1h"));
+        assertEquals(Collections.emptyList(), RollupTier.parse(""));
+        assertEquals("timescale_time_series_1h", RollupTier.ONE_HOUR.getViewName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownTier() {
+        RollupTier.parse("5m,2h");
+    }
+
+    @Test
+    public void shouldServeStepsWhichAreMultiplesOfTheWidth() {
+        assertTrue(RollupTier.FIVE_MINUTES.canServe(Duration.ofMinutes(5)));
+        assertTrue(RollupTier.FIVE_MINUTES.canServe(Duration.ofMinutes(15)));
+        assertFalse(RollupTier.FIVE_MINUTES.canServe(Duration.ofMinutes(7)));
+        assertFalse(RollupTier.FIVE_MINUTES.canServe(Duration.ofMinutes(1)));
+        assertTrue(RollupTier.ONE_DAY.canServe(Duration.ofDays(7)));
+        assertFalse(RollupTier.ONE_DAY.canServe(Duration.ofHours(12)));
+    }
+}
@@ -0,0 +1,47 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class SampleColumnsTest {
+
+    private final Metric metric = ImmutableMetric.builder()
+            .intrinsicTag(IntrinsicTagNames.name, "a")
+            .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+            .build();
+
+    @Test
+    public void shouldGrowAndConvertToSamples() {
+        SampleColumns columns = new SampleColumns(metric, 1);
+        for (int i = 0; i < 100; i++) {
+            columns.add(1000L * i, i / 2.0);
+        }
+        assertEquals(100, columns.size());
+        assertEquals(99_000L, columns.getTime(99));
+        assertEquals(49.5, columns.getValue(99), 0.0);
+        assertArrayEquals(new long[]{0, 1000, 2000}, Arrays.copyOf(columns.toTimeArray(), 3));
+
+        List<Sample> samples = columns.asList();
+        assertEquals(100, samples.size());
+        assertEquals(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(2000)).value(1.0).build(), samples.get(2));
+        assertEquals(metric, samples.get(2).getMetric());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldCheckBounds() {
+        SampleColumns columns = new SampleColumns(metric);
+        columns.add(1, 1);
+        columns.asList().get(1);
+    }
+}
@@ -0,0 +1,85 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+public class SampleCopyEncoderTest {
+
+    @Test
+    public void shouldEncodeBinaryCopyFormat() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Connection connection = mockConnection(out);
+
+        Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "a")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+                .build();
+        List<Sample> samples = Arrays.asList(
+                ImmutableSample.builder().metric(metric).time(Instant.parse("2000-01-01T00:00:01Z")).value(42.0).build(),
+                ImmutableSample.builder().metric(metric).time(Instant.parse("2000-01-01T00:00:02Z")).value(43.0).build());
+
+        // small buffer to make sure we flush in between
+        long rows = new SampleCopyEncoder(40).copy(connection, samples, Collections.singletonMap(metric.getKey(), 7));
+        assertEquals(2, rows);
+
+        ByteBuffer result = ByteBuffer.wrap(out.toByteArray());
+        byte[] signature = new byte[11];
+        result.get(signature);
+        assertArrayEquals(new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0}, signature);
+        assertEquals(0, result.getInt()); // flags
+        assertEquals(0, result.getInt()); // extension
+
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(3, result.getShort());
+            assertEquals(8, result.getInt());
+            assertEquals(i * 1_000_000L, result.getLong()); // microseconds since 2000-01-01
+            assertEquals(4, result.getInt());
+            assertEquals(7, result.getInt());
+            assertEquals(8, result.getInt());
+            assertEquals(41.0 + i, result.getDouble(), 0.0);
+        }
+        assertEquals(-1, result.getShort());
+        assertEquals(0, result.remaining());
+    }
+
+    private static Connection mockConnection(ByteArrayOutputStream out) throws Exception {
+        CopyIn copyIn = mock(CopyIn.class);
+        doAnswer(invocation -> {
+            out.write(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(copyIn).writeToCopy(any(byte[].class), anyInt(), anyInt());
+        when(copyIn.endCopy()).thenReturn(2L);
+
+        CopyManager copyManager = mock(CopyManager.class);
+        when(copyManager.copyIn(eq(SampleCopyEncoder.COPY_SQL))).thenReturn(copyIn);
+        PGConnection pgConnection = mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        Connection connection = mock(Connection.class);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        return connection;
+    }
+}
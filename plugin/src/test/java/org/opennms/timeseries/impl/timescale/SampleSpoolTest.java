@@ -0,0 +1,204 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class SampleSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReplaySamplesAcrossSegments() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        List<Sample> samples = createSamples(1000);
+        spool.append(samples.subList(0, 600));
+        spool.append(samples.subList(600, 1000));
+        assertEquals(1000, spool.getPendingSamples());
+        assertTrue(spool.getSegmentCount() > 1);
+
+        List<Sample> replayed = new ArrayList<>();
+        SampleSpool.Batch batch;
+        while ((batch = spool.read(100)) != null) {
+            replayed.addAll(batch.getSamples());
+            spool.commit(batch);
+        }
+        assertEquals(samples, replayed);
+        assertEquals(0, spool.getPendingSamples());
+        // only the segment which is written to is left
+        assertEquals(1, spool.getSegmentCount());
+        assertEquals(1, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void shouldKeepPendingSamplesAcrossRestarts() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        List<Sample> samples = createSamples(300);
+        spool.append(samples);
+        SampleSpool.Batch batch = spool.read(1);
+        spool.commit(batch);
+        int replayed = batch.getSamples().size();
+        spool.close();
+
+        spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        assertEquals(300 - replayed, spool.getPendingSamples());
+        List<Sample> remaining = new ArrayList<>();
+        while ((batch = spool.read(1000)) != null) {
+            remaining.addAll(batch.getSamples());
+            spool.commit(batch);
+        }
+        assertEquals(samples.subList(replayed, 300), remaining);
+
+        // new samples go into a new segment
+        spool.append(createSamples(1));
+        assertEquals(1, spool.read(10).getSamples().size());
+    }
+
+    @Test
+    public void shouldDropSamplesWhenFull() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 2 * 4096);
+        spool.open();
+        try {
+            spool.append(createSamples(1000));
+            fail("spool should be full");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(2, spool.getSegmentCount());
+        assertEquals(1000, spool.getPendingSamples() + spool.getDroppedSamples());
+        assertTrue(spool.getDroppedSamples() > 0);
+    }
+
+    @Test
+    public void shouldRetryWhileDatabaseIsUnavailable() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        AtomicInteger attempts = new AtomicInteger();
+        List<Sample> written = new ArrayList<>();
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setSpoolRetryIntervalMillis(10);
+        config.setSpoolReplayBatchSize(10);
+        spool.append(createSamples(10));
+        spool.append(createSamples(20).subList(13, 14));
+        SpoolReplayer replayer = new SpoolReplayer(spool, (samples, committed) -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new StorageException(new SQLTransientConnectionException("connection is not available"));
+            }
+            if (samples.get(0).getValue() == 13.0) {
+                // refused by the database => discarded
+                throw new StorageException(new SQLException("invalid input", "22P02"));
+            }
+            written.addAll(samples);
+        }, config);
+        replayer.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (spool.getPendingSamples() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.stop(10_000);
+
+        assertEquals(10, written.size());
+        assertEquals(10, spool.getReplayedSamples());
+        assertEquals(1, spool.getDiscardedSamples());
+        assertEquals(0, spool.getPendingSamples());
+    }
+
+    @Test
+    public void shouldNotReplayCommittedSamplesAgain() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        List<Sample> samples = createSamples(30);
+        spool.append(samples);
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger drained = new AtomicInteger();
+        List<Sample> written = new ArrayList<>();
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setSpoolRetryIntervalMillis(10);
+        config.setSpoolReplayBatchSize(100);
+        SpoolReplayer replayer = new SpoolReplayer(spool, (batch, committed) -> {
+            // like commitBatchSize = 4: the first transaction is committed, the second one fails
+            written.addAll(batch.subList(0, 4));
+            committed.addAndGet(4);
+            if (attempts.incrementAndGet() == 1) {
+                throw new StorageException(new SQLTransientConnectionException("connection is not available"));
+            }
+            written.addAll(batch.subList(4, batch.size()));
+        }, drained::incrementAndGet, config);
+        replayer.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (spool.getPendingSamples() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        replayer.stop(10_000);
+
+        assertEquals(2, attempts.get());
+        assertEquals(samples, written);
+        // once drained and once stopped
+        assertEquals(2, drained.get());
+        assertEquals(30, spool.getReplayedSamples());
+    }
+
+    @Test
+    public void shouldKeepPartiallyCommittedFramesAcrossRestarts() throws Exception {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        List<Sample> samples = createSamples(30);
+        spool.append(samples.subList(0, 10));
+        spool.append(samples.subList(10, 30));
+        SampleSpool.Batch batch = spool.read(100);
+        assertEquals(30, batch.getSamples().size());
+        // the first frame and a part of the second one are written
+        spool.commit(batch, 14);
+        assertEquals(16, spool.getPendingSamples());
+        assertEquals(samples.subList(14, 30), spool.read(100).getSamples());
+        spool.close();
+
+        spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.open();
+        assertEquals(16, spool.getPendingSamples());
+        batch = spool.read(100);
+        assertEquals(samples.subList(14, 30), batch.getSamples());
+        spool.commit(batch, 2);
+        spool.discard(batch);
+        assertEquals(0, spool.getPendingSamples());
+        assertEquals(2, spool.getReplayedSamples());
+        assertEquals(14, spool.getDiscardedSamples());
+    }
+
+    private static List<Sample> createSamples(int count) {
+        List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Metric metric = ImmutableMetric.builder()
+                    .intrinsicTag(IntrinsicTagNames.name, "metric" + (i % 7))
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "resource")
+                    .metaTag("mtype", "gauge")
+                    .externalTag("ext", "ä" + i % 3)
+                    .build();
+            samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(1_000_000L + i)).value((double) i).build());
+        }
+        return samples;
+    }
+}
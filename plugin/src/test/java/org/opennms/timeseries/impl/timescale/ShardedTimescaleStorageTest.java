@@ -0,0 +1,302 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.AbstractStorageIntegrationTest;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.timescale.util.DBUtils;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Runs the storage tests against metrics sharded over two databases, the third one is added for rebalancing.
+ */
+public class ShardedTimescaleStorageTest extends AbstractStorageIntegrationTest {
+
+    private static final List<GenericContainer<?>> containers = new ArrayList<>();
+
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+    private ShardedTimescaleStorage sharded;
+
+    @BeforeClass
+    public static void setUpContainers() {
+        for (int i = 0; i < 3; i++) {
+            GenericContainer<?> container = new GenericContainer<>("timescale/timescaledb:latest-pg12")
+                    .withExposedPorts(5432)
+                    .withEnv("POSTGRES_PASSWORD", "password")
+                    .withEnv("TIMESCALEDB_TELEMETRY", "off")
+                    .waitingFor(Wait.forListeningPort().withStartupTimeout(Duration.ofSeconds(60)));
+            container.start();
+            containers.add(container);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownContainers() {
+        containers.forEach(GenericContainer::stop);
+        containers.clear();
+    }
+
+    private static HikariDataSource createDatasource(GenericContainer<?> container) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(String.format("jdbc:postgresql://localhost:%s/", container.getFirstMappedPort()));
+        config.setUsername("postgres");
+        config.setPassword("password");
+        return new HikariDataSource(config);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        for (GenericContainer<?> container : containers) {
+            dataSources.add(createDatasource(container));
+        }
+        sharded = new ShardedTimescaleStorage(Arrays.asList(dataSources.get(0), dataSources.get(1)), new TimescaleStorageConfig());
+        sharded.init();
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        sharded.destroy();
+        for (int i = 0; i < dataSources.size(); i++) {
+            // a test may have closed the pool to make a shard fail
+            HikariDataSource dataSource = dataSources.get(i).isClosed() ? createDatasource(containers.get(i)) : dataSources.get(i);
+            dropTables(dataSource);
+            dataSource.close();
+        }
+        dataSources.clear();
+    }
+
+    @Override
+    protected TimeSeriesStorage createStorage() {
+        return sharded;
+    }
+
+    @Test
+    public void shouldSpreadMetricsOverShards() throws Exception {
+        for (Metric metric : metrics) {
+            TimescaleStorage owner = sharded.getShard(metric);
+            assertEquals(loadSamplesForMetric(metric), owner.getTimeseries(createFetchRequest(metric)));
+            for (TimescaleStorage shard : sharded.getShards()) {
+                if (shard != owner) {
+                    assertTrue(shard.getTimeseries(createFetchRequest(metric)).isEmpty());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldReportTheSamplesOfFailedShards() throws Exception {
+        Instant now = Instant.now();
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Metric metric = ImmutableMetric.builder()
+                    .intrinsicTag(IntrinsicTagNames.name, "partial" + i)
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "shards")
+                    .build();
+            samples.add(ImmutableSample.builder().metric(metric).time(now).value((double) i).build());
+        }
+        TimescaleStorage failing = sharded.getShards().get(1);
+        List<Sample> expectedFailed = new ArrayList<>();
+        for (Sample sample : samples) {
+            if (sharded.getShard(sample.getMetric()) == failing) {
+                expectedFailed.add(sample);
+            }
+        }
+        assertTrue(!expectedFailed.isEmpty() && expectedFailed.size() < samples.size());
+
+        dataSources.get(1).close();
+        try {
+            sharded.store(samples);
+            fail("expected PartialStoreException");
+        } catch (PartialStoreException e) {
+            assertEquals(Collections.singletonList("shard-1"), e.getFailedShards());
+            assertEquals(Collections.singletonList("shard-0"), e.getStoredShards());
+            assertEquals(expectedFailed, e.getFailedSamples());
+        }
+        for (Sample sample : samples) {
+            if (!expectedFailed.contains(sample)) {
+                assertEquals(1, sharded.getShards().get(0).getTimeseries(ImmutableTimeSeriesFetchRequest.builder()
+                        .metric(sample.getMetric())
+                        .start(now.minusSeconds(1))
+                        .end(now.plusSeconds(1))
+                        .step(Duration.ZERO)
+                        .aggregation(Aggregation.NONE)
+                        .build()).size());
+            }
+        }
+    }
+
+    @Test
+    public void shouldRebalanceAfterAddingAShard() throws Exception {
+        List<List<Sample>> expected = new ArrayList<>();
+        for (Metric metric : metrics) {
+            expected.add(loadSamplesForMetric(metric));
+        }
+
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setShardVirtualNodes(1); // with only a handful of metrics, make sure some of them move
+        config.setTagIndexEnabled(true);
+        ShardedTimescaleStorage grown = new ShardedTimescaleStorage(dataSources, config);
+        grown.init();
+        try {
+            // a previous run copied a metric, but crashed before deleting it on the old shard
+            for (Metric metric : metrics) {
+                TimescaleStorage owner = grown.getShard(metric);
+                TimescaleStorage old = sharded.getShard(metric);
+                if (grown.getShards().indexOf(owner) != sharded.getShards().indexOf(old)) {
+                    List<Sample> copied = new ArrayList<>();
+                    grown.getShards().get(sharded.getShards().indexOf(old)).exportSamples(metric, copied::add);
+                    owner.writeSamples(copied);
+                    break;
+                }
+            }
+
+            ShardRebalancer.Result result = grown.rebalance();
+            assertEquals(metrics.size(), result.getMetricsChecked());
+            assertTrue(result.getMetricsMoved() > 0);
+
+            for (int i = 0; i < metrics.size(); i++) {
+                assertEquals(expected.get(i), grown.getTimeseries(createFetchRequest(metrics.get(i))));
+            }
+            // the tag indexes of the shards know where the metrics are now
+            assertEquals(metrics.size(), grown.findMetrics(Collections.singletonList(ImmutableTagMatcher.builder()
+                    .type(TagMatcher.Type.EQUALS_REGEX)
+                    .key(IntrinsicTagNames.name)
+                    .value(".*")
+                    .build())).size());
+            // nothing is left to move
+            assertEquals(0, grown.rebalance().getMetricsMoved());
+        } finally {
+            grown.destroy();
+        }
+    }
+
+    @Test
+    public void shouldRefreshRollupsOfMovedMetrics() throws Exception {
+        // historic samples, far older than the refresh windows of the tiers
+        Instant start = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(10, ChronoUnit.DAYS);
+        List<Metric> historic = new ArrayList<>();
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Metric metric = ImmutableMetric.builder()
+                    .intrinsicTag(IntrinsicTagNames.name, "historic" + i)
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "rollups")
+                    .build();
+            historic.add(metric);
+            for (int minute = 1; minute < 6 * 60; minute++) {
+                samples.add(ImmutableSample.builder().metric(metric).time(start.plus(minute, ChronoUnit.MINUTES)).value((double) minute + i).build());
+            }
+        }
+        sharded.store(samples);
+        List<List<Sample>> expected = new ArrayList<>();
+        for (Metric metric : historic) {
+            expected.add(sharded.getTimeseries(createHourlyRequest(metric, start)));
+        }
+
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setShardVirtualNodes(1);
+        config.setRollupsEnabled(true);
+        ShardedTimescaleStorage grown = new ShardedTimescaleStorage(dataSources, config);
+        grown.init();
+        try {
+            // only what is materialized counts: real-time aggregation would hide missing refreshes
+            for (DataSource dataSource : dataSources) {
+                for (RollupTier tier : RollupTier.values()) {
+                    execute(dataSource, String.format("ALTER MATERIALIZED VIEW %s SET (timescaledb.materialized_only = true)", tier.getViewName()));
+                }
+            }
+            assertEquals(RollupTier.ONE_HOUR, grown.getShards().get(0).selectRollupTier(createHourlyRequest(historic.get(0), start)));
+
+            assertTrue(grown.rebalance().getMetricsMoved() > 0);
+
+            for (int i = 0; i < historic.size(); i++) {
+                assertEquals(expected.get(i), grown.getTimeseries(createHourlyRequest(historic.get(i), start)));
+            }
+        } finally {
+            grown.destroy();
+        }
+    }
+
+    private static TimeSeriesFetchRequest createHourlyRequest(Metric metric, Instant start) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(start.plus(6, ChronoUnit.HOURS))
+                .step(Duration.ofHours(1))
+                .aggregation(Aggregation.AVERAGE)
+                .build();
+    }
+
+    private TimeSeriesFetchRequest createFetchRequest(Metric metric) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(referenceTime.minus(Duration.ofDays(7)))
+                .end(referenceTime.plus(Duration.ofDays(1)))
+                .step(Duration.ZERO)
+                .aggregation(Aggregation.NONE)
+                .build();
+    }
+
+    private static void execute(final DataSource dataSource, final String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            stmt.execute(sql);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private static void dropTables(final DataSource dataSource) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            stmt.execute("DROP TABLE IF EXISTS timescale_tag;");
+            stmt.execute("DROP TABLE IF EXISTS timescale_metric;");
+            stmt.execute("DROP TABLE IF EXISTS timescale_time_series CASCADE;");
+            stmt.execute("DROP TABLE IF EXISTS timescale_schema_version;");
+        } finally {
+            db.cleanUp();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * Runs the storage tests with samples written via binary COPY.
+ */
+public class TimescaleStorageCopyTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setIngestMode(IngestMode.COPY);
+        return config;
+    }
+}
@@ -0,0 +1,19 @@
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * Runs the storage tests with connection pools created by the plugin instead of the injected DataSource.
+ */
+public class TimescaleStorageDedicatedPoolsTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setDedicatedPoolsEnabled(true);
+        config.setJdbcUrl(String.format("jdbc:postgresql://localhost:%s/", container.getFirstMappedPort()));
+        config.setJdbcUser("postgres");
+        config.setJdbcPassword("password");
+        config.getWritePool().setMaxSize(4);
+        config.getReadPool().setMaxSize(2);
+        return config;
+    }
+}
@@ -0,0 +1,54 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/**
+ * Runs the storage tests with the latest value cache.
+ */
+public class TimescaleStorageLatestValueCacheTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setLatestValueCacheMaxSize(1024);
+        return config;
+    }
+
+    @Test
+    public void shouldServeLatestSamplesFromCache() throws Exception {
+        TimescaleStorage cached = (TimescaleStorage) storage;
+        Metric metric = metrics.get(0);
+        Sample newest = ImmutableSample.builder().metric(metric).time(Instant.now().truncatedTo(ChronoUnit.MILLIS)).value(42.0).build();
+        storage.store(Collections.singletonList(newest));
+
+        // the first query reads from the database and fills the cache
+        assertEquals(Collections.singletonList(newest), cached.getLatestSamples(Collections.singletonList(metric)));
+        long hits = cached.getLatestValueCache().getHitCount();
+        assertEquals(Collections.singletonList(newest), cached.getLatestSamples(Collections.singletonList(metric)));
+        assertTrue(cached.getLatestValueCache().getHitCount() > hits);
+
+        // writes update the cached metric
+        Sample newer = ImmutableSample.builder().metric(metric).time(newest.getTime().plusSeconds(60)).value(43.0).build();
+        storage.store(Collections.singletonList(newer));
+        assertEquals(Collections.singletonList(newer), cached.getLatestSamples(Collections.singletonList(metric)));
+        newest = newer;
+
+        // an older sample doesn't replace the newest one
+        storage.store(Collections.singletonList(ImmutableSample.builder().metric(metric).time(newest.getTime().minusSeconds(60)).value(1.0).build()));
+        assertEquals(Collections.singletonList(newest), cached.getLatestSamples(Collections.singletonList(metric)));
+
+        cached.delete(metric);
+        assertTrue(cached.getLatestSamples(Collections.singletonList(metric)).isEmpty());
+    }
+}
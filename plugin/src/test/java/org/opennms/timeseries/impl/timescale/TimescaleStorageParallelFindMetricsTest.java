@@ -0,0 +1,14 @@
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * Runs the storage tests with findMetrics() evaluating every matcher with its own query.
+ */
+public class TimescaleStorageParallelFindMetricsTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setFindMetricsStrategy(FindMetricsStrategy.PARALLEL);
+        return config;
+    }
+}
@@ -0,0 +1,65 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+
+/**
+ * Runs the storage tests with the result cache and checks that cached results are the same as uncached ones.
+ */
+public class TimescaleStorageResultCacheTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setResultCacheMaxBytes(10_000_000);
+        config.setResultCacheBucketsPerBlock(4);
+        return config;
+    }
+
+    @Test
+    public void shouldServeSealedBucketsFromCache() throws Exception {
+        Metric metric = metrics.get(0);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(6, ChronoUnit.HOURS);
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 6 * 60; i += 3) {
+            samples.add(ImmutableSample.builder().metric(metric).time(start.plus(i, ChronoUnit.MINUTES)).value((double) i).build());
+        }
+        storage.store(samples);
+
+        TimescaleStorage cached = (TimescaleStorage) storage;
+        TimescaleStorage uncached = new TimescaleStorage(dataSource);
+        // not aligned to buckets or blocks, reaching into the open buckets
+        TimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start.plus(7, ChronoUnit.MINUTES))
+                .end(Instant.now().plus(1, ChronoUnit.MINUTES))
+                .step(Duration.ofMinutes(5))
+                .aggregation(Aggregation.MAX)
+                .build();
+
+        List<Sample> expected = uncached.getTimeseries(request);
+        assertEquals(expected, cached.getTimeseries(request));
+        assertTrue(cached.getResultCache().size() > 0);
+        long hits = cached.getResultCache().getHitCount();
+        assertEquals(expected, cached.getTimeseries(request));
+        assertTrue(cached.getResultCache().getHitCount() > hits);
+
+        // deleting the metric drops its cached results
+        cached.delete(metric);
+        assertEquals(0, cached.getResultCache().size());
+    }
+}
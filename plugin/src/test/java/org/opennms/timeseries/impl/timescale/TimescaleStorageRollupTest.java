@@ -0,0 +1,156 @@
+package org.opennms.timeseries.impl.timescale;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.timescale.util.DBUtils;
+
+/**
+ * Runs the storage tests with rollup tiers and checks that aggregating the tiers gives the same results as the raw samples.
+ */
+public class TimescaleStorageRollupTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setRollupsEnabled(true);
+        return config;
+    }
+
+    @Test
+    public void shouldAggregateFromRollupTiers() throws Exception {
+        Metric metric = metrics.get(0);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.DAYS).minus(2, ChronoUnit.DAYS);
+        List<Sample> samples = new ArrayList<>();
+        // one sample per minute, the value is the minute
+        for (int i = 1; i < 180; i++) {
+            samples.add(ImmutableSample.builder().metric(metric).time(start.plus(i, ChronoUnit.MINUTES)).value((double) i).build());
+        }
+        storage.store(samples);
+        // don't depend on when the refresh policies run
+        refreshRollups();
+
+        TimescaleStorage timescale = (TimescaleStorage) storage;
+        ImmutableTimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(start.plus(3, ChronoUnit.HOURS))
+                .step(Duration.ofHours(1))
+                .aggregation(Aggregation.AVERAGE)
+                .build();
+        assertEquals(RollupTier.ONE_HOUR, timescale.selectRollupTier(request));
+
+        List<Sample> averages = storage.getTimeseries(request);
+        assertEquals(3, averages.size());
+        assertEquals(30.0, averages.get(0).getValue(), 0.001);
+        assertEquals(89.5, averages.get(1).getValue(), 0.001);
+        assertEquals(149.5, averages.get(2).getValue(), 0.001);
+
+        List<Sample> maxima = storage.getTimeseries(ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(request.getStart())
+                .end(request.getEnd())
+                .step(Duration.ofMinutes(30))
+                .aggregation(Aggregation.MAX)
+                .build());
+        assertEquals(6, maxima.size());
+        assertEquals(29.0, maxima.get(0).getValue(), 0.001);
+        assertEquals(179.0, maxima.get(5).getValue(), 0.001);
+    }
+
+    @Test
+    public void shouldAggregateTheEdgesFromRawSamples() throws Exception {
+        Metric metric = metrics.get(0);
+        Instant start = Instant.now().truncatedTo(ChronoUnit.DAYS).minus(2, ChronoUnit.DAYS);
+        List<Sample> samples = new ArrayList<>();
+        // one sample per minute, the value is the minute
+        for (int i = 0; i < 240; i++) {
+            samples.add(ImmutableSample.builder().metric(metric).time(start.plus(i, ChronoUnit.MINUTES)).value((double) i).build());
+        }
+        storage.store(samples);
+        // samples without a value in both edge buckets, they don't count for the average
+        execute(String.format("INSERT INTO timescale_time_series(time, fk_timescale_metric, value)"
+                + " SELECT t, id, NULL FROM timescale_metric, unnest(ARRAY['%s'::timestamptz, '%s'::timestamptz]) t WHERE key = '%s'",
+                start.plusSeconds(45 * 60 + 30), start.plusSeconds(200 * 60 + 30), metric.getKey()));
+        refreshRollups();
+
+        // the request is not aligned to the tier: only minutes 31 to 209 are within the range
+        TimescaleStorage timescale = (TimescaleStorage) storage;
+        Instant from = start.plus(30, ChronoUnit.MINUTES);
+        Instant to = start.plus(210, ChronoUnit.MINUTES);
+        assertEquals(RollupTier.ONE_HOUR, timescale.selectRollupTier(hourly(metric, from, to, Aggregation.AVERAGE)));
+
+        List<Sample> averages = storage.getTimeseries(hourly(metric, from, to, Aggregation.AVERAGE));
+        assertEquals(4, averages.size());
+        assertEquals(45.0, averages.get(0).getValue(), 0.001);
+        assertEquals(89.5, averages.get(1).getValue(), 0.001);
+        assertEquals(149.5, averages.get(2).getValue(), 0.001);
+        assertEquals(194.5, averages.get(3).getValue(), 0.001);
+
+        List<Sample> minima = storage.getTimeseries(hourly(metric, from, to, Aggregation.MIN));
+        assertEquals(31.0, minima.get(0).getValue(), 0.001);
+        assertEquals(180.0, minima.get(3).getValue(), 0.001);
+
+        List<Sample> maxima = storage.getTimeseries(hourly(metric, from, to, Aggregation.MAX));
+        assertEquals(59.0, maxima.get(0).getValue(), 0.001);
+        assertEquals(209.0, maxima.get(3).getValue(), 0.001);
+
+        // aligned to the tier: the sample on the start is still excluded
+        List<Sample> aligned = storage.getTimeseries(hourly(metric, start.plus(1, ChronoUnit.HOURS), start.plus(3, ChronoUnit.HOURS), Aggregation.MIN));
+        assertEquals(2, aligned.size());
+        assertEquals(61.0, aligned.get(0).getValue(), 0.001);
+        assertEquals(120.0, aligned.get(1).getValue(), 0.001);
+    }
+
+    private static ImmutableTimeSeriesFetchRequest hourly(Metric metric, Instant start, Instant end, Aggregation aggregation) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(end)
+                .step(Duration.ofHours(1))
+                .aggregation(aggregation)
+                .build();
+    }
+
+    private void execute(String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            stmt.execute(sql);
+        } finally {
+            db.cleanUp();
+        }
+    }
+
+    private void refreshRollups() throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            for (RollupTier tier : RollupTier.values()) {
+                stmt.execute(String.format("CALL refresh_continuous_aggregate('%s', NULL, NULL)", tier.getViewName()));
+            }
+        } finally {
+            db.cleanUp();
+        }
+    }
+}
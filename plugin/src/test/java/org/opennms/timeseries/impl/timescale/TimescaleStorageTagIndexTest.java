@@ -0,0 +1,14 @@
+package org.opennms.timeseries.impl.timescale;
+
+/**
+ * Runs the storage tests with findMetrics() answered by the in-memory tag index.
+ */
+public class TimescaleStorageTagIndexTest extends TimescaleStorageTest {
+
+    @Override
+    protected TimescaleStorageConfig createConfig() {
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setTagIndexEnabled(true);
+        return config;
+    }
+}
@@ -28,19 +28,42 @@
 
 package org.opennms.timeseries.impl.timescale;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.sql.DataSource;
 
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
 import org.opennms.integration.api.v1.timeseries.AbstractStorageIntegrationTest;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
 import org.opennms.timeseries.impl.timescale.util.DBUtils;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
@@ -57,7 +80,7 @@ public class TimescaleStorageTest extends AbstractStorageIntegrationTest {
 
     public static GenericContainer<?> container;
 
-    private DataSource dataSource;
+    protected DataSource dataSource;
     private TimescaleStorage timescale;
 
     @BeforeClass
@@ -87,16 +110,145 @@ public class TimescaleStorageTest extends AbstractStorageIntegrationTest {
     @Before
     public void setUp() throws Exception {
         dataSource = createDatasource();
-        timescale = new TimescaleStorage(dataSource);
+        timescale = new TimescaleStorage(dataSource, createConfig());
         timescale.init();
         super.setUp();
     }
 
     @After
     public void tearDown() throws SQLException {
+        timescale.destroy();
         dropTables(dataSource);
     }
 
+    @Test
+    public void shouldDeleteMetricsInBulk() throws Exception {
+        timescale.delete(Arrays.asList(metrics.get(0), metrics.get(1)));
+        assertTrue(loadSamplesForMetric(metrics.get(0)).isEmpty());
+        assertTrue(loadSamplesForMetric(metrics.get(1)).isEmpty());
+        assertFalse(loadSamplesForMetric(metrics.get(2)).isEmpty());
+        assertTrue(timescale.findMetrics(Collections.singletonList(ImmutableTagMatcher.builder()
+                .type(TagMatcher.Type.EQUALS)
+                .key(IntrinsicTagNames.resourceId)
+                .value(metrics.get(0).getFirstTagByKey(IntrinsicTagNames.resourceId).getValue())
+                .build())).isEmpty());
+
+        // unknown metrics are ignored
+        timescale.delete(Arrays.asList(metrics.get(0), metrics.get(1)));
+    }
+
+    @Test
+    public void shouldRecordMetrics() throws Exception {
+        StorageMetrics storageMetrics = timescale.getMetrics();
+        assertTrue(storageMetrics.getStoreLatencyMicros().getCount() > 0);
+        assertTrue(storageMetrics.getSamplesWritten() > 0);
+        assertTrue(storageMetrics.getConnectionAcquireMicros().getCount() > 0);
+
+        long samplesRead = storageMetrics.getSamplesRead();
+        List<Sample> samples = loadSamplesForMetric(metrics.get(0));
+        assertEquals(samplesRead + samples.size(), storageMetrics.getSamplesRead());
+        assertEquals(0, storageMetrics.getGetTimeseriesErrors());
+
+        CompositeData latency = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("org.opennms.plugins.tss.timescale:type=TimescaleStorage"), "GetTimeseriesLatencyMicros");
+        assertEquals(storageMetrics.getGetTimeseriesLatencyMicros().getCount(), latency.get("count"));
+    }
+
+    @Test
+    public void shouldFetchManyMetricsAtOnce() throws Exception {
+        List<TimeSeriesFetchRequest> requests = new ArrayList<>();
+        for (Metric metric : metrics) {
+            requests.add(createFetchRequest(metric, referenceTime.minus(Duration.ofDays(7)), referenceTime.plus(Duration.ofDays(1))));
+        }
+        // a different time range => another group
+        requests.add(createFetchRequest(metrics.get(0), referenceTime.minus(Duration.ofHours(1)), referenceTime.plus(Duration.ofDays(1))));
+        // an unknown metric
+        Metric unknown = ImmutableMetric.builder().intrinsicTag(IntrinsicTagNames.name, "unknown").intrinsicTag(IntrinsicTagNames.resourceId, "unknown").build();
+        requests.add(createFetchRequest(unknown, referenceTime.minus(Duration.ofDays(7)), referenceTime.plus(Duration.ofDays(1))));
+
+        List<List<Sample>> results = timescale.getTimeseries(requests);
+        assertEquals(requests.size(), results.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(timescale.getTimeseries(requests.get(i)), results.get(i));
+        }
+        assertFalse(results.get(0).isEmpty());
+        assertTrue(results.get(requests.size() - 1).isEmpty());
+    }
+
+    @Test
+    public void shouldStreamSamples() throws Exception {
+        TimeSeriesFetchRequest request = createFetchRequest(metrics.get(0), referenceTime.minus(Duration.ofDays(7)), referenceTime.plus(Duration.ofDays(1)));
+        List<Sample> streamed = new ArrayList<>();
+        timescale.getTimeseries(request, streamed::add);
+        assertFalse(streamed.isEmpty());
+        assertEquals(timescale.getTimeseries(request), streamed);
+    }
+
+    @Test
+    public void shouldReturnLatestSamples() throws Exception {
+        Metric unknown = ImmutableMetric.builder().intrinsicTag(IntrinsicTagNames.name, "unknown").intrinsicTag(IntrinsicTagNames.resourceId, "unknown").build();
+        List<Metric> requested = Arrays.asList(metrics.get(1), unknown, metrics.get(0), metrics.get(1));
+
+        // twice: the second time the samples can come from the latest value cache
+        for (int i = 0; i < 2; i++) {
+            List<Sample> latest = timescale.getLatestSamples(requested);
+            assertEquals(3, latest.size());
+            assertEquals(lastOf(loadSamplesForMetric(metrics.get(1))), latest.get(0));
+            assertEquals(lastOf(loadSamplesForMetric(metrics.get(0))), latest.get(1));
+            assertEquals(latest.get(0), latest.get(2));
+        }
+    }
+
+    private static Sample lastOf(List<Sample> samples) {
+        return samples.get(samples.size() - 1);
+    }
+
+    private static TimeSeriesFetchRequest createFetchRequest(Metric metric, Instant start, Instant end) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(start)
+                .end(end)
+                .step(Duration.ZERO)
+                .aggregation(Aggregation.NONE)
+                .build();
+    }
+
+    @Test
+    public void shouldStoreChangedTagsWithinOneBatch() throws Exception {
+        Metric first = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "changing")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "batch")
+                .metaTag("version", "1")
+                .build();
+        Metric second = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "changing")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "batch")
+                .metaTag("version", "2")
+                .build();
+        timescale.store(Arrays.asList(
+                ImmutableSample.builder().metric(first).time(referenceTime).value(1.0).build(),
+                ImmutableSample.builder().metric(second).time(referenceTime.plusSeconds(1)).value(2.0).build()));
+
+        List<Metric> found = timescale.findMetrics(Collections.singletonList(ImmutableTagMatcher.builder()
+                .type(TagMatcher.Type.EQUALS)
+                .key(IntrinsicTagNames.resourceId)
+                .value("batch")
+                .build()));
+        assertEquals(1, found.size());
+        // tags are only ever added
+        assertEquals(2, found.get(0).getTagsByKey("version").size());
+        assertEquals(2, loadSamplesForMetric(first).size());
+    }
+
+    @Test
+    public void shouldDropChunks() throws Exception {
+        assertEquals(0, timescale.dropChunksOlderThan(referenceTime.minus(Duration.ofDays(365))));
+    }
+
+    protected TimescaleStorageConfig createConfig() {
+        return new TimescaleStorageConfig();
+    }
+
     @Override
     protected TimeSeriesStorage createStorage() {
         return timescale;
@@ -111,7 +263,8 @@ public class TimescaleStorageTest extends AbstractStorageIntegrationTest {
             db.watch(stmt);
             stmt.execute("DROP TABLE timescale_tag;");
             stmt.execute("DROP TABLE timescale_metric;");
-            stmt.execute("DROP TABLE timescale_time_series;");
+            stmt.execute("DROP TABLE timescale_time_series CASCADE;"); // CASCADE: drops the rollup tiers as well
+            stmt.execute("DROP TABLE timescale_schema_version;");
         } finally {
             db.cleanUp();
         }
@@ -0,0 +1,89 @@
+package org.opennms.timeseries.impl.timescale.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+public class TagIndexTest {
+
+    private TagIndex index;
+
+    @Before
+    public void setUp() {
+        index = new TagIndex();
+        index.add(1, createMetric("ifInOctets", "node1", "eth0"));
+        index.add(2, createMetric("ifOutOctets", "node1", "eth0"));
+        index.add(3, createMetric("ifInOctets", "node2", "eth1"));
+        index.add(4, createMetric("ifInOctets", "node3", null));
+    }
+
+    @Test
+    public void shouldMatchEquals() {
+        assertArrayEquals(new int[]{1, 3, 4}, find(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets")));
+        assertArrayEquals(new int[]{1}, find(
+                matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets"),
+                matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.resourceId, "node1")));
+        assertArrayEquals(new int[0], find(matcher(TagMatcher.Type.EQUALS, "unknown", "x")));
+    }
+
+    @Test
+    public void shouldMatchNotEquals() {
+        // like in the sql version, a metric without the tag key doesn't match
+        assertArrayEquals(new int[]{3}, find(matcher(TagMatcher.Type.NOT_EQUALS, "ifName", "eth0")));
+        assertArrayEquals(new int[]{2}, find(matcher(TagMatcher.Type.NOT_EQUALS, IntrinsicTagNames.name, "ifInOctets")));
+    }
+
+    @Test
+    public void shouldMatchRegex() {
+        assertArrayEquals(new int[]{1, 2}, find(matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.resourceId, "^node1$")));
+        assertArrayEquals(new int[]{1, 2, 3}, find(matcher(TagMatcher.Type.EQUALS_REGEX, "ifName", "eth")));
+        assertArrayEquals(new int[]{3, 4}, find(
+                matcher(TagMatcher.Type.NOT_EQUALS_REGEX, IntrinsicTagNames.resourceId, "node1"),
+                matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.name, "if.*")));
+    }
+
+    @Test
+    public void shouldRemoveAndMergeMetrics() {
+        index.remove(1);
+        assertArrayEquals(new int[]{3, 4}, find(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets")));
+
+        // tags are only added, like in the database
+        index.add(4, createMetric("ifInOctets", "node3", "eth9"));
+        assertArrayEquals(new int[]{4}, find(matcher(TagMatcher.Type.EQUALS, "ifName", "eth9")));
+        List<Metric> metrics = index.findMetrics(Arrays.asList(matcher(TagMatcher.Type.EQUALS, "ifName", "eth9")));
+        assertEquals(1, metrics.size());
+        assertEquals("mtype", metrics.get(0).getFirstTagByKey("meta").getValue());
+        assertEquals(3, index.size());
+        assertTrue(index.estimateMemoryBytes() > 0);
+    }
+
+    private int[] find(TagMatcher... matchers) {
+        return index.findIds(Arrays.asList(matchers));
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type, String key, String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+
+    private static Metric createMetric(String name, String resourceId, String ifName) {
+        ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .metaTag("meta", "mtype");
+        if (ifName != null) {
+            builder.externalTag("ifName", ifName);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,49 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private static ConsistentHashRing<String> ring(int nodes) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < nodes; i++) {
+            map.put("shard-" + i, "shard-" + i);
+        }
+        return new ConsistentHashRing<>(map, 128);
+    }
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        ConsistentHashRing<String> ring = ring(4);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            counts.merge(ring.get("node" + i + "-resource-metric"), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced: " + counts, count > 15_000 && count < 35_000);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysToTheNewNode() {
+        ConsistentHashRing<String> before = ring(3);
+        ConsistentHashRing<String> after = ring(4);
+        int moved = 0;
+        for (int i = 0; i < 100_000; i++) {
+            String key = "node" + i + "-resource-metric";
+            if (!before.get(key).equals(after.get(key))) {
+                assertEquals("shard-3", after.get(key));
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 15_000 && moved < 35_000);
+    }
+}
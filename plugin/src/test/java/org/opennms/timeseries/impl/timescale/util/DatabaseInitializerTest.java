@@ -1,17 +1,23 @@
 package org.opennms.timeseries.impl.timescale.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 
 import javax.sql.DataSource;
 
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.opennms.timeseries.impl.timescale.TimescaleStorageConfig;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.containers.wait.strategy.Wait;
@@ -25,6 +31,7 @@ import lombok.extern.slf4j.Slf4j;
 public class DatabaseInitializerTest {
     public static GenericContainer<?> container;
 
+    private DataSource dataSource;
     private TimescaleDatabaseInitializer initializer;
 
     @BeforeClass
@@ -54,21 +61,150 @@ public class DatabaseInitializerTest {
 
     @Before
     public void setUp() {
-        this.initializer = new TimescaleDatabaseInitializer(createDatasource());
+        this.dataSource = createDatasource();
+        this.initializer = new TimescaleDatabaseInitializer(dataSource);
+    }
+
+    @After
+    public void dropTables() throws SQLException {
+        execute("DROP TABLE IF EXISTS timescale_tag, timescale_metric, timescale_time_series, timescale_schema_version CASCADE");
     }
 
     @Test
     public void shouldCreateTables() throws SQLException {
         assertTrue(initializer.isTimescaleExtensionInstalled());
+        assertFalse(initializer.readSchemaState().isTablesExisting());
+
+        createTables();
 
-        assertFalse(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_TIME_SERIES));
-        assertFalse(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_METRIC));
-        assertFalse(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_TAG));
+        SchemaState state = initializer.readSchemaState();
+        assertTrue(state.isTablesExisting());
+        assertFalse(state.isLegacySchema());
+    }
 
-        initializer.createTables();
+    @Test
+    public void shouldMigrateLegacySchema() throws SQLException {
+        execute("CREATE TABLE timescale_time_series(key TEXT NOT NULL, time TIMESTAMPTZ NOT NULL, value DOUBLE PRECISION NULL)");
+        execute("SELECT create_hypertable('timescale_time_series', 'time')");
+        execute("CREATE TABLE timescale_metric(key TEXT NOT NULL PRIMARY KEY)");
+        execute("CREATE TABLE timescale_tag(fk_timescale_metric TEXT NOT NULL, key TEXT, value TEXT NOT NULL, type TEXT NOT NULL, UNIQUE (fk_timescale_metric, key, value, type))");
+        execute("INSERT INTO timescale_time_series(key, time, value) VALUES ('a', now(), 1), ('a', now() - interval '1 minute', 2), ('b', now(), 3)");
+        execute("INSERT INTO timescale_tag(fk_timescale_metric, key, value, type) VALUES ('a', 'name', 'a', 'intrinsic'), ('b', 'name', 'b', 'intrinsic')");
+        assertTrue(initializer.readSchemaState().isLegacySchema());
+
+        initializer.initializeIfNeeded();
+
+        SchemaState state = initializer.readSchemaState();
+        assertFalse(state.isLegacySchema());
+        assertEquals(2, queryForInt("SELECT count(*) FROM timescale_metric"));
+        assertEquals(2, queryForInt("SELECT count(*) FROM timescale_tag t JOIN timescale_metric m ON m.id = t.fk_timescale_metric"));
+        assertEquals(2, queryForInt("SELECT count(*) FROM timescale_time_series s JOIN timescale_metric m ON m.id = s.fk_timescale_metric WHERE m.key = 'a'"));
+        assertEquals(0, queryForInt("SELECT count(*) FROM pg_class WHERE relname = 'timescale_time_series_legacy'"));
+        assertEquals(TimescaleDatabaseInitializer.getLatestVersion(), state.getVersion());
+    }
+
+    @Test
+    public void shouldApplyMigrations() throws SQLException {
+        SchemaState state = initializer.readSchemaState();
+        assertTrue(state.isExtensionInstalled());
+        assertFalse(state.isTablesExisting());
+        assertEquals(-1, state.getVersion());
+
+        initializer.initializeIfNeeded();
+
+        state = initializer.readSchemaState();
+        assertTrue(state.isTablesExisting());
+        assertFalse(state.isLegacySchema());
+        assertEquals(TimescaleDatabaseInitializer.getLatestVersion(), state.getVersion());
+        assertEquals(TimescaleDatabaseInitializer.MIGRATIONS.size(), queryForInt("SELECT count(*) FROM " + TableNames.TIMESCALE_SCHEMA_VERSION));
+        assertEquals(1, queryForInt("SELECT count(*) FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid"
+                + " WHERE c.relname = 'timescale_tag_key_value_idx' AND i.indisvalid"));
+
+        // nothing to do on the next start
+        initializer.initializeIfNeeded();
+        assertEquals(TimescaleDatabaseInitializer.MIGRATIONS.size(), queryForInt("SELECT count(*) FROM " + TableNames.TIMESCALE_SCHEMA_VERSION));
+    }
+
+    @Test
+    public void shouldMigrateTablesWithoutVersion() throws SQLException {
+        // tables created by a version without migrations
+        createTables();
+        SchemaState state = initializer.readSchemaState();
+        assertTrue(state.isTablesExisting());
+        assertEquals(-1, state.getVersion());
+
+        initializer.initializeIfNeeded();
+
+        assertEquals(TimescaleDatabaseInitializer.getLatestVersion(), initializer.readSchemaState().getVersion());
+        assertEquals(1, queryForInt("SELECT count(*) FROM pg_indexes WHERE indexname = 'timescale_tag_key_value_idx'"));
+    }
+
+    @Test
+    public void shouldConfigureChunksCompressionAndRetention() throws SQLException {
+        createTables();
+        execute("INSERT INTO timescale_metric(key) VALUES ('a')");
+        execute("INSERT INTO timescale_time_series(time, fk_timescale_metric, value) VALUES (now() - interval '30 days', 1, 1), (now(), 1, 2)");
+        assertFalse(initializer.isCompressionEnabled());
+
+        TimescaleStorageConfig config = new TimescaleStorageConfig();
+        config.setChunkTimeIntervalSeconds(3600);
+        config.setCompressionEnabled(true);
+        config.setRetentionSeconds(365 * 24 * 3600);
+        initializer.configureHypertable(config);
+        assertTrue(initializer.isCompressionEnabled());
+        assertEquals(1, queryForInt("SELECT count(*) FROM timescaledb_information.jobs WHERE proc_name = 'policy_compression'"));
+        assertEquals(1, queryForInt("SELECT count(*) FROM timescaledb_information.jobs WHERE proc_name = 'policy_retention'"));
+
+        // applying the settings again must work as well, e.g. after a restart
+        initializer.configureHypertable(config);
+
+        execute("SELECT compress_chunk(c) FROM show_chunks('timescale_time_series', older_than => interval '7 days') c");
+        HypertableStats stats = initializer.getHypertableStats();
+        assertEquals(2, stats.getChunks());
+        assertEquals(1, stats.getCompressedChunks());
+        assertTrue(stats.getBeforeCompressionBytes() > 0);
+        assertTrue(stats.getAfterCompressionBytes() > 0);
+
+        config.setCompressionEnabled(false);
+        config.setRetentionSeconds(0);
+        initializer.configureHypertable(config);
+        assertEquals(0, queryForInt("SELECT count(*) FROM timescaledb_information.jobs WHERE proc_name = 'policy_compression'"));
+        assertEquals(0, queryForInt("SELECT count(*) FROM timescaledb_information.jobs WHERE proc_name = 'policy_retention'"));
+    }
+
+    /** Creates the tables like a version without migrations did. */
+    private void createTables() throws SQLException {
+        for (String sql : TimescaleDatabaseInitializer.CREATE_TABLES) {
+            execute(sql);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            stmt.execute(sql);
+        } finally {
+            db.cleanUp();
+        }
+    }
 
-        assertTrue(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_TIME_SERIES));
-        assertTrue(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_METRIC));
-        assertTrue(initializer.isTimescaleTableExisting(TableNames.TIMESCALE_TAG));
+    private int queryForInt(String sql) throws SQLException {
+        DBUtils db = new DBUtils();
+        try {
+            Connection conn = dataSource.getConnection();
+            db.watch(conn);
+            Statement stmt = conn.createStatement();
+            db.watch(stmt);
+            ResultSet rs = stmt.executeQuery(sql);
+            db.watch(rs);
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            db.cleanUp();
+        }
     }
 }
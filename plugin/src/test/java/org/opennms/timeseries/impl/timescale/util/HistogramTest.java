@@ -0,0 +1,44 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldMapValuesToBuckets() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int index = Histogram.index(value);
+            assertTrue(value + " <= " + Histogram.upperBound(index), value <= Histogram.upperBound(index));
+            if (index > 0) {
+                assertTrue(value + " > " + Histogram.upperBound(index - 1), value > Histogram.upperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCalculatePercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HistogramStats stats = histogram.getStats();
+        assertEquals(1000, stats.getCount());
+        assertEquals(500.5, stats.getMean(), 0.0);
+        assertEquals(1000, stats.getMax());
+        assertEquals(500, stats.getP50(), 500 * 0.125);
+        assertEquals(950, stats.getP95(), 950 * 0.125);
+        assertEquals(990, stats.getP99(), 990 * 0.125);
+        assertTrue(stats.getP99() <= stats.getMax());
+    }
+
+    @Test
+    public void shouldBeEmptyWithoutValues() {
+        HistogramStats stats = new Histogram().getStats();
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getMean(), 0.0);
+        assertEquals(0, stats.getP99());
+    }
+}
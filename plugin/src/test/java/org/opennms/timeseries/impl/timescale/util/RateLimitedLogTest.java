@@ -0,0 +1,38 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+
+public class RateLimitedLogTest {
+
+    @Test
+    public void shouldSuppressRepeatedMessages() throws InterruptedException {
+        Logger logger = mock(Logger.class);
+        when(logger.isErrorEnabled()).thenReturn(true);
+        RateLimitedLog log = new RateLimitedLog(logger, Duration.ofMillis(200));
+        Exception e = new Exception();
+
+        for (int i = 0; i < 10; i++) {
+            log.error("a", e);
+        }
+        log.error("b", e);
+        verify(logger, times(1)).error("a", e);
+        verify(logger, times(1)).error("b", e);
+
+        Thread.sleep(250);
+        log.error("a", e);
+        verify(logger).error("{} ({} similar messages suppressed)", "a", 9L, e);
+        verify(logger, times(2)).error(anyString(), any(Throwable.class));
+        verify(logger, times(1)).error(eq("{} ({} similar messages suppressed)"), any(), any(), any());
+    }
+}
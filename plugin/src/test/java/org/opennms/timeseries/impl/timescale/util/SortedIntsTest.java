@@ -0,0 +1,22 @@
+package org.opennms.timeseries.impl.timescale.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SortedIntsTest {
+
+    @Test
+    public void shouldCombineSets() {
+        int[] a = {1, 3, 5, 7};
+        int[] b = {3, 4, 5, 8};
+        assertArrayEquals(new int[]{3, 5}, SortedInts.intersect(a, b));
+        assertArrayEquals(new int[]{1, 3, 4, 5, 7, 8}, SortedInts.union(a, b));
+        assertArrayEquals(new int[]{1, 7}, SortedInts.difference(a, b));
+        assertArrayEquals(new int[]{5}, SortedInts.intersectAll(Arrays.asList(a, b, new int[]{5, 9})));
+        assertArrayEquals(new int[0], SortedInts.intersectAll(Arrays.asList(a, new int[0])));
+        assertArrayEquals(new int[]{1, 2, 5}, SortedInts.sortDistinct(new int[]{5, 1, 2, 5, 1, 0}, 5));
+    }
+}